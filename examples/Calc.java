@@ -6,8 +6,6 @@ import java.util.stream.Collectors;
 
 /**
  * A simple reverse polish notation calculator.
- * <p>
- * FIXME does not work when using the JGrab Daemon.
  */
 public class Calc implements Runnable {
 
@@ -2,26 +2,50 @@ extern crate dirs;
 extern crate wait_timeout;
 
 use std::env;
-use std::fs::{create_dir_all, File, read_to_string};
-use std::io::{Cursor, Error, Read, Result, stdin, Stdin, stdout, Write};
-use std::iter::Iterator;
-use std::net::{Shutdown, TcpStream};
-use std::option::Option;
+use std::fs::{create_dir_all, File, read_to_string, remove_file};
+use std::io::{BufReader, BufWriter, ErrorKind, Read, Result, stderr, stdin, stdout, Write};
+use std::net::TcpStream;
+#[cfg(unix)]
+use std::os::unix::net::UnixStream;
 use std::path::{Path, PathBuf};
 use std::process::{Child, Command, exit};
-use std::str;
-use std::thread::sleep;
-use std::time::Duration;
+use std::thread::{sleep, spawn};
+use std::time::{Duration, Instant};
 
 use dirs::home_dir;
 use wait_timeout::ChildExt;
 
-use Input::*;
-
 const MAX_RETRIES: usize = 5;
 
+/// How long to wait for a newly started daemon to signal it is ready before trying to connect anyway.
+const READY_TIMEOUT_MILLIS: u64 = 10_000;
+
+// files in the JGrab home directory
+const TOKEN_FILE: &str = "token";
+const JAR_FILE: &str = "jgrab.jar";
+const SOCKET_FILE: &str = "daemon.sock";
+const READY_FILE: &str = "daemon.ready";
+const CDS_ARCHIVE_FILE: &str = "jgrab.jsa";
+
 const VERSION: &str = env!("CARGO_PKG_VERSION");
 
+/// Bytes that start every request, identifying the framed protocol.
+const PROTOCOL_MAGIC: &[u8] = b"JGRB";
+const PROTOCOL_VERSION: u8 = 1;
+
+// frames sent by the client
+const TOKEN_FRAME: u8 = 1;
+const COMMAND_FRAME: u8 = 2;
+const ARG_FRAME: u8 = 3;
+const SOURCE_FRAME: u8 = 6;
+const END_FRAME: u8 = 7;
+const STDIN_FRAME: u8 = 8;
+
+// frames sent by the daemon
+const STDOUT_FRAME: u8 = 16;
+const STDERR_FRAME: u8 = 17;
+const EXIT_FRAME: u8 = 18;
+
 const JGRAB_INFO: &str = "\
 =============== JGrab Client ================
  - https://github.com/renatoathaydes/jgrab -
@@ -47,41 +71,88 @@ Options:
   --version -v
     Shows version information.";
 
-/// All possible sources of input for the JGrab Client
-enum Input {
-    FileIn(File),
-    StdinIn(Stdin),
-    TextIn(Cursor<String>),
-    Copy(Box<dyn Read>),
+/// A connection to the JGrab daemon, over its Unix domain socket if possible, or TCP.
+enum Connection {
+    Tcp(TcpStream),
+    #[cfg(unix)]
+    Unix(UnixStream),
+}
+
+impl Connection {
+    fn try_clone(&self) -> Result<Connection> {
+        match *self {
+            Connection::Tcp(ref stream) => stream.try_clone().map(Connection::Tcp),
+            #[cfg(unix)]
+            Connection::Unix(ref stream) => stream.try_clone().map(Connection::Unix),
+        }
+    }
 }
 
-impl Read for Input {
+impl Read for Connection {
     fn read(&mut self, buf: &mut [u8]) -> Result<usize> {
         match *self {
-            FileIn(ref mut r) => r.read(buf),
-            StdinIn(ref mut r) => r.read(buf),
-            TextIn(ref mut r) => r.read(buf),
-            Copy(ref mut r) => r.read(buf),
+            Connection::Tcp(ref mut stream) => stream.read(buf),
+            #[cfg(unix)]
+            Connection::Unix(ref mut stream) => stream.read(buf),
+        }
+    }
+}
+
+impl Write for Connection {
+    fn write(&mut self, buf: &[u8]) -> Result<usize> {
+        match *self {
+            Connection::Tcp(ref mut stream) => stream.write(buf),
+            #[cfg(unix)]
+            Connection::Unix(ref mut stream) => stream.write(buf),
+        }
+    }
+
+    fn flush(&mut self) -> Result<()> {
+        match *self {
+            Connection::Tcp(ref mut stream) => stream.flush(),
+            #[cfg(unix)]
+            Connection::Unix(ref mut stream) => stream.flush(),
         }
     }
 }
 
+/// A request to the JGrab daemon.
+struct Request {
+    command: &'static str,
+    args: Vec<String>,
+    source: Vec<u8>,
+    /// whether stdin should be forwarded to the program
+    forward_stdin: bool,
+}
+
+impl Request {
+    fn new(command: &'static str) -> Request {
+        Request { command, args: Vec::new(), source: Vec::new(), forward_stdin: false }
+    }
+
+    fn run(source: Vec<u8>, args: Vec<String>, forward_stdin: bool) -> Request {
+        Request { command: "run", args, source, forward_stdin }
+    }
+
+    fn snippet(code: String, forward_stdin: bool) -> Request {
+        Request { command: "snippet", args: Vec::new(), source: code.into_bytes(), forward_stdin }
+    }
+}
+
 fn main() {
     let args: Vec<String> = env::args().skip(1).collect();
 
     let jgrab_home = find_jgrab_home();
-    let token_path = token_path(&jgrab_home);
-    let jar_path = jar_path(&jgrab_home);
 
-    let input: Input;
+    let request: Request;
     let mut ignore_read_error = false;
 
     if args.is_empty() {
-        // no args, pipe stdin
-        input = StdinIn(stdin());
+        // no args, the source comes from stdin
+        request = Request::run(read_stdin(), Vec::new(), false);
     } else if args.len() == 1 && !args[0].starts_with('-') {
         // there's one argument and it is not an option, so it must be a file
-        input = file_input(&args[0]);
+        request = Request::run(read_file(&args[0]), Vec::new(), true);
     } else if args.len() == 1 {
         // one argument starting with -
         match args[0].trim() {
@@ -90,19 +161,19 @@ fn main() {
                 return;
             }
             "--start" | "-t" => {
-                input = TextIn(Cursor::new("-e null".to_string()))
+                request = Request::snippet("null".to_string(), false)
             }
             "--stop" | "-s" => {
-                if connect().is_err() {
+                if connect(&jgrab_home).is_err() {
                     log("daemon is not running");
                     return;
                 }
                 ignore_read_error = true;
-                input = TextIn(Cursor::new("--stop".to_string()))
+                request = Request::new("stop")
             }
             "--version" | "-v" => {
                 println!("JGrab Client Version: {}", VERSION);
-                show_daemon_version(&token_path);
+                show_daemon_version(&jgrab_home);
                 return;
             }
             "-e" => usage_error("-e option missing code snippet"),
@@ -114,147 +185,213 @@ fn main() {
         // more than one argument given
         match args[0].trim() {
             "-e" => {
-                // just pass on the arguments to JGrab
-                input = create_message(&args)
+                request = Request::snippet(args[1..].join(" "), true)
             }
             _ => {
                 // assume it's a file + java arguments
-                let file = file_input(&args[0]);
-                let java_args = create_wrapped_message("[", &args[1..], "]\n");
-                input = Copy(Box::new(java_args.chain(file)))
+                request = Request::run(read_file(&args[0]), args[1..].to_vec(), true)
             }
         }
     }
 
-    send_message_retrying(input, &token_path, &jar_path, ignore_read_error);
+    let status = send_request_retrying(&request, &jgrab_home, ignore_read_error);
+    if status != 0 {
+        exit(status);
+    }
 }
 
-fn file_input(file_name: &String) -> Input {
-    match File::open(file_name) {
-        Ok(file) => FileIn(file),
+fn read_file(file_name: &str) -> Vec<u8> {
+    let mut contents = Vec::new();
+    match File::open(file_name).and_then(|mut file| file.read_to_end(&mut contents)) {
+        Ok(_) => contents,
         Err(err) => error(&format!("unable to read file: {}", err)),
     }
 }
 
-fn create_message(args: &[String]) -> Input {
-    TextIn(Cursor::new(args.join(" ")))
-}
-
-fn create_wrapped_message(prefix: &str, args: &[String], suffix: &str) -> Input {
-    TextIn(Cursor::new(prefix.to_string() + &args.join(" ") + suffix))
+fn read_stdin() -> Vec<u8> {
+    let mut contents = Vec::new();
+    match stdin().read_to_end(&mut contents) {
+        Ok(_) => contents,
+        Err(err) => error(&format!("unable to read stdin: {}", err)),
+    }
 }
 
-fn token_path(home: &Path) -> PathBuf {
-    let mut path = home.to_path_buf();
-    path.push("token");
+fn home_file(jgrab_home: &Path, name: &str) -> PathBuf {
+    let mut path = jgrab_home.to_path_buf();
+    path.push(name);
     path
 }
 
-fn jar_path(home: &Path) -> PathBuf {
-    let mut path = home.to_path_buf();
-    path.push("jgrab.jar");
-    path
-}
+fn send_request_retrying(
+    request: &Request,
+    jgrab_home: &Path,
+    ignore_read_error: bool) -> i32 {
+    if let Ok(status) = send_request(request, false, jgrab_home, ignore_read_error) {
+        return status;
+    }
+
+    // failed to connect, try to start the daemon, then retry
+    let mut retries = MAX_RETRIES;
+
+    let ready_path = home_file(jgrab_home, READY_FILE);
 
-fn send_message_retrying<R: Read>(
-    mut reader: R,
-    token_path: &Path,
-    jar_path: &Path,
-    ignore_read_error: bool) {
-    if send_message(&mut reader, false, token_path, ignore_read_error).is_some() {
-        // failed to connect, try to start the daemon, then retry
-        let mut retries = MAX_RETRIES;
+    // a file left behind by a daemon that died must not be mistaken for the new daemon signalling it is ready
+    let _ = remove_file(&ready_path);
 
-        let mut child = start_daemon(jar_path);
-        check_status(&mut child);
+    let mut child = start_daemon(jgrab_home);
+    wait_until_ready(&mut child, &ready_path);
 
-        while retries > 0 {
-            if let Some(err) = send_message(&mut reader, true, token_path, ignore_read_error) {
+    while retries > 0 {
+        match send_request(request, true, jgrab_home, ignore_read_error) {
+            Ok(status) => return status,
+            Err(err) => {
                 check_status(&mut child);
 
                 log(&format!("unable to connect to JGrab daemon: {}", err));
                 log(&format!("will re-try {} more times", &mut retries));
                 retries -= 1;
-            } else {
-                break; // success
             }
         }
+    }
 
-        if retries == 0 {
-            error(
-                "unable to start JGrab daemon. \
-                   Make sure JGrab's port [5002] is not already bound",
-            );
+    error(
+        "unable to start JGrab daemon. \
+           Make sure JGrab's port [5002] is not already bound",
+    );
+}
+
+#[cfg_attr(not(unix), allow(unused_variables))]
+fn connect(jgrab_home: &Path) -> Result<Connection> {
+    #[cfg(unix)]
+    {
+        if let Ok(stream) = UnixStream::connect(home_file(jgrab_home, SOCKET_FILE)) {
+            return Ok(Connection::Unix(stream));
         }
     }
+    let stream = TcpStream::connect("127.0.0.1:5002")?;
+    stream.set_nodelay(true)?;
+    Ok(Connection::Tcp(stream))
 }
 
-fn connect() -> Result<TcpStream> {
-    TcpStream::connect("127.0.0.1:5002")
+/// Send the request to the daemon, then write the program's output as it arrives.
+///
+/// Returns the exit status of the request, or an error if the daemon could not be reached.
+fn send_request(
+    request: &Request,
+    is_retry: bool,
+    jgrab_home: &Path,
+    ignore_read_error: bool) -> Result<i32> {
+    let mut stream = connect(jgrab_home)?;
+
+    if is_retry {
+        log("Connected!");
+    }
+
+    let token = read_to_string(home_file(jgrab_home, TOKEN_FILE))?;
+
+    if let Err(err) = write_request(&mut stream, request, token.trim()) {
+        error(&format!("socket write error: {}", err));
+    }
+
+    if request.forward_stdin {
+        let stdin_stream = stream.try_clone()?;
+        spawn(move || forward_stdin(stdin_stream));
+    }
+
+    Ok(read_response(stream, ignore_read_error))
 }
 
-fn send_message<R: Read>(
-    reader: &mut R,
-    is_retry: bool,
-    token_path: &Path,
-    ignore_read_error: bool) -> Option<Error> {
-    match connect() {
-        Ok(mut stream) => {
-            if is_retry {
-                log("Connected!");
-            }
+fn write_request(stream: &mut Connection, request: &Request, token: &str) -> Result<()> {
+    let mut writer = BufWriter::new(stream);
 
-            match read_to_string(token_path) {
-                Ok(token) => {
-                    stream.write_all(token.as_bytes()).expect("socket write error (token)");
-                    stream.write_all(&[b'\n']).expect("socket write error (newline)");
-                }
-                Err(err) => return Some(err),
-            };
-
-            let mut socket_message = [0u8; 4096];
-
-            loop {
-                match reader.read(&mut socket_message) {
-                    Ok(n) => {
-                        if n == 0 {
-                            break;
-                        } else {
-                            stream.write_all(&socket_message[0..n])
-                                .expect("socket write error (message)");
-                        }
-                    }
-                    Err(err) => error(&err.to_string()),
-                }
-            }
+    writer.write_all(PROTOCOL_MAGIC)?;
+    writer.write_all(&[PROTOCOL_VERSION])?;
+    write_frame(&mut writer, TOKEN_FRAME, token.as_bytes())?;
+    write_frame(&mut writer, COMMAND_FRAME, request.command.as_bytes())?;
+    for arg in &request.args {
+        write_frame(&mut writer, ARG_FRAME, arg.as_bytes())?;
+    }
+    write_frame(&mut writer, SOURCE_FRAME, &request.source)?;
+    write_frame(&mut writer, END_FRAME, &[])?;
+    if !request.forward_stdin {
+        // nothing to forward, end the program's stdin right away
+        write_frame(&mut writer, STDIN_FRAME, &[])?;
+    }
 
-            stream.shutdown(Shutdown::Write).expect("shutdown socket write");
+    writer.flush()
+}
 
-            let mut client_buffer = socket_message;
+/// Forward stdin to the program as it becomes available, ending it with an empty frame.
+///
+/// Stops quietly if the daemon no longer accepts input, e.g. because the program is done.
+fn forward_stdin(stream: Connection) {
+    let mut writer = BufWriter::new(stream);
+    let mut buffer = [0u8; 8192];
+    let stdin = stdin();
+    let mut input = stdin.lock();
+    loop {
+        let count = match input.read(&mut buffer) {
+            Ok(count) => count,
+            Err(ref err) if err.kind() == ErrorKind::Interrupted => continue,
+            Err(_) => 0,
+        };
+        let result = write_frame(&mut writer, STDIN_FRAME, &buffer[..count])
+            .and_then(|_| writer.flush());
+        if count == 0 || result.is_err() {
+            break;
+        }
+    }
+}
 
-            let stdout = stdout();
-            let mut lock = stdout.lock();
+fn read_response(stream: Connection, ignore_read_error: bool) -> i32 {
+    let mut reader = BufReader::new(stream);
+    let stdout = stdout();
+    let stderr = stderr();
 
-            loop {
-                match stream.read(&mut client_buffer) {
-                    Ok(n) => {
-                        if n == 0 {
-                            break;
-                        } else {
-                            lock.write_all(&client_buffer[0..n]).expect("stdout write error");
-                        }
-                    }
-                    Err(_) if ignore_read_error => break,
-                    Err(err) => error(&err.to_string()),
+    loop {
+        match read_frame(&mut reader) {
+            Ok((STDOUT_FRAME, data)) => {
+                let mut out = stdout.lock();
+                out.write_all(&data).and_then(|_| out.flush()).expect("stdout write error");
+            }
+            Ok((STDERR_FRAME, data)) => {
+                let mut err = stderr.lock();
+                err.write_all(&data).and_then(|_| err.flush()).expect("stderr write error");
+            }
+            Ok((EXIT_FRAME, data)) => {
+                if data.len() != 4 {
+                    error("invalid exit status received from the JGrab daemon");
                 }
+                return i32::from_be_bytes([data[0], data[1], data[2], data[3]]);
             }
-
-            None
+            Ok((frame_type, _)) => {
+                error(&format!("unexpected frame received from the JGrab daemon: {}", frame_type))
+            }
+            Err(_) if ignore_read_error => return 0,
+            Err(ref err) if err.kind() == ErrorKind::UnexpectedEof => {
+                error("the JGrab daemon closed the connection unexpectedly")
+            }
+            Err(err) => error(&err.to_string()),
         }
-        Err(err) => Some(err),
     }
 }
 
+/// Write a frame: the frame type, the big-endian length of the data, then the data.
+fn write_frame<W: Write>(writer: &mut W, frame_type: u8, data: &[u8]) -> Result<()> {
+    writer.write_all(&[frame_type])?;
+    writer.write_all(&(data.len() as u32).to_be_bytes())?;
+    writer.write_all(data)
+}
+
+fn read_frame<R: Read>(reader: &mut R) -> Result<(u8, Vec<u8>)> {
+    let mut header = [0u8; 5];
+    reader.read_exact(&mut header)?;
+    let length = u32::from_be_bytes([header[1], header[2], header[3], header[4]]) as usize;
+    let mut data = vec![0u8; length];
+    reader.read_exact(&mut data)?;
+    Ok((header[0], data))
+}
+
 fn find_jgrab_home() -> PathBuf {
     let jgrab_home = env::var("JGRAB_HOME");
     if let Ok(home) = jgrab_home {
@@ -267,14 +404,25 @@ fn find_jgrab_home() -> PathBuf {
     }
 }
 
-fn start_daemon(jgrab_jar: &Path) -> Child {
+fn start_daemon(jgrab_home: &Path) -> Child {
     log("Starting daemon");
+    let jgrab_jar = home_file(jgrab_home, JAR_FILE);
     if !jgrab_jar.is_file() {
-        create_jgrab_jar(jgrab_jar);
+        create_jgrab_jar(&jgrab_jar);
     }
-    let cmd = Command::new("java")
+    let mut command = Command::new("java");
+
+    // the daemon creates the class-data sharing archive, which makes it start faster next time
+    let cds_archive = home_file(jgrab_home, CDS_ARCHIVE_FILE);
+    if cds_archive.is_file() && cds_archive_enabled() {
+        command
+            .arg(format!("-XX:SharedArchiveFile={}", cds_archive.display()))
+            .arg("-Xlog:cds*=off");
+    }
+
+    let cmd = command
         .arg("-jar")
-        .arg(jgrab_jar)
+        .arg(&jgrab_jar)
         .arg("--daemon")
         .spawn();
 
@@ -287,6 +435,13 @@ fn start_daemon(jgrab_jar: &Path) -> Child {
     }
 }
 
+/// Same as the daemon, the archive is used unless JGRAB_CDS_ARCHIVE is set to something other than true.
+fn cds_archive_enabled() -> bool {
+    env::var("JGRAB_CDS_ARCHIVE")
+        .map(|value| value.eq_ignore_ascii_case("true"))
+        .unwrap_or(true)
+}
+
 fn create_jgrab_jar(path: &Path) {
     if let Some(dir) = path.parent() {
         let _ = create_dir_all(dir);
@@ -301,6 +456,33 @@ fn create_jgrab_jar(path: &Path) {
     }
 }
 
+/// Wait until the daemon signals it is ready to accept requests by creating the ready file.
+///
+/// Gives up after READY_TIMEOUT_MILLIS, as older daemons never create the file.
+fn wait_until_ready(child: &mut Child, ready_path: &Path) {
+    let start = Instant::now();
+    let poll_interval = Duration::from_millis(10);
+    let timeout = Duration::from_millis(READY_TIMEOUT_MILLIS);
+
+    while !ready_path.is_file() {
+        if start.elapsed() > timeout {
+            log("the JGrab daemon did not signal it is ready, will try to connect anyway");
+            return;
+        }
+        match child.wait_timeout(poll_interval) {
+            Ok(Some(status)) => error(&format!(
+                "The JGrab daemon has died prematurely, {}",
+                status
+            )),
+            Ok(None) => {}
+            Err(e) => error(&format!(
+                "unable to wait for JGrab daemon process status: {}",
+                e
+            )),
+        }
+    }
+}
+
 fn check_status(child: &mut Child) {
     let timeout = Duration::from_secs(1);
 
@@ -320,13 +502,8 @@ fn check_status(child: &mut Child) {
     }
 }
 
-fn show_daemon_version(token_path: &Path) {
-    if send_message(
-        &mut TextIn(Cursor::new("--version".to_string())),
-        false,
-        token_path,
-        false,
-    ).is_some() {
+fn show_daemon_version(jgrab_home: &Path) {
+    if send_request(&Request::new("version"), false, jgrab_home, false).is_err() {
         println!("(Run the JGrab daemon to see its version)");
     }
 }
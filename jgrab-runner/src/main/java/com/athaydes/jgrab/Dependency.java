@@ -1,9 +1,10 @@
 package com.athaydes.jgrab;
 
+import com.athaydes.jgrab.code.SourceScanner;
+
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -15,9 +16,17 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  */
 public class Dependency implements Comparable<Dependency> {
 
-    private static final Pattern JGRAB_PATTERN = Pattern.compile(
+    /**
+     * Pattern of a line declaring a dependency, whose first group is the dependency's declaration.
+     */
+    public static final Pattern JGRAB_PATTERN = Pattern.compile(
             "\\s*//\\s*#jgrab\\s+([a-zA-Z-_0-9:.]+)\\s*" );
 
+    /**
+     * The version of dependencies declared without a version.
+     */
+    public static final String LATEST = "latest";
+
     public static final Comparator<Dependency> COMPARATOR = Comparator.comparing( Dependency::canonicalNotation );
 
     public final String group;
@@ -39,7 +48,22 @@ public class Dependency implements Comparable<Dependency> {
                     declaration );
         }
 
-        return new Dependency( parts[ 0 ], parts[ 1 ], parts.length == 2 ? "latest" : parts[ 2 ] );
+        return new Dependency( parts[ 0 ], parts[ 1 ], parts.length == 2 ? LATEST : parts[ 2 ] );
+    }
+
+    /**
+     * @return true if this dependency is on the latest version of its module, rather than on a specific version.
+     */
+    public boolean isLatest() {
+        return LATEST.equals( version );
+    }
+
+    /**
+     * @param version the version to use
+     * @return a dependency on the same module as this one, but with the given version
+     */
+    public Dependency withVersion( String version ) {
+        return new Dependency( group, module, version );
     }
 
     public static String hashOf( SortedSet<Dependency> dependencies ) {
@@ -60,15 +84,18 @@ public class Dependency implements Comparable<Dependency> {
         return Base64.getUrlEncoder().encodeToString( digest.digest() );
     }
 
+    /**
+     * Parse the dependencies declared in the given lines of code.
+     * <p>
+     * As with any code run by JGrab, declarations after a class declaration are ignored.
+     *
+     * @param codeLines lines of Java code
+     * @return the declared dependencies
+     * @deprecated use {@link SourceScanner#scan(String)}, which does not require splitting the code into lines
+     */
+    @Deprecated
     public static SortedSet<Dependency> parseDependencies( Stream<String> codeLines ) {
-        return codeLines.flatMap( line -> {
-            Matcher matcher = JGRAB_PATTERN.matcher( line );
-            if ( matcher.matches() ) {
-                return Stream.of( Dependency.of( matcher.group( 1 ) ) );
-            } else {
-                return Stream.empty();
-            }
-        } ).collect( Collectors.toCollection( TreeSet::new ) );
+        return SourceScanner.scan( codeLines.collect( Collectors.joining( "\n" ) ) ).getDependencies();
     }
 
     @Override
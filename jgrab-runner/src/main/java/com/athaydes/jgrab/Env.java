@@ -0,0 +1,48 @@
+package com.athaydes.jgrab;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Helpers to read JGrab's configuration from environment variables.
+ */
+public final class Env {
+
+    private static final Logger logger = LoggerFactory.getLogger( Env.class );
+
+    private Env() {
+    }
+
+    /**
+     * Read an integer from the environment of this process.
+     *
+     * @see #intValue(Map, String, int, int)
+     */
+    public static int intValue( String name, int defaultValue, int minValue ) {
+        return intValue( System.getenv(), name, defaultValue, minValue );
+    }
+
+    /**
+     * Read an integer from the given environment.
+     *
+     * @param env          environment variables
+     * @param name         of the variable
+     * @param defaultValue used if the variable is not set or is not a valid integer
+     * @param minValue     smallest value allowed, smaller values are replaced with it
+     * @return the value of the variable
+     */
+    public static int intValue( Map<String, String> env, String name, int defaultValue, int minValue ) {
+        var value = env.get( name );
+        if ( value == null || value.isBlank() ) {
+            return defaultValue;
+        }
+        try {
+            return Math.max( minValue, Integer.parseInt( value.trim() ) );
+        } catch ( NumberFormatException e ) {
+            logger.warn( "Invalid value for {}: '{}', using the default: {}", name, value, defaultValue );
+            return defaultValue;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.athaydes.jgrab.code;
 import com.athaydes.jgrab.Dependency;
 
 import java.util.SortedSet;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -30,28 +29,13 @@ public interface JavaCode {
      */
     boolean isSnippet();
 
+    /**
+     * @param codeLines lines of Java code
+     * @return the fully qualified name of the class declared by the code, or null if it does not declare one
+     * @deprecated use {@link SourceScanner#scan(String)}, which does not require splitting the code into lines
+     */
+    @Deprecated
     static String extractClassNameFrom( String[] codeLines ) {
-        boolean packageFound = false;
-        String packageName = "";
-
-        for (String line : codeLines) {
-            Matcher matcher = PACKAGE_PATTERN.matcher( line );
-
-            if ( !packageFound && matcher.matches() ) {
-                packageName = matcher.group( 1 );
-                packageFound = true;
-            } else {
-                Matcher classMatcher = CLASS_PATTERN.matcher( line );
-                if ( classMatcher.matches() ) {
-                    String className = classMatcher.group( "name" );
-                    if ( !packageName.isEmpty() ) {
-                        className = packageName + "." + className;
-                    }
-                    return className;
-                }
-            }
-        }
-
-        return null;
+        return SourceScanner.scan( String.join( "\n", codeLines ) ).getClassName();
     }
 }
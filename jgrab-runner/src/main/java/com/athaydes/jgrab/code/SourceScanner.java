@@ -0,0 +1,151 @@
+package com.athaydes.jgrab.code;
+
+import com.athaydes.jgrab.Dependency;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+
+/**
+ * Extracts the package, the class name and the dependency declarations of Java source code in a single pass,
+ * without splitting the code into lines.
+ * <p>
+ * Dependencies must be declared in the header of the code, before its class declaration, so the scan stops
+ * at the class declaration. Snippets do not declare a class, so they are always scanned to the end.
+ */
+public final class SourceScanner {
+
+    private final String packageName;
+    private final String className;
+    private final SortedSet<Dependency> dependencies;
+
+    // thrown when the dependencies are requested, not while scanning, as the code may be used without them
+    private final RuntimeException invalidDeclaration;
+
+    private SourceScanner( String packageName,
+                           String className,
+                           SortedSet<Dependency> dependencies,
+                           RuntimeException invalidDeclaration ) {
+        this.packageName = packageName;
+        this.className = className;
+        this.dependencies = dependencies;
+        this.invalidDeclaration = invalidDeclaration;
+    }
+
+    /**
+     * Read all source code from the given stream.
+     *
+     * @param stream  to read
+     * @param charset of the source code
+     * @return the source code
+     * @throws IOException if the stream cannot be read
+     */
+    public static String read( InputStream stream, Charset charset ) throws IOException {
+        return new String( stream.readAllBytes(), charset );
+    }
+
+    /**
+     * Scan the given source code.
+     *
+     * @param code Java source code
+     * @return the result of the scan
+     */
+    public static SourceScanner scan( String code ) {
+        Matcher dependencyMatcher = Dependency.JGRAB_PATTERN.matcher( code );
+        Matcher packageMatcher = JavaCode.PACKAGE_PATTERN.matcher( code );
+        Matcher classMatcher = JavaCode.CLASS_PATTERN.matcher( code );
+
+        String packageName = null;
+        String className = null;
+        SortedSet<Dependency> dependencies = new TreeSet<>();
+        RuntimeException invalidDeclaration = null;
+
+        int lineStart = 0;
+        while ( lineStart < code.length() && className == null ) {
+            int lineEnd = code.indexOf( '\n', lineStart );
+            int nextLineStart;
+            if ( lineEnd < 0 ) {
+                lineEnd = code.length();
+                nextLineStart = lineEnd;
+            } else {
+                nextLineStart = lineEnd + 1;
+            }
+            if ( lineEnd > lineStart && code.charAt( lineEnd - 1 ) == '\r' ) {
+                lineEnd--;
+            }
+
+            // only run the patterns over lines that may match them
+            int firstChar = firstNonWhitespace( code, lineStart, lineEnd );
+            if ( firstChar < lineEnd ) {
+                char c = code.charAt( firstChar );
+                if ( c == '/' ) {
+                    if ( dependencyMatcher.region( lineStart, lineEnd ).matches() ) {
+                        try {
+                            dependencies.add( Dependency.of( dependencyMatcher.group( 1 ) ) );
+                        } catch ( RuntimeException e ) {
+                            if ( invalidDeclaration == null ) {
+                                invalidDeclaration = e;
+                            }
+                        }
+                    }
+                } else if ( packageName == null && c == 'p' &&
+                        packageMatcher.region( lineStart, lineEnd ).matches() ) {
+                    packageName = packageMatcher.group( 1 );
+                } else if ( mayStartClassDeclaration( c ) &&
+                        classMatcher.region( lineStart, lineEnd ).matches() ) {
+                    className = classMatcher.group( "name" );
+                }
+            }
+
+            lineStart = nextLineStart;
+        }
+
+        return new SourceScanner( packageName == null ? "" : packageName, className,
+                Collections.unmodifiableSortedSet( dependencies ), invalidDeclaration );
+    }
+
+    /**
+     * @return the package declared by the code, or the empty String if it does not declare one
+     */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return the fully qualified name of the class declared by the code, or null if it's a snippet
+     */
+    public String getClassName() {
+        if ( className == null || packageName.isEmpty() ) {
+            return className;
+        }
+        return packageName + "." + className;
+    }
+
+    /**
+     * @return the dependencies declared by the code
+     * @throws RuntimeException if a dependency declaration is invalid
+     */
+    public SortedSet<Dependency> getDependencies() {
+        if ( invalidDeclaration != null ) {
+            throw invalidDeclaration;
+        }
+        return dependencies;
+    }
+
+    private static int firstNonWhitespace( String code, int start, int end ) {
+        int index = start;
+        while ( index < end && Character.isWhitespace( code.charAt( index ) ) ) {
+            index++;
+        }
+        return index;
+    }
+
+    // first letter of the class keyword or of a modifier allowed by JavaCode.CLASS_PATTERN
+    private static boolean mayStartClassDeclaration( char c ) {
+        return c == 'c' || c == 'p' || c == 's' || c == 'a' || c == 'f';
+    }
+}
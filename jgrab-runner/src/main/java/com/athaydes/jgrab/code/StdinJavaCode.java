@@ -6,11 +6,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.charset.Charset;
 import java.util.SortedSet;
-import java.util.stream.Stream;
 
 /**
  * A class that knows how to extract information from the source code of a Java file through the standard input.
@@ -19,30 +16,19 @@ public class StdinJavaCode implements JavaCode {
 
     private static final Logger logger = LoggerFactory.getLogger( StdinJavaCode.class );
 
-    private final String className;
-    private final String[] lines;
+    private final String code;
+    private final SourceScanner scanner;
 
     public StdinJavaCode() throws IOException {
-        this.lines = readLinesFromStdin();
-        this.className = JavaCode.extractClassNameFrom( lines );
-        logger.debug( "Class name: {}", className );
+        this.code = SourceScanner.read( System.in, Charset.defaultCharset() );
+        this.scanner = SourceScanner.scan( code );
+        logger.debug( "Class name: {}", scanner.getClassName() );
 
-        if ( className == null ) {
+        if ( scanner.getClassName() == null ) {
             throw new JGrabError( "Input is not a Java class" );
         }
     }
 
-    private static String[] readLinesFromStdin() {
-        Scanner scanner = new Scanner( System.in );
-        List<String> result = new ArrayList<>();
-
-        while ( scanner.hasNextLine() ) {
-            result.add( scanner.nextLine() );
-        }
-
-        return result.toArray( new String[ 0 ] );
-    }
-
     @Override
     public boolean isSnippet() {
         return false; // Java files must be classes
@@ -50,17 +36,17 @@ public class StdinJavaCode implements JavaCode {
 
     @Override
     public SortedSet<Dependency> extractDependencies() {
-        return Dependency.parseDependencies( Stream.of( lines ) );
+        return scanner.getDependencies();
     }
 
     @Override
     public String getClassName() {
-        return className;
+        return scanner.getClassName();
     }
 
     @Override
     public String getCode() {
-        return String.join( "\n", lines );
+        return code;
     }
 
     @Override
@@ -3,7 +3,6 @@ package com.athaydes.jgrab.code;
 import com.athaydes.jgrab.Dependency;
 
 import java.util.SortedSet;
-import java.util.stream.Stream;
 
 /**
  * A Java code snippet that can be executed.
@@ -11,28 +10,26 @@ import java.util.stream.Stream;
 public class StringJavaCode implements JavaCode {
 
     private final String code;
-    private final String className;
-    private final String[] codeLines;
+    private final SourceScanner scanner;
 
     public StringJavaCode( String code ) {
         this.code = code;
-        this.codeLines = code.split( "\n" );
-        this.className = JavaCode.extractClassNameFrom( codeLines );
+        this.scanner = SourceScanner.scan( code );
     }
 
     @Override
     public SortedSet<Dependency> extractDependencies() {
-        return Dependency.parseDependencies( Stream.of( codeLines ) );
+        return scanner.getDependencies();
     }
 
     @Override
     public String getClassName() {
-        return this.className;
+        return scanner.getClassName();
     }
 
     @Override
     public boolean isSnippet() {
-        return this.className == null;
+        return scanner.getClassName() == null;
     }
 
     @Override
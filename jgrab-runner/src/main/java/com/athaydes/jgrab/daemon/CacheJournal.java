@@ -0,0 +1,186 @@
+package com.athaydes.jgrab.daemon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the entries added to the {@link PersistentCache} since it was last saved.
+ * <p>
+ * Entries are written to the journal as soon as they are computed, so they survive a crash of the daemon.
+ * Writes are only forced to the storage device in batches (see {@link #sync()}) to keep appends cheap.
+ * <p>
+ * Each record is framed as {@code int length, int crc32, payload}, so that a record that was only partially
+ * written when the process died is detected and ignored.
+ */
+final class CacheJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger( CacheJournal.class );
+
+    private static final int SYNC_BATCH_SIZE = 16;
+
+    private final File file;
+    private FileChannel channel;
+    private int unsyncedRecords;
+    private int recordCount;
+
+    CacheJournal( File file ) {
+        this.file = file;
+    }
+
+    /**
+     * Read all valid records of the journal.
+     * <p>
+     * If the journal ends with an incomplete or corrupted record, it is truncated after the last valid record,
+     * so that records appended later can be replayed.
+     *
+     * @return the journal's records, in the order they were appended
+     */
+    synchronized List<DepsCacheFile.Record> replay() {
+        List<DepsCacheFile.Record> records = new ArrayList<>();
+        if ( !file.isFile() ) {
+            return records;
+        }
+        // nothing is discarded if the journal cannot even be read
+        long fileLength = 0;
+        int validLength = 0;
+        try {
+            var buffer = ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) );
+            fileLength = buffer.capacity();
+            while ( buffer.remaining() >= 2 * Integer.BYTES ) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if ( length < 0 || length > buffer.remaining() ) {
+                    logger.info( "Ignoring incomplete record at the end of the journal" );
+                    break;
+                }
+                var crc = new CRC32();
+                crc.update( buffer.array(), buffer.position(), length );
+                if ( ( int ) crc.getValue() != checksum ) {
+                    logger.warn( "Ignoring corrupted record in the journal and all records after it" );
+                    break;
+                }
+                var payload = buffer.slice();
+                payload.limit( length );
+                records.add( new DepsCacheFile.Record( DepsCacheFile.readString( payload ),
+                        DepsCacheFile.readString( payload ), DepsCacheFile.readString( payload ),
+                        payload.getLong(), payload.getInt() ) );
+                buffer.position( buffer.position() + length );
+                validLength = buffer.position();
+            }
+        } catch ( Exception e ) {
+            logger.warn( "Unable to read dependencies cache journal {}: {}", file, e.toString() );
+        }
+        if ( validLength < fileLength ) {
+            discardAfter( validLength );
+        }
+        recordCount = records.size();
+        logger.debug( "Replayed {} records from journal", records.size() );
+        return records;
+    }
+
+    /**
+     * Append a record to the journal.
+     * <p>
+     * The record is written immediately, but only forced to disk once a batch of records is ready,
+     * or when {@link #sync()} is called.
+     *
+     * @param record to append
+     */
+    synchronized void append( DepsCacheFile.Record record ) {
+        try {
+            var payload = new ByteArrayOutputStream( 256 );
+            try ( var out = new DataOutputStream( payload ) ) {
+                DepsCacheFile.writeString( out, record.hash );
+                DepsCacheFile.writeString( out, record.dependencies );
+                DepsCacheFile.writeString( out, record.libs );
+                out.writeLong( record.lastUsed );
+                out.writeInt( record.useCount );
+            }
+            byte[] bytes = payload.toByteArray();
+            var crc = new CRC32();
+            crc.update( bytes );
+
+            var frame = ByteBuffer.allocate( 2 * Integer.BYTES + bytes.length );
+            frame.putInt( bytes.length ).putInt( ( int ) crc.getValue() ).put( bytes ).flip();
+
+            var channel = channel();
+            while ( frame.hasRemaining() ) {
+                channel.write( frame );
+            }
+            recordCount++;
+            if ( ++unsyncedRecords >= SYNC_BATCH_SIZE ) {
+                sync();
+            }
+        } catch ( IOException e ) {
+            logger.warn( "Unable to append to dependencies cache journal {}: {}", file, e.toString() );
+        }
+    }
+
+    /**
+     * Force all appended records to the storage device.
+     */
+    synchronized void sync() {
+        if ( unsyncedRecords == 0 || channel == null ) {
+            return;
+        }
+        try {
+            channel.force( false );
+            logger.debug( "Synced {} journal records", unsyncedRecords );
+            unsyncedRecords = 0;
+        } catch ( IOException e ) {
+            logger.warn( "Unable to sync dependencies cache journal {}: {}", file, e.toString() );
+        }
+    }
+
+    /**
+     * @return the number of records in the journal.
+     */
+    synchronized int size() {
+        return recordCount;
+    }
+
+    /**
+     * Remove all records from the journal. Must only be called after its records have been saved elsewhere.
+     */
+    synchronized void truncate() throws IOException {
+        if ( channel != null ) {
+            channel.close();
+            channel = null;
+        }
+        Files.deleteIfExists( file.toPath() );
+        unsyncedRecords = 0;
+        recordCount = 0;
+    }
+
+    private void discardAfter( long validLength ) {
+        try {
+            var channel = channel();
+            channel.truncate( validLength );
+            channel.force( false );
+            logger.info( "Discarded invalid journal data after byte {}", validLength );
+        } catch ( IOException e ) {
+            logger.warn( "Unable to truncate dependencies cache journal {}: {}", file, e.toString() );
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if ( channel == null ) {
+            Files.createDirectories( file.getAbsoluteFile().getParentFile().toPath() );
+            channel = FileChannel.open( file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,55 @@
+package com.athaydes.jgrab.daemon;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The output streams of a client, and the way to tell it the exit status of its request.
+ * <p>
+ * Clients using the {@link ClientProtocol} receive separate stdout and stderr frames and the exit status, while
+ * clients using the old text protocol receive both streams together and never learn the exit status.
+ */
+final class ClientOutput {
+
+    final PrintStream out;
+    final PrintStream err;
+
+    // null for clients using the text protocol
+    private final DataOutputStream frames;
+
+    private ClientOutput( PrintStream out, PrintStream err, DataOutputStream frames ) {
+        this.out = out;
+        this.err = err;
+        this.frames = frames;
+    }
+
+    static ClientOutput framed( OutputStream stream ) {
+        var frames = new DataOutputStream( new BufferedOutputStream( stream ) );
+        return new ClientOutput(
+                new PrintStream( new Frames.FrameOutputStream( frames, ClientProtocol.STDOUT ), true ),
+                new PrintStream( new Frames.FrameOutputStream( frames, ClientProtocol.STDERR ), true ),
+                frames );
+    }
+
+    static ClientOutput text( OutputStream stream ) {
+        var out = new PrintStream( stream, true );
+        return new ClientOutput( out, out, null );
+    }
+
+    /**
+     * Complete the request.
+     *
+     * @param status exit status of the request
+     * @throws IOException if the status cannot be sent
+     */
+    void exit( int status ) throws IOException {
+        out.flush();
+        err.flush();
+        if ( frames != null ) {
+            Frames.writeInt( frames, ClientProtocol.EXIT, status );
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.athaydes.jgrab.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Protocol used between the jgrab-client and the daemon.
+ * <p>
+ * The client starts by sending the {@link #MAGIC} bytes and the protocol version (one byte), then sends
+ * its request as {@link Frames}:
+ * <pre>
+ * TOKEN, COMMAND, ARG*, SOURCE, END
+ * </pre>
+ * {@link #TOKEN} must be the first frame, so that clients without the current token are rejected before the
+ * rest of their request is read. The other frames may come in any order, but {@link #END} must be last, and
+ * requests are limited in size: see {@link #MAX_FRAME_LENGTH}, {@link #MAX_ARGS} and {@link #MAX_REQUEST_LENGTH}.
+ * After that, the client forwards its own stdin to the program as {@link #STDIN} frames (limited to
+ * {@link #MAX_FRAME_LENGTH} each), ending with an empty {@link #STDIN} frame. The daemon replies with
+ * {@link #STDOUT} and {@link #STDERR} frames as the program writes its output, and finally an {@link #EXIT} frame
+ * containing the int exit status of the request.
+ * <p>
+ * Clients that do not start with the magic bytes are using the older, line-based text protocol.
+ */
+final class ClientProtocol {
+
+    static final byte[] MAGIC = { 'J', 'G', 'R', 'B' };
+    static final int VERSION = 1;
+
+    // frames sent by the client
+    static final byte TOKEN = 1;
+    static final byte COMMAND = 2;
+    static final byte ARG = 3;
+    static final byte SOURCE = 6;
+    static final byte END = 7;
+    static final byte STDIN = 8;
+
+    // frames sent by the daemon
+    static final byte STDOUT = 16;
+    static final byte STDERR = 17;
+    static final byte EXIT = 18;
+
+    /**
+     * Maximum length of any frame sent by the client, except for {@link #SOURCE}.
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * Maximum number of {@link #ARG} frames in a request.
+     */
+    static final int MAX_ARGS = 1024;
+
+    /**
+     * Maximum total length of the frames of a request, including the {@link #SOURCE}.
+     */
+    static final int MAX_REQUEST_LENGTH = 32 * 1024 * 1024;
+
+    // commands
+    static final String RUN = "run";
+    static final String SNIPPET = "snippet";
+    static final String STOP = "stop";
+    static final String VERSION_COMMAND = "version";
+
+    private ClientProtocol() {
+    }
+
+    /**
+     * A request sent by a client.
+     */
+    static final class ClientRequest {
+        final String command;
+        final String[] args;
+        final String source;
+
+        ClientRequest( String command,
+                       String[] args,
+                       String source ) {
+            this.command = command;
+            this.args = args;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Thrown when a client sends an invalid request.
+     */
+    static class ProtocolException extends IOException {
+        ProtocolException( String message ) {
+            super( message );
+        }
+    }
+
+    /**
+     * Thrown when a client does not start its request with the current token.
+     */
+    static final class UnauthorizedException extends ProtocolException {
+        UnauthorizedException() {
+            super( "unauthorized" );
+        }
+    }
+
+    /**
+     * Check whether the client uses this protocol, without consuming any of its input.
+     *
+     * @param in client input
+     * @return true if the client uses this protocol, false if it uses the text protocol
+     * @throws IOException on errors reading the input
+     */
+    static boolean isUsedBy( BufferedInputStream in ) throws IOException {
+        in.mark( MAGIC.length );
+        var start = in.readNBytes( MAGIC.length );
+        in.reset();
+        return Arrays.equals( MAGIC, start );
+    }
+
+    /**
+     * Read a request.
+     *
+     * @param in    client input, starting with the {@link #MAGIC} bytes
+     * @param token the current authorization token
+     * @return the request
+     * @throws UnauthorizedException if the request does not start with the given token
+     * @throws ProtocolException     if the request is invalid
+     * @throws IOException           on errors reading the request
+     */
+    static ClientRequest readRequest( DataInputStream in, String token ) throws IOException {
+        in.readFully( new byte[ MAGIC.length ] );
+        int version = in.readUnsignedByte();
+        if ( version != VERSION ) {
+            throw new ProtocolException( "unsupported protocol version: " + version );
+        }
+
+        byte firstType = in.readByte();
+        var first = readData( in, firstType, MAX_FRAME_LENGTH );
+        if ( firstType != TOKEN || !token.equals( new String( first, UTF_8 ) ) ) {
+            throw new UnauthorizedException();
+        }
+
+        String command = null, source = "";
+        List<String> args = new ArrayList<>();
+        int remaining = MAX_REQUEST_LENGTH - first.length;
+
+        while ( true ) {
+            byte type = in.readByte();
+            int maxLength = type == SOURCE ? remaining : Math.min( MAX_FRAME_LENGTH, remaining );
+            var data = readData( in, type, maxLength );
+            remaining -= data.length;
+            var value = new String( data, UTF_8 );
+            switch ( type ) {
+                case COMMAND:
+                    command = value;
+                    break;
+                case ARG:
+                    if ( args.size() == MAX_ARGS ) {
+                        throw new ProtocolException( "too many arguments, the maximum is " + MAX_ARGS );
+                    }
+                    args.add( value );
+                    break;
+                case SOURCE:
+                    source = value;
+                    break;
+                case END:
+                    if ( command == null ) {
+                        throw new ProtocolException( "request is missing the command" );
+                    }
+                    return new ClientRequest( command, args.toArray( new String[ 0 ] ), source );
+                default:
+                    throw new ProtocolException( "unexpected frame type: " + type );
+            }
+        }
+    }
+
+    private static byte[] readData( DataInputStream in, byte type, int maxLength ) throws IOException {
+        int length = in.readInt();
+        if ( length < 0 || length > maxLength ) {
+            throw new ProtocolException( "invalid length of frame of type " + type + ": " + length +
+                    " (maximum is " + maxLength + ")" );
+        }
+        var data = new byte[ length ];
+        in.readFully( data );
+        return data;
+    }
+}
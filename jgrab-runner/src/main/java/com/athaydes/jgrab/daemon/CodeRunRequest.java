@@ -7,7 +7,7 @@ interface Request {
 }
 
 enum StatelessRequest implements Request {
-    DO_NOTHING, DIE
+    DO_NOTHING, FAIL, DIE
 }
 
 final class CodeRunRequest implements Request {
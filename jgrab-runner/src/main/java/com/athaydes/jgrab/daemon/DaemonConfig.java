@@ -0,0 +1,113 @@
+package com.athaydes.jgrab.daemon;
+
+import com.athaydes.jgrab.Env;
+
+import java.util.Map;
+
+/**
+ * Configuration of the JGrab daemon.
+ * <p>
+ * All settings are read from environment variables so that they can be given to the daemon by whatever process
+ * starts it, normally the jgrab-client.
+ */
+final class DaemonConfig {
+
+    static final String THREADS_VAR = "JGRAB_DAEMON_THREADS";
+    static final String QUEUE_SIZE_VAR = "JGRAB_DAEMON_QUEUE_SIZE";
+    static final String VIRTUAL_THREADS_VAR = "JGRAB_DAEMON_VIRTUAL_THREADS";
+    static final String WARM_UP_VAR = "JGRAB_DAEMON_WARM_UP";
+    static final String ISOLATED_WORKERS_VAR = "JGRAB_DAEMON_ISOLATED_WORKERS";
+    static final String WORKER_MAX_RUNS_VAR = "JGRAB_DAEMON_WORKER_MAX_RUNS";
+    static final String CDS_ARCHIVE_VAR = "JGRAB_CDS_ARCHIVE";
+    static final String COMPILER_WARM_UP_ROUNDS_VAR = "JGRAB_DAEMON_COMPILER_WARM_UP_ROUNDS";
+
+    /**
+     * Maximum number of programs that may run at the same time.
+     */
+    final int maxConcurrentRequests;
+
+    /**
+     * Maximum number of requests that may wait for a worker before new requests start being rejected.
+     */
+    final int maxQueuedRequests;
+
+    /**
+     * Whether to run requests on virtual threads (only honoured if the JVM supports them).
+     */
+    final boolean useVirtualThreads;
+
+    /**
+     * Whether to create the ClassLoaders of the most used classpaths in the background when the daemon starts.
+     */
+    final boolean warmUpClassLoaders;
+
+    /**
+     * Number of child JVMs used to run programs in isolation from the daemon (0 to run programs in the daemon).
+     */
+    final int isolatedWorkers;
+
+    /**
+     * Number of programs an isolated worker may run before it is replaced by a fresh one.
+     */
+    final int maxRunsPerWorker;
+
+    /**
+     * Whether to create the CDS archive in the background if it's missing or stale, and start isolated workers
+     * with it.
+     */
+    final boolean useCdsArchive;
+
+    /**
+     * Maximum number of times to compile the warm-up programs in the background when the daemon starts
+     * (0 to not warm up the compiler).
+     */
+    final int compilerWarmUpRounds;
+
+    DaemonConfig( int maxConcurrentRequests,
+                  int maxQueuedRequests,
+                  boolean useVirtualThreads,
+                  boolean warmUpClassLoaders,
+                  int isolatedWorkers,
+                  int maxRunsPerWorker,
+                  boolean useCdsArchive,
+                  int compilerWarmUpRounds ) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.useVirtualThreads = useVirtualThreads;
+        this.warmUpClassLoaders = warmUpClassLoaders;
+        this.isolatedWorkers = isolatedWorkers;
+        this.maxRunsPerWorker = maxRunsPerWorker;
+        this.useCdsArchive = useCdsArchive;
+        this.compilerWarmUpRounds = compilerWarmUpRounds;
+    }
+
+    static DaemonConfig fromEnvironment() {
+        return from( System.getenv() );
+    }
+
+    static DaemonConfig from( Map<String, String> env ) {
+        return new DaemonConfig(
+                Env.intValue( env, THREADS_VAR, Runtime.getRuntime().availableProcessors(), 1 ),
+                Env.intValue( env, QUEUE_SIZE_VAR, 64, 0 ),
+                Boolean.parseBoolean( env.getOrDefault( VIRTUAL_THREADS_VAR, "false" ) ),
+                Boolean.parseBoolean( env.getOrDefault( WARM_UP_VAR, "true" ) ),
+                Env.intValue( env, ISOLATED_WORKERS_VAR, 0, 0 ),
+                Env.intValue( env, WORKER_MAX_RUNS_VAR, 50, 1 ),
+                Boolean.parseBoolean( env.getOrDefault( CDS_ARCHIVE_VAR, "true" ) ),
+                Env.intValue( env, COMPILER_WARM_UP_ROUNDS_VAR, 20, 0 ) );
+    }
+
+    @Override
+    public String toString() {
+        return "DaemonConfig{" +
+                "maxConcurrentRequests=" + maxConcurrentRequests +
+                ", maxQueuedRequests=" + maxQueuedRequests +
+                ", useVirtualThreads=" + useVirtualThreads +
+                ", warmUpClassLoaders=" + warmUpClassLoaders +
+                ", isolatedWorkers=" + isolatedWorkers +
+                ", maxRunsPerWorker=" + maxRunsPerWorker +
+                ", useCdsArchive=" + useCdsArchive +
+                ", compilerWarmUpRounds=" + compilerWarmUpRounds +
+                '}';
+    }
+}
@@ -0,0 +1,280 @@
+package com.athaydes.jgrab.daemon;
+
+import com.athaydes.jgrab.JGrabHome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+/**
+ * The ways clients can connect to the daemon.
+ * <p>
+ * The daemon always listens on TCP port {@link #PORT}, and also on a Unix domain socket at {@link #socketFile()}
+ * if the JVM supports it (Java 16+). Local clients should prefer the Unix domain socket, which is faster to
+ * connect to, and fall back to TCP if it does not exist.
+ * <p>
+ * Once the daemon is ready to accept requests, it writes the {@link #readyFile()}, so that a client that has just
+ * started the daemon knows when to connect without polling the sockets.
+ */
+final class DaemonTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger( DaemonTransport.class );
+
+    static final int PORT = 5002;
+
+    private DaemonTransport() {
+    }
+
+    /**
+     * A connection to a client.
+     */
+    interface Connection extends Closeable {
+        InputStream input() throws IOException;
+
+        OutputStream output() throws IOException;
+
+        /**
+         * Limit how long each read may block from now on, if the transport supports it.
+         *
+         * @param timeoutMillis maximum time to wait for data
+         * @return true if reads are now limited, false if they may still block indefinitely
+         * @throws IOException if the limit cannot be set
+         */
+        boolean limitReads( int timeoutMillis ) throws IOException;
+    }
+
+    /**
+     * A server accepting client connections.
+     */
+    interface Listener extends Closeable {
+        Connection accept() throws IOException;
+    }
+
+    static File socketFile() {
+        return new File( JGrabHome.getDir(), "daemon.sock" );
+    }
+
+    static File readyFile() {
+        return new File( JGrabHome.getDir(), "daemon.ready" );
+    }
+
+    /**
+     * Signal that the daemon is ready, writing the daemon's PID and listeners to the {@link #readyFile()}.
+     *
+     * @param listeners the daemon is accepting connections on
+     */
+    static void signalReady( List<Listener> listeners ) {
+        var contents = new StringBuilder( "pid=" ).append( ProcessHandle.current().pid() ).append( '\n' );
+        for ( Listener listener : listeners ) {
+            contents.append( listener ).append( '\n' );
+        }
+        var readyFile = readyFile().toPath();
+        var tempFile = readyFile.resolveSibling( readyFile.getFileName() + ".tmp" );
+        try {
+            // the client must never see a partially written file
+            Files.writeString( tempFile, contents, StandardCharsets.UTF_8 );
+            Files.move( tempFile, readyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } catch ( IOException e ) {
+            logger.warn( "Unable to write daemon ready file: {}", e.toString() );
+        }
+    }
+
+    static void clearReady() {
+        try {
+            Files.deleteIfExists( readyFile().toPath() );
+        } catch ( IOException e ) {
+            logger.warn( "Unable to delete daemon ready file: {}", e.toString() );
+        }
+    }
+
+    static Listener tcp() throws IOException {
+        var serverSocket = new ServerSocket( PORT );
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                return new TcpConnection( serverSocket.accept() );
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+
+            @Override
+            public String toString() {
+                return "tcp=" + PORT;
+            }
+        };
+    }
+
+    /**
+     * Unix domain sockets are only available from Java 16, so they must be created reflectively as JGrab
+     * still targets Java 11.
+     *
+     * @return listener on the Unix domain socket, or null if it cannot be created
+     */
+    static Listener unix() {
+        var path = socketFile().toPath();
+        ServerSocketChannel channel;
+        try {
+            var addressType = Class.forName( "java.net.UnixDomainSocketAddress" );
+            var address = ( SocketAddress ) addressType.getMethod( "of", Path.class ).invoke( null, path );
+            channel = ( ServerSocketChannel ) ServerSocketChannel.class
+                    .getMethod( "open", ProtocolFamily.class )
+                    .invoke( null, StandardProtocolFamily.valueOf( "UNIX" ) );
+            bind( channel, address, path );
+        } catch ( ReflectiveOperationException | IllegalArgumentException e ) {
+            logger.info( "Unix domain sockets are not supported by this JVM ({}), using only TCP",
+                    System.getProperty( "java.version" ) );
+            return null;
+        } catch ( IOException e ) {
+            logger.warn( "Unable to listen on Unix domain socket at {}, using only TCP: {}", path, e.toString() );
+            return null;
+        }
+
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                return new ChannelConnection( channel.accept() );
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    channel.close();
+                } finally {
+                    Files.deleteIfExists( path );
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "unix=" + path;
+            }
+        };
+    }
+
+    private static void bind( ServerSocketChannel channel, SocketAddress address, Path path ) throws IOException {
+        try {
+            // the TCP port is already bound, so a socket file left here belongs to a daemon that is gone
+            Files.deleteIfExists( path );
+            channel.bind( address );
+        } catch ( IOException | RuntimeException e ) {
+            channel.close();
+            throw e;
+        }
+        try {
+            Files.setPosixFilePermissions( path, PosixFilePermissions.fromString( "rw-------" ) );
+        } catch ( IOException | UnsupportedOperationException e ) {
+            logger.debug( "Unable to restrict permissions of {}: {}", path, e.toString() );
+        }
+    }
+
+    private static final class TcpConnection implements Connection {
+        private final Socket socket;
+
+        TcpConnection( Socket socket ) {
+            this.socket = socket;
+        }
+
+        @Override
+        public InputStream input() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream output() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public boolean limitReads( int timeoutMillis ) throws IOException {
+            socket.setSoTimeout( timeoutMillis );
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Connection over a {@link SocketChannel}, which does not support read timeouts.
+     * <p>
+     * The streams use the channel directly because the streams returned by {@link java.nio.channels.Channels}
+     * may not allow a Thread to write while another is blocked reading, which programs reading stdin need.
+     */
+    private static final class ChannelConnection implements Connection {
+        private final SocketChannel channel;
+
+        ChannelConnection( SocketChannel channel ) {
+            this.channel = channel;
+        }
+
+        @Override
+        public InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    var b = new byte[ 1 ];
+                    return read( b, 0, 1 ) < 0 ? -1 : b[ 0 ] & 0xFF;
+                }
+
+                @Override
+                public int read( byte[] bytes, int offset, int length ) throws IOException {
+                    if ( length == 0 ) {
+                        return 0;
+                    }
+                    return channel.read( ByteBuffer.wrap( bytes, offset, length ) );
+                }
+            };
+        }
+
+        @Override
+        public OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write( int b ) throws IOException {
+                    write( new byte[]{ ( byte ) b }, 0, 1 );
+                }
+
+                @Override
+                public void write( byte[] bytes, int offset, int length ) throws IOException {
+                    var buffer = ByteBuffer.wrap( bytes, offset, length );
+                    while ( buffer.hasRemaining() ) {
+                        channel.write( buffer );
+                    }
+                }
+            };
+        }
+
+        @Override
+        public boolean limitReads( int timeoutMillis ) {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
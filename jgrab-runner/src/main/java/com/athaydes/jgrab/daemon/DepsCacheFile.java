@@ -0,0 +1,409 @@
+package com.athaydes.jgrab.daemon;
+
+import com.athaydes.jgrab.Dependency;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The file format of the {@link PersistentCache}.
+ * <p>
+ * The current format is binary, versioned, and designed to be memory-mapped:
+ * <pre>
+ * int magic, int version, int entryCount
+ * entryCount x (32-byte classpath hash, int entryOffset), sorted by hash
+ * entries: (string dependencies, string libs, long lastUsed, int useCount)
+ * </pre>
+ * Opening a file only reads its header, and entries are found with a binary search over the fixed-size index,
+ * so opening the cache does not depend on its size.
+ * <p>
+ * All offsets and lengths are checked before being used, so a corrupted file results in an empty cache or in
+ * cache misses, never in errors.
+ * <p>
+ * The older text format, with one line per classpath, can still be read so that existing caches are migrated
+ * the next time the cache is saved.
+ */
+final class DepsCacheFile {
+
+    private static final Logger logger = LoggerFactory.getLogger( DepsCacheFile.class );
+
+    private static final int MAGIC = 0x4A474443; // "JGDC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+    private static final int INDEX_RECORD_LENGTH = HASH_LENGTH + Integer.BYTES;
+    private static final int HEADER_LENGTH = 3 * Integer.BYTES;
+    private static final int USAGE_LENGTH = Long.BYTES + Integer.BYTES;
+
+    private static final DepsCacheFile EMPTY = new DepsCacheFile( null, 0, Map.of() );
+
+    private static final boolean CAN_MAP_FILES = !System.getProperty( "os.name", "" ).startsWith( "Windows" );
+
+    /**
+     * A raw cache entry.
+     */
+    static final class Record {
+        final String hash;
+        final String dependencies;
+        final String libs;
+        final long lastUsed;
+        final int useCount;
+
+        Record( String hash, String dependencies, String libs, long lastUsed, int useCount ) {
+            this.hash = hash;
+            this.dependencies = dependencies;
+            this.libs = libs;
+            this.lastUsed = lastUsed;
+            this.useCount = useCount;
+        }
+    }
+
+    /**
+     * Receives the usage statistics of cache entries.
+     */
+    @FunctionalInterface
+    interface UsageConsumer {
+        void accept( String hash, long lastUsed, int useCount );
+    }
+
+    // binary format
+    private final ByteBuffer data;
+    private final int entryCount;
+
+    // text format (only used for migration)
+    private final Map<String, Record> textRecords;
+
+    private DepsCacheFile( ByteBuffer data, int entryCount, Map<String, Record> textRecords ) {
+        this.data = data;
+        this.entryCount = entryCount;
+        this.textRecords = textRecords;
+    }
+
+    /**
+     * Open the given cache file.
+     *
+     * @param file cache file
+     * @return the opened file (empty if the file does not exist or cannot be read)
+     */
+    static DepsCacheFile open( File file ) {
+        if ( !file.isFile() ) {
+            logger.debug( "The provided path is not a file: {}", file );
+            return EMPTY;
+        }
+        try {
+            var data = readOnlyBuffer( file );
+            if ( data.remaining() >= HEADER_LENGTH && data.getInt( 0 ) == MAGIC ) {
+                if ( data.getInt( Integer.BYTES ) != FORMAT_VERSION ) {
+                    logger.warn( "Ignoring dependencies cache with unsupported version: {}", file );
+                    return EMPTY;
+                }
+                int entryCount = data.getInt( 2 * Integer.BYTES );
+                if ( entryCount < 0 || HEADER_LENGTH + ( long ) entryCount * INDEX_RECORD_LENGTH > data.limit() ) {
+                    logger.warn( "Ignoring corrupted dependencies cache (invalid entry count: {}): {}",
+                            entryCount, file );
+                    return EMPTY;
+                }
+                logger.debug( "Opened dependencies cache with {} entries", entryCount );
+                return new DepsCacheFile( data, entryCount, null );
+            }
+            return fromText( file );
+        } catch ( IOException e ) {
+            logger.warn( "Unable to read dependencies cache entries", e );
+            return EMPTY;
+        }
+    }
+
+    int size() {
+        return textRecords == null ? entryCount : textRecords.size();
+    }
+
+    /**
+     * Find the entry with the given hash.
+     *
+     * @param hash classpath hash, see {@link Dependency#hashOf(java.util.SortedSet)}
+     * @return the entry, or null if not found
+     */
+    Record find( String hash ) {
+        if ( textRecords != null ) {
+            return textRecords.get( hash );
+        }
+        byte[] key = hashBytes( hash );
+        if ( key == null ) {
+            return null;
+        }
+        int low = 0;
+        int high = entryCount - 1;
+        byte[] current = new byte[ HASH_LENGTH ];
+        while ( low <= high ) {
+            int middle = ( low + high ) >>> 1;
+            int position = HEADER_LENGTH + middle * INDEX_RECORD_LENGTH;
+            data.duplicate().position( position ).get( current );
+            int comparison = Arrays.compareUnsigned( current, key );
+            if ( comparison < 0 ) {
+                low = middle + 1;
+            } else if ( comparison > 0 ) {
+                high = middle - 1;
+            } else {
+                return readRecord( hash, data.getInt( position + HASH_LENGTH ) );
+            }
+        }
+        return null;
+    }
+
+    void forEach( Consumer<Record> action ) {
+        if ( textRecords != null ) {
+            textRecords.values().forEach( action );
+            return;
+        }
+        byte[] hash = new byte[ HASH_LENGTH ];
+        for ( int i = 0; i < entryCount; i++ ) {
+            int position = HEADER_LENGTH + i * INDEX_RECORD_LENGTH;
+            data.duplicate().position( position ).get( hash );
+            var record = readRecord( Base64.getUrlEncoder().encodeToString( hash ),
+                    data.getInt( position + HASH_LENGTH ) );
+            if ( record != null ) {
+                action.accept( record );
+            }
+        }
+    }
+
+    /**
+     * Visit the usage statistics of all entries, without reading their dependencies and libs.
+     *
+     * @param action to run for each entry
+     */
+    void forEachUsage( UsageConsumer action ) {
+        if ( textRecords != null ) {
+            textRecords.values().forEach( record ->
+                    action.accept( record.hash, record.lastUsed, record.useCount ) );
+            return;
+        }
+        byte[] hash = new byte[ HASH_LENGTH ];
+        var buffer = data.duplicate();
+        for ( int i = 0; i < entryCount; i++ ) {
+            int position = HEADER_LENGTH + i * INDEX_RECORD_LENGTH;
+            buffer.position( position ).get( hash );
+            var encodedHash = Base64.getUrlEncoder().encodeToString( hash );
+            if ( moveToEntry( buffer, data.getInt( position + HASH_LENGTH ) )
+                    && skipString( buffer ) && skipString( buffer ) && buffer.remaining() >= USAGE_LENGTH ) {
+                action.accept( encodedHash, buffer.getLong(), buffer.getInt() );
+            } else {
+                logger.warn( "Ignoring corrupted dependencies cache entry: {}", encodedHash );
+            }
+        }
+    }
+
+    /**
+     * Write the given records to a file in the binary format.
+     * <p>
+     * The file is replaced atomically where the filesystem supports it.
+     *
+     * @param file    to write
+     * @param records to write
+     * @throws IOException on errors writing the file
+     */
+    static void write( File file, Collection<Record> records ) throws IOException {
+        List<Record> sorted = new ArrayList<>( records.size() );
+        List<byte[]> hashes = new ArrayList<>( records.size() );
+        for ( Record record : records ) {
+            if ( hashBytes( record.hash ) != null ) {
+                sorted.add( record );
+            } else {
+                logger.warn( "Not saving cache entry with invalid hash: {}", record.hash );
+            }
+        }
+        sorted.sort( Comparator.comparing( ( Record record ) -> hashBytes( record.hash ), Arrays::compareUnsigned ) );
+
+        var entries = new ByteArrayOutputStream( 256 * sorted.size() );
+        var entriesOut = new DataOutputStream( entries );
+        int[] offsets = new int[ sorted.size() ];
+        int entriesStart = HEADER_LENGTH + sorted.size() * INDEX_RECORD_LENGTH;
+
+        for ( int i = 0; i < sorted.size(); i++ ) {
+            var record = sorted.get( i );
+            offsets[ i ] = entriesStart + entriesOut.size();
+            hashes.add( hashBytes( record.hash ) );
+            writeString( entriesOut, record.dependencies );
+            writeString( entriesOut, record.libs );
+            entriesOut.writeLong( record.lastUsed );
+            entriesOut.writeInt( record.useCount );
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories( dir.toPath() );
+
+        // write to a temp file, then move it to the actual cache file, so we don't lose the original in case of error
+        var tempFile = Files.createTempFile( dir.toPath(), "temp-cache", null );
+
+        try ( var out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tempFile ) ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( FORMAT_VERSION );
+            out.writeInt( sorted.size() );
+            for ( int i = 0; i < sorted.size(); i++ ) {
+                out.write( hashes.get( i ) );
+                out.writeInt( offsets[ i ] );
+            }
+            entries.writeTo( out );
+        }
+
+        try {
+            Files.move( tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        } catch ( IOException e ) {
+            logger.debug( "Unable to replace cache file atomically ({}), will delete it first", e.toString() );
+            Files.deleteIfExists( file.toPath() );
+            Files.move( tempFile, file.toPath() );
+        }
+    }
+
+    /**
+     * Read the entry at the given offset.
+     *
+     * @return the entry, or null if it is corrupted
+     */
+    private Record readRecord( String hash, int offset ) {
+        var buffer = data.duplicate();
+        if ( moveToEntry( buffer, offset ) ) {
+            var dependencies = readCheckedString( buffer );
+            var libs = dependencies == null ? null : readCheckedString( buffer );
+            if ( libs != null && buffer.remaining() >= USAGE_LENGTH ) {
+                return new Record( hash, dependencies, libs, buffer.getLong(), buffer.getInt() );
+            }
+        }
+        logger.warn( "Ignoring corrupted dependencies cache entry: {}", hash );
+        return null;
+    }
+
+    private boolean moveToEntry( ByteBuffer buffer, int offset ) {
+        // entries can only start after the index
+        if ( offset < HEADER_LENGTH + entryCount * INDEX_RECORD_LENGTH || offset > buffer.limit() ) {
+            return false;
+        }
+        buffer.position( offset );
+        return true;
+    }
+
+    private static DepsCacheFile fromText( File file ) throws IOException {
+        logger.info( "Reading dependencies cache in the old text format, it will be migrated on the next save" );
+        Map<String, Record> records = new HashMap<>();
+
+        for ( String entry : Files.readAllLines( file.toPath(), UTF_8 ) ) {
+            String[] parts = entry.split( " " );
+            // entries written before usage was recorded only have 2 parts
+            if ( parts.length == 2 || parts.length == 4 ) {
+                try {
+                    var deps = Stream.of( parts[ 0 ].split( "," ) )
+                            .map( Dependency::of )
+                            .collect( Collectors.toCollection( TreeSet::new ) );
+                    var hash = Dependency.hashOf( deps );
+                    records.put( hash, new Record( hash, parts[ 0 ], parts[ 1 ],
+                            parts.length == 4 ? Long.parseLong( parts[ 2 ] ) : 0L,
+                            parts.length == 4 ? Integer.parseInt( parts[ 3 ] ) : 0 ) );
+                } catch ( Exception e ) {
+                    logger.warn( "Invalid cache entry: {}", entry, e );
+                }
+            } else if ( !entry.trim().isEmpty() ) {
+                logger.info( "Ignoring cache entry because it has an unexpected format: {}", entry );
+            }
+        }
+
+        logger.debug( "Loaded {} cache entries", records.size() );
+
+        return new DepsCacheFile( null, 0, records );
+    }
+
+    private static ByteBuffer readOnlyBuffer( File file ) throws IOException {
+        try ( var channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            // on Windows, a mapped file cannot be replaced, which would stop the cache from ever being saved
+            if ( CAN_MAP_FILES ) {
+                return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            }
+            return ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) );
+        }
+    }
+
+    private static byte[] hashBytes( String hash ) {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode( hash );
+            return bytes.length == HASH_LENGTH ? bytes : null;
+        } catch ( IllegalArgumentException e ) {
+            return null;
+        }
+    }
+
+    static void writeString( DataOutputStream out, String value ) throws IOException {
+        byte[] bytes = value.getBytes( UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    /**
+     * Skip a string, if it fits in the buffer.
+     *
+     * @return true if the string was skipped, false if it is corrupted
+     */
+    private static boolean skipString( ByteBuffer buffer ) {
+        int length = checkedStringLength( buffer );
+        if ( length < 0 ) {
+            return false;
+        }
+        buffer.position( buffer.position() + length );
+        return true;
+    }
+
+    /**
+     * Read a string, if it fits in the buffer.
+     *
+     * @return the string, or null if it is corrupted
+     */
+    private static String readCheckedString( ByteBuffer buffer ) {
+        int length = checkedStringLength( buffer );
+        if ( length < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[ length ];
+        buffer.get( bytes );
+        return new String( bytes, UTF_8 );
+    }
+
+    /**
+     * Read the length of a string.
+     *
+     * @return the length, or -1 if the length or the string itself do not fit in the buffer
+     */
+    private static int checkedStringLength( ByteBuffer buffer ) {
+        if ( buffer.remaining() < Integer.BYTES ) {
+            return -1;
+        }
+        int length = buffer.getInt();
+        return length >= 0 && length <= buffer.remaining() ? length : -1;
+    }
+
+    static String readString( ByteBuffer buffer ) {
+        byte[] bytes = new byte[ buffer.getInt() ];
+        buffer.get( bytes );
+        return new String( bytes, UTF_8 );
+    }
+}
@@ -0,0 +1,184 @@
+package com.athaydes.jgrab.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames used by the daemon's protocols: {@code byte type, int length, length x byte}.
+ * <p>
+ * See {@link ClientProtocol} and {@link WorkerProtocol} for the frame types of each protocol.
+ */
+final class Frames {
+
+    /**
+     * Frames longer than this are considered to be corrupted.
+     */
+    static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private Frames() {
+    }
+
+    static final class Frame {
+        final byte type;
+        final byte[] data;
+
+        Frame( byte type, byte[] data ) {
+            this.type = type;
+            this.data = data;
+        }
+
+        int intValue() {
+            return ByteBuffer.wrap( data ).getInt();
+        }
+    }
+
+    /**
+     * An {@link OutputStream} that sends everything written to it as frames of the given type.
+     */
+    static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream channel;
+        private final byte type;
+
+        FrameOutputStream( DataOutputStream channel, byte type ) {
+            this.channel = channel;
+            this.type = type;
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            write( new byte[]{ ( byte ) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] bytes, int offset, int length ) throws IOException {
+            if ( length > 0 ) {
+                Frames.write( channel, type, bytes, offset, length );
+            }
+        }
+    }
+
+    /**
+     * An {@link InputStream} that reads the data of frames of the given type, as they are needed.
+     * <p>
+     * An empty frame marks the end of the stream. Any other frame type is an error.
+     */
+    static final class FrameInputStream extends InputStream {
+        private final DataInputStream channel;
+        private final byte type;
+        private final int maxLength;
+        private byte[] data = new byte[ 0 ];
+        private int position;
+        private boolean ended;
+
+        FrameInputStream( DataInputStream channel, byte type ) {
+            this( channel, type, MAX_LENGTH );
+        }
+
+        FrameInputStream( DataInputStream channel, byte type, int maxLength ) {
+            this.channel = channel;
+            this.type = type;
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if ( !fill() ) {
+                return -1;
+            }
+            return data[ position++ ] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read( byte[] bytes, int offset, int length ) throws IOException {
+            if ( length == 0 ) {
+                return 0;
+            }
+            if ( !fill() ) {
+                return -1;
+            }
+            int count = Math.min( length, data.length - position );
+            System.arraycopy( data, position, bytes, offset, count );
+            position += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return data.length - position;
+        }
+
+        /**
+         * Discard everything until the end of the stream, so the channel can be used for something else.
+         *
+         * @throws IOException on errors reading the channel
+         */
+        synchronized void skipToEnd() throws IOException {
+            while ( fill() ) {
+                position = data.length;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            while ( !ended && position == data.length ) {
+                var frame = Frames.read( channel, maxLength );
+                if ( frame.type != type ) {
+                    throw new IOException( "unexpected frame type: " + frame.type );
+                }
+                data = frame.data;
+                position = 0;
+                ended = data.length == 0;
+            }
+            return !ended;
+        }
+    }
+
+    static void write( DataOutputStream out, byte type, byte[] data, int offset, int length ) throws IOException {
+        // frames may be written by any Thread of the program being run
+        synchronized ( out ) {
+            out.writeByte( type );
+            out.writeInt( length );
+            out.write( data, offset, length );
+            out.flush();
+        }
+    }
+
+    static void writeInt( DataOutputStream out, byte type, int value ) throws IOException {
+        write( out, type, ByteBuffer.allocate( Integer.BYTES ).putInt( value ).array(), 0, Integer.BYTES );
+    }
+
+    /**
+     * Read the next frame.
+     *
+     * @param in to read from
+     * @return the frame
+     * @throws java.io.EOFException if the other side closed the stream
+     * @throws IOException          on errors reading the frame
+     */
+    static Frame read( DataInputStream in ) throws IOException {
+        return read( in, MAX_LENGTH );
+    }
+
+    /**
+     * Read the next frame, which may not be longer than the given maximum length.
+     *
+     * @param in        to read from
+     * @param maxLength maximum length of the frame's data
+     * @return the frame
+     * @throws java.io.EOFException if the other side closed the stream
+     * @throws IOException          on errors reading the frame
+     */
+    static Frame read( DataInputStream in, int maxLength ) throws IOException {
+        byte type = in.readByte();
+        int length = in.readInt();
+        if ( length < 0 || length > maxLength ) {
+            throw new IOException( "invalid frame length: " + length );
+        }
+        var data = new byte[ length ];
+        in.readFully( data );
+        return new Frame( type, data );
+    }
+}
@@ -0,0 +1,66 @@
+package com.athaydes.jgrab.daemon;
+
+import com.athaydes.jgrab.runner.JGrabRunner;
+import com.athaydes.jgrab.runner.ScriptExit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Main loop of an isolated worker JVM, started by the daemon's {@link IsolatedWorkerPool}.
+ * <p>
+ * The worker reads requests from its stdin and sends the output of the programs it runs to its stdout,
+ * as described in {@link WorkerProtocol}. It exits when its stdin is closed.
+ */
+public final class IsolatedWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger( IsolatedWorker.class );
+
+    private IsolatedWorker() {
+    }
+
+    public static void serve( JGrabDaemon.RunArgs runArgs ) throws IOException {
+        var channel = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( FileDescriptor.out ) ) );
+        var requests = new DataInputStream( new BufferedInputStream( new FileInputStream( FileDescriptor.in ) ) );
+
+        // the real stdout is the channel to the daemon, nothing else may write to it
+        var out = new PrintStream( new Frames.FrameOutputStream( channel, WorkerProtocol.STDOUT ), true );
+        var err = new PrintStream( new Frames.FrameOutputStream( channel, WorkerProtocol.STDERR ), true );
+        System.setOut( out );
+        System.setErr( err );
+        System.setIn( new ByteArrayInputStream( new byte[ 0 ] ) );
+        ScriptExit.interceptExits();
+
+        JGrabRunner.warmUpCompiler();
+        Frames.writeInt( channel, WorkerProtocol.READY, 0 );
+
+        WorkerProtocol.Request request;
+        while ( ( request = WorkerProtocol.readRequest( requests ) ) != null ) {
+            var current = request;
+            var stdin = new Frames.FrameInputStream( requests, WorkerProtocol.STDIN );
+            System.setIn( stdin );
+            int status = ScriptExit.run( () -> runArgs.accept( current.code, current.args, current.classpath ), err );
+            out.flush();
+            err.flush();
+            Frames.writeInt( channel, WorkerProtocol.DONE, status );
+
+            // the next request comes after the stdin of this one
+            stdin.skipToEnd();
+        }
+
+        logger.debug( "Daemon closed the channel, stopping isolated worker" );
+
+        // do not let Threads leaked by the programs keep the worker alive
+        System.exit( 0 );
+    }
+}
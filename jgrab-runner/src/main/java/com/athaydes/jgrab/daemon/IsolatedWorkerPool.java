@@ -0,0 +1,281 @@
+package com.athaydes.jgrab.daemon;
+
+import com.athaydes.jgrab.Classpath;
+import com.athaydes.jgrab.code.JavaCode;
+import com.athaydes.jgrab.runner.CdsArchive;
+import com.athaydes.jgrab.runner.JGrabError;
+import com.athaydes.jgrab.runner.JGrabOptions;
+import com.athaydes.jgrab.runner.JGrabRunner;
+import com.athaydes.jgrab.runner.ScriptExit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A pool of pre-warmed child JVMs that run programs in isolation from the daemon and from each other.
+ * <p>
+ * Each request is sent to an idle worker (see {@link IsolatedWorker}), so a program leaking Threads, changing
+ * static state or exiting the JVM cannot affect the daemon. Workers are replaced after running
+ * {@link DaemonConfig#maxRunsPerWorker} programs, or as soon as they fail, so later programs always start from
+ * a clean state. The replacement is started right away so that it warms up before it is needed.
+ * <p>
+ * The output of the programs is written to {@link System#out} and {@link System#err}, and their input is read from
+ * {@link System#in}, which the daemon routes to the client of the current request. A program that exits with a non-zero status ends with a
+ * {@link ScriptExit.ExitRequest}, as if it had run in the daemon.
+ */
+final class IsolatedWorkerPool implements JGrabDaemon.RunArgs, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger( IsolatedWorkerPool.class );
+
+    private final List<String> command;
+    private final int maxRunsPerWorker;
+    private final List<Worker> workers;
+    private final BlockingQueue<Worker> idleWorkers;
+    private volatile boolean closed;
+
+    IsolatedWorkerPool( int size, int maxRunsPerWorker, List<String> command ) {
+        this.command = command;
+        this.maxRunsPerWorker = maxRunsPerWorker;
+        this.workers = new ArrayList<>( size );
+        this.idleWorkers = new LinkedBlockingQueue<>();
+        for ( int i = 0; i < size; i++ ) {
+            var worker = new Worker();
+            worker.start();
+            workers.add( worker );
+            idleWorkers.add( worker );
+        }
+        logger.debug( "Started {} isolated worker JVMs", size );
+    }
+
+    static IsolatedWorkerPool create( DaemonConfig config ) {
+        List<String> command = new ArrayList<>();
+        command.add( Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString() );
+        if ( config.useCdsArchive ) {
+            command.addAll( CdsArchive.jvmOptions() );
+        }
+        command.add( JGrabRunner.COMPILER_EXPORTS_OPTION );
+        command.addAll( List.of( "-cp", System.getProperty( "java.class.path" ),
+                JGrabRunner.class.getName(), JGrabOptions.WORKER_OPTION ) );
+        return new IsolatedWorkerPool( config.isolatedWorkers, config.maxRunsPerWorker, command );
+    }
+
+    @Override
+    public void accept( JavaCode javaCode, String[] args, Classpath classpath ) {
+        Worker worker;
+        try {
+            worker = idleWorkers.take();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new JGrabError( "Interrupted while waiting for an isolated worker" );
+        }
+
+        int status;
+        try {
+            status = worker.run( javaCode, args, classpath );
+        } catch ( IOException e ) {
+            worker.exited = true;
+            throw new JGrabError( "Isolated worker failed: " + e );
+        } finally {
+            if ( worker.exited || worker.runs >= maxRunsPerWorker ) {
+                worker.stop();
+                if ( !closed ) {
+                    worker.start();
+                }
+            }
+            idleWorkers.add( worker );
+        }
+
+        // the program already reported its errors, only its status is left to report
+        if ( status != 0 ) {
+            throw new ScriptExit.ExitRequest( status );
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for ( Worker worker : workers ) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * A slot of the pool, holding the current worker process.
+     * <p>
+     * Only one Thread uses a slot at a time, as it must first be taken from the idle queue.
+     */
+    private final class Worker {
+        private volatile Process process;
+        private DataInputStream frames;
+        private DataOutputStream requests;
+        private boolean ready;
+        int runs;
+        boolean exited;
+
+        void start() {
+            try {
+                var newProcess = new ProcessBuilder( command )
+                        .redirectError( ProcessBuilder.Redirect.INHERIT )
+                        .start();
+                frames = new DataInputStream( new BufferedInputStream( newProcess.getInputStream() ) );
+                requests = new DataOutputStream( new BufferedOutputStream( newProcess.getOutputStream() ) );
+                ready = false;
+                exited = false;
+                runs = 0;
+                process = newProcess;
+            } catch ( IOException e ) {
+                logger.warn( "Unable to start isolated worker JVM: {}", e.toString() );
+            }
+        }
+
+        void stop() {
+            var current = process;
+            if ( current != null ) {
+                process = null;
+                current.destroy();
+            }
+        }
+
+        /**
+         * Run a program on this worker.
+         *
+         * @return the exit status of the program
+         * @throws IOException if the worker cannot be started or communicated with
+         */
+        int run( JavaCode javaCode, String[] args, Classpath classpath ) throws IOException {
+            if ( process == null ) {
+                start();
+                if ( process == null ) {
+                    throw new IOException( "unable to start worker JVM" );
+                }
+            }
+            awaitReady();
+            runs++;
+            var stdin = new StdinForwarder( System.in, requests );
+            try {
+                WorkerProtocol.writeRequest( requests, javaCode, args, classpath );
+                stdin.start();
+                while ( true ) {
+                    var frame = Frames.read( frames );
+                    switch ( frame.type ) {
+                        case WorkerProtocol.STDOUT:
+                            System.out.write( frame.data );
+                            break;
+                        case WorkerProtocol.STDERR:
+                            System.err.write( frame.data );
+                            break;
+                        case WorkerProtocol.DONE:
+                            System.out.flush();
+                            System.err.flush();
+                            return frame.intValue();
+                        default:
+                            throw new IOException( "unexpected frame type: " + frame.type );
+                    }
+                }
+            } catch ( EOFException e ) {
+                exited = true;
+                int exitCode = exitCode();
+                logger.info( "Isolated worker exited while running a program, exit code: {}", exitCode );
+                return exitCode;
+            } finally {
+                stdin.finish();
+            }
+        }
+
+        private void awaitReady() throws IOException {
+            try {
+                while ( !ready ) {
+                    var frame = Frames.read( frames );
+                    ready = frame.type == WorkerProtocol.READY;
+                }
+            } catch ( EOFException e ) {
+                throw new IOException( "worker JVM exited before it was ready, exit code: " + exitCode() );
+            }
+        }
+
+        private int exitCode() {
+            var current = process;
+            if ( current == null ) {
+                return -1;
+            }
+            try {
+                return current.waitFor();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Forwards the stdin of a request to a worker, until the stdin ends or the worker is done with the request.
+     */
+    private static final class StdinForwarder implements Runnable {
+        private final InputStream stdin;
+        private final DataOutputStream requests;
+        private boolean done;
+
+        StdinForwarder( InputStream stdin, DataOutputStream requests ) {
+            this.stdin = stdin;
+            this.requests = requests;
+        }
+
+        void start() {
+            // the new Thread inherits the stdin routing of the current Thread
+            var thread = new Thread( this, "jgrab-worker-stdin" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            var buffer = new byte[ 8192 ];
+            try {
+                int count;
+                while ( ( count = stdin.read( buffer ) ) > 0 ) {
+                    if ( !send( buffer, count ) ) {
+                        return;
+                    }
+                }
+            } catch ( IOException e ) {
+                logger.debug( "Unable to forward stdin to isolated worker: {}", e.toString() );
+            }
+            finish();
+        }
+
+        private synchronized boolean send( byte[] data, int length ) throws IOException {
+            if ( done ) {
+                return false;
+            }
+            Frames.write( requests, WorkerProtocol.STDIN, data, 0, length );
+            return true;
+        }
+
+        /**
+         * End the stdin of the request, if not ended yet. Nothing else is forwarded after this.
+         */
+        synchronized void finish() {
+            if ( !done ) {
+                done = true;
+                try {
+                    Frames.write( requests, WorkerProtocol.STDIN, new byte[ 0 ], 0, 0 );
+                } catch ( IOException e ) {
+                    logger.debug( "Unable to end stdin of isolated worker: {}", e.toString() );
+                }
+            }
+        }
+    }
+}
@@ -4,24 +4,39 @@ import com.athaydes.jgrab.Classpath;
 import com.athaydes.jgrab.code.JavaCode;
 import com.athaydes.jgrab.code.StringJavaCode;
 import com.athaydes.jgrab.jbuild.JBuildGrabber;
+import com.athaydes.jgrab.runner.CdsArchive;
 import com.athaydes.jgrab.runner.Grabber;
+import com.athaydes.jgrab.runner.JGrabError;
 import com.athaydes.jgrab.runner.JGrabOptions;
 import com.athaydes.jgrab.runner.JGrabRunner;
+import com.athaydes.jgrab.runner.ScriptExit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
- * JGrab daemon, a TCP socket server that runs in the background waiting for Java code to run.
+ * JGrab daemon, a socket server that runs in the background waiting for Java code to run.
+ * <p>
+ * Clients connect over TCP or a Unix domain socket, see {@link DaemonTransport}.
+ * <p>
+ * Each client is handled by a worker Thread, so that many programs can run concurrently.
+ * See {@link DaemonConfig} for the available settings.
  */
 public final class JGrabDaemon {
 
@@ -42,6 +57,10 @@ public final class JGrabDaemon {
             return thread;
         } );
         executor.scheduleAtFixedRate( JGrabDaemon::saveCache, 1, 1, TimeUnit.HOURS );
+        executor.scheduleWithFixedDelay( libsCache::flushJournal, 1, 1, TimeUnit.SECONDS );
+        JBuildGrabber.INSTANCE.onLatestVersionChange( ( previous, current ) ->
+                libsCache.replaceDependency( previous, current, grabber::grab ) );
+        executor.scheduleAtFixedRate( JGrabRunner::evictIdleClassLoaders, 10, 10, TimeUnit.MINUTES );
     }
 
     private static void saveCache() {
@@ -55,15 +74,33 @@ public final class JGrabDaemon {
     public static void start( RunArgs runArgs ) {
         new Thread( () -> {
             logger.debug( "Starting JGrab Daemon" );
-            ServerSocket serverSocket;
+            DaemonTransport.clearReady();
+            DaemonTransport.Listener tcpListener;
             try {
-                serverSocket = new ServerSocket( 5002 );
+                tcpListener = DaemonTransport.tcp();
             } catch ( Exception e ) {
                 logger.error( "Unable to start JGrab daemon!", e );
                 return;
             }
+            List<DaemonTransport.Listener> listeners = new ArrayList<>( 2 );
+            listeners.add( tcpListener );
+            var unixListener = DaemonTransport.unix();
+            if ( unixListener != null ) {
+                listeners.add( unixListener );
+            }
+
+            var config = DaemonConfig.fromEnvironment();
+
+            if ( config.warmUpClassLoaders ) {
+                startWarmUp();
+            }
 
-            JGrabRunner.populateClassLoaderCache( libsCache.loadCache().values() );
+            // from now on, each request's output is routed to its own client
+            RoutingPrintStream.install();
+            RoutingInputStream.install();
+
+            // programs calling System.exit must not stop the daemon
+            ScriptExit.interceptExits();
 
             String token;
             try {
@@ -73,79 +110,336 @@ public final class JGrabDaemon {
                 System.exit( 1 );
                 return;
             }
-            var running = true;
-            while ( running ) {
-                try ( Socket clientSocket = serverSocket.accept();
-                      final PrintStream out = new PrintStream( clientSocket.getOutputStream(), true );
-                      BufferedReader in = new BufferedReader(
-                              new InputStreamReader( clientSocket.getInputStream() ) ) ) {
-                    // the first line sent must be the current token
-                    if ( token.equals( in.readLine() ) ) {
-                        running = handleClient( in, out, runArgs );
-                    } else {
-                        logger.info( "Rejecting client as it did not present the current token" );
-                        out.println( "=== JGrab authorization error ===" );
-                        running = false;
+
+            var running = new AtomicBoolean( true );
+            Runnable stop = () -> {
+                if ( running.getAndSet( false ) ) {
+                    DaemonTransport.clearReady();
+                    try {
+                        // sleep a bit to allow the client to receive the response without errors
+                        Thread.sleep( 100 );
+                    } catch ( InterruptedException e ) {
+                        logger.trace( "Interrupted while closing server" );
+                    }
+                    for ( DaemonTransport.Listener listener : listeners ) {
+                        try {
+                            listener.close();
+                        } catch ( IOException e ) {
+                            logger.debug( "Exception closing server", e );
+                        }
                     }
-                } catch ( IOException e ) {
-                    logger.warn( "Problem handling client message", e );
                 }
+            };
+
+            var workers = WorkerPool.create( config, JGrabDaemon::rejectClient );
+
+            var isolatedWorkers = config.isolatedWorkers > 0 ? IsolatedWorkerPool.create( config ) : null;
+            RunArgs requestRunner = isolatedWorkers == null ? runArgs : isolatedWorkers;
+
+            Consumer<DaemonTransport.Listener> acceptClients = ( listener ) -> {
+                while ( running.get() ) {
+                    DaemonTransport.Connection connection;
+                    try {
+                        connection = listener.accept();
+                    } catch ( IOException e ) {
+                        if ( running.get() ) {
+                            logger.warn( "Problem accepting client connection", e );
+                        }
+                        continue;
+                    }
+                    workers.execute( new ClientTask( connection, token, requestRunner, stop ) );
+                }
+            };
+
+            if ( unixListener != null ) {
+                new Thread( () -> acceptClients.accept( unixListener ), "jgrab-daemon-unix" ).start();
+            }
+
+            DaemonTransport.signalReady( listeners );
+            logger.info( "JGrab daemon ready, listening on {}", listeners );
+
+            if ( config.useCdsArchive ) {
+                startCdsArchiveCreation();
+            }
+
+            // isolated workers warm up their own compiler, programs are not compiled by the daemon
+            if ( config.compilerWarmUpRounds > 0 && isolatedWorkers == null ) {
+                startCompilerWarmUp( config.compilerWarmUpRounds, workers );
+            }
+
+            acceptClients.accept( tcpListener );
+
+            // let the requests already accepted finish
+            workers.shutdown();
+            if ( isolatedWorkers != null ) {
+                try {
+                    workers.awaitTermination( 10, TimeUnit.SECONDS );
+                } catch ( InterruptedException e ) {
+                    logger.trace( "Interrupted while waiting for requests to finish" );
+                }
+                isolatedWorkers.close();
             }
             logger.info( "Stopped JGrab daemon" );
+        }, "jgrab-daemon" ).start();
+    }
+
+    /**
+     * Load the dependencies cache and create the ClassLoaders of the classpaths most likely to be used
+     * in the background, so the daemon can accept requests immediately.
+     */
+    private static void startWarmUp() {
+        var thread = new Thread( () -> {
+            var classpaths = libsCache.classpathsByPriority( JGrabRunner.classLoaderCacheSize() );
+            JGrabRunner.warmUpClassLoaderCache( classpaths );
+            logger.debug( "ClassLoader warm-up done" );
+        }, "jgrab-warm-up" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.start();
+    }
+
+    /**
+     * Compile and run sample programs in the background until the compiler is fast, so that the first requests
+     * do not pay for initializing and JIT-compiling it. The warm-up pauses while requests are running.
+     */
+    private static void startCompilerWarmUp( int maxRounds, ThreadPoolExecutor workers ) {
+        var thread = new Thread( () -> {
+            var startTime = System.currentTimeMillis();
+            var classpath = libsCache.classpathsByPriority( 1 ).stream().findFirst().orElse( null );
+            JGrabRunner.warmUpCompiler( maxRounds, classpath, () -> workers.getActiveCount() == 0 );
+            logger.debug( "Compiler warm-up took {}ms", System.currentTimeMillis() - startTime );
+        }, "jgrab-compiler-warm-up" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.start();
+    }
+
+    /**
+     * Create the CDS archive in the background if it's missing or stale, so that the next JVMs running JGrab
+     * start faster.
+     */
+    private static void startCdsArchiveCreation() {
+        if ( CdsArchive.isUpToDate() || !CdsArchive.isSupported() ) {
+            return;
+        }
+        var thread = new Thread( () -> {
             try {
-                // sleep a bit to allow the client to receive the response without errors
-                Thread.sleep( 100 );
-                serverSocket.close();
-            } catch ( IOException e ) {
-                logger.debug( "Exception closing server", e );
-            } catch ( InterruptedException e ) {
-                logger.trace( "Interrupted while closing server" );
+                logger.info( "Created CDS archive at {}", CdsArchive.create() );
+            } catch ( JGrabError e ) {
+                logger.warn( "{}", e.getMessage() );
             }
-        }, "jgrab-daemon" ).start();
+        }, "jgrab-cds-archive" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.start();
+    }
+
+    private static void rejectClient( Runnable task, ThreadPoolExecutor executor ) {
+        var connection = ( ( ClientTask ) task ).connection;
+        logger.info( "Rejecting client as all workers are busy" );
+        try ( connection ) {
+            var output = outputOf( connection );
+            output.err.println( "=== JGrab daemon is busy, try again later ===" );
+            output.exit( 1 );
+        } catch ( IOException e ) {
+            logger.debug( "Problem rejecting client", e );
+        }
+    }
+
+    private static ClientOutput outputOf( DaemonTransport.Connection connection ) throws IOException {
+        // only wait a little for the client to identify its protocol, this runs on the Thread accepting clients.
+        // Transports that cannot limit reads are only used by clients of the framed protocol.
+        boolean framed = true;
+        if ( connection.limitReads( 1000 ) ) {
+            var in = new BufferedInputStream( connection.input() );
+            try {
+                framed = ClientProtocol.isUsedBy( in );
+            } catch ( SocketTimeoutException e ) {
+                framed = false;
+            }
+        }
+        return framed
+                ? ClientOutput.framed( connection.output() )
+                : ClientOutput.text( connection.output() );
     }
 
     /**
-     * Handle the client synchronously.
+     * Handle a client using the {@link ClientProtocol}.
      *
      * @param in      client input
-     * @param out     client output
+     * @param stdin   stdin sent by the client after its request
+     * @param output  client output
+     * @param token   the current authorization token
      * @param runArgs args
      * @return true to continue, false to stop accepting connections
      * @throws IOException on IO errors
      */
-    private static boolean handleClient(
-            BufferedReader in,
-            PrintStream out,
-            RunArgs runArgs ) throws IOException {
-        var request = parseRequest( in, out );
-        if ( request == StatelessRequest.DO_NOTHING ) return true;
-        if ( request == StatelessRequest.DIE ) return false;
-        var codeRequest = ( CodeRunRequest ) request;
+    private static boolean handleFramedClient( DataInputStream in,
+                                               InputStream stdin,
+                                               ClientOutput output,
+                                               String token,
+                                               RunArgs runArgs ) throws IOException {
+        ClientProtocol.ClientRequest clientRequest;
+        try {
+            clientRequest = ClientProtocol.readRequest( in, token );
+        } catch ( ClientProtocol.UnauthorizedException e ) {
+            rejectUnauthorized( output );
+            return false;
+        } catch ( ClientProtocol.ProtocolException e ) {
+            logger.info( "Rejecting client request: {}", e.getMessage() );
+            output.err.println( "=== JGrab protocol error: " + e.getMessage() + " ===" );
+            output.exit( 2 );
+            return true;
+        }
 
-        logSourceCode( codeRequest.code );
+        logger.debug( "Client command: {}, args: {}", clientRequest.command, clientRequest.args );
+
+        Request request;
+        switch ( clientRequest.command ) {
+            case ClientProtocol.RUN:
+                request = new CodeRunRequest( new StringJavaCode( clientRequest.source ), clientRequest.args );
+                break;
+            case ClientProtocol.SNIPPET:
+                request = snippetRequest( clientRequest.source.trim(), output.err );
+                break;
+            case ClientProtocol.STOP:
+                request = stopRequest( output.out );
+                break;
+            case ClientProtocol.VERSION_COMMAND:
+                request = versionRequest( output.out );
+                break;
+            default:
+                output.err.println( "ERROR: unknown command: " + clientRequest.command );
+                request = StatelessRequest.FAIL;
+        }
+
+        return handleRequest( request, output, stdin, runArgs );
+    }
 
-        var deps = codeRequest.code.extractDependencies();
+    /**
+     * Discard the stdin a client may still be sending once its request is done, so that closing the socket
+     * does not reset the connection before the client reads the exit status.
+     */
+    private static void discardInput( DaemonTransport.Connection connection, Frames.FrameInputStream stdin ) {
+        try {
+            // without a timeout, a client that never ends its stdin would keep this Thread forever.
+            // Only TCP resets the connection when unread input is left, and it supports timeouts.
+            if ( connection.limitReads( 1000 ) ) {
+                stdin.skipToEnd();
+            }
+        } catch ( IOException e ) {
+            logger.trace( "Stopped discarding client input: {}", e.toString() );
+        }
+    }
+
+    /**
+     * Handle a client using the old text protocol.
+     *
+     * @param in      client input
+     * @param output  client output
+     * @param token   the current authorization token
+     * @param runArgs args
+     * @return true to continue, false to stop accepting connections
+     * @throws IOException on IO errors
+     */
+    private static boolean handleTextClient( InputStream in,
+                                             ClientOutput output,
+                                             String token,
+                                             RunArgs runArgs ) throws IOException {
+        var reader = new BufferedReader( new InputStreamReader( in ) );
+        // the first line sent must be the current token
+        if ( !token.equals( reader.readLine() ) ) {
+            rejectUnauthorized( output );
+            return false;
+        }
+        // the request is only complete once the client closes its output, nothing is left for stdin
+        return handleRequest( parseRequest( reader, output.out ), output, InputStream.nullInputStream(), runArgs );
+    }
 
-        logger.debug( "Dependencies to grab: {}", deps );
+    private static void rejectUnauthorized( ClientOutput output ) throws IOException {
+        logger.info( "Rejecting client as it did not present the current token" );
+        output.err.println( "=== JGrab authorization error ===" );
+        output.exit( 1 );
+    }
 
-        var classpath = libsCache.classpathOf( deps, () -> grabber.grab( deps ) );
+    /**
+     * Handle the request synchronously on the current worker Thread.
+     *
+     * @param request the client's request
+     * @param output  client output
+     * @param stdin   client input for the program
+     * @param runArgs args
+     * @return true to continue, false to stop accepting connections
+     * @throws IOException on IO errors
+     */
+    private static boolean handleRequest( Request request,
+                                          ClientOutput output,
+                                          InputStream stdin,
+                                          RunArgs runArgs ) throws IOException {
+        if ( request instanceof StatelessRequest ) {
+            output.exit( request == StatelessRequest.FAIL ? 1 : 0 );
+            return request != StatelessRequest.DIE;
+        }
+        var codeRequest = ( CodeRunRequest ) request;
 
-        System.setOut( out );
-        System.setErr( out );
+        logSourceCode( codeRequest.code );
 
-        // run this synchronously, which means only one program can run per daemon at a time
+        Classpath classpath;
         try {
-            runArgs.accept( codeRequest.code, codeRequest.args, classpath );
-        } catch ( Throwable t ) {
-            t.printStackTrace( out );
+            var deps = grabber.pinVersions( codeRequest.code.extractDependencies() );
+            logger.debug( "Dependencies to grab: {}", deps );
+            classpath = libsCache.classpathOf( deps, () -> grabber.grab( deps ) );
+        } catch ( RuntimeException e ) {
+            logger.warn( "Unable to grab dependencies", e );
+            output.err.println( "=== JGrab error: " +
+                    ( e.getMessage() == null ? e.toString() : e.getMessage() ) + " ===" );
+            output.exit( 1 );
+            return true;
+        }
+
+        RoutingPrintStream.routeCurrentThreadTo( output.out, output.err );
+        RoutingInputStream.routeCurrentThreadTo( stdin );
+
+        int status;
+        try {
+            status = ScriptExit.run( () -> runArgs.accept( codeRequest.code, codeRequest.args, classpath ),
+                    output.err );
         } finally {
-            System.setOut( System.out );
-            System.setErr( System.err );
+            RoutingPrintStream.clearCurrentThread();
+            RoutingInputStream.clearCurrentThread();
         }
 
+        logger.debug( "Program exited with status {}", status );
+        output.exit( status );
+
         return true;
     }
 
+    private static Request snippetRequest( String snippet, PrintStream err ) {
+        if ( snippet.isEmpty() ) {
+            err.println( "ERROR: no snippet provided to execute" );
+            return StatelessRequest.FAIL;
+        }
+        return new CodeRunRequest( new StringJavaCode( snippet ), new String[ 0 ] );
+    }
+
+    private static Request stopRequest( PrintStream out ) {
+        logger.info( "--stop option received, stopping JGrab Daemon" );
+        out.println( "=== JGrab Daemon stopped ===" );
+        return StatelessRequest.DIE;
+    }
+
+    private static Request versionRequest( PrintStream out ) {
+        logger.info( "--version option received" );
+        RoutingPrintStream.routeCurrentThreadTo( out );
+        try {
+            JGrabRunner.printVersion();
+        } finally {
+            RoutingPrintStream.clearCurrentThread();
+        }
+        return StatelessRequest.DO_NOTHING;
+    }
+
     private static Request parseRequest( BufferedReader in, PrintStream out ) throws IOException {
         String firstLine = null;
         String inputLine;
@@ -178,28 +472,15 @@ public final class JGrabDaemon {
             String input = ( firstLine + "\n" + messageBuilder ).trim();
 
             if ( input.equals( STOP_OPTION ) ) {
-                logger.info( "--stop option received, stopping JGrab Daemon" );
-                out.println( "=== JGrab Daemon stopped ===" );
-                return StatelessRequest.DIE;
+                return stopRequest( out );
             }
 
             if ( input.equals( VERSION_OPTION ) ) {
-                logger.info( "--version option received" );
-                System.setOut( out );
-                System.setErr( out );
-                JGrabRunner.printVersion();
-                return StatelessRequest.DO_NOTHING;
+                return versionRequest( out );
             }
 
             if ( input.startsWith( JGrabOptions.SNIPPET_OPTION ) ) {
-                String snippet = input.substring( JGrabOptions.SNIPPET_OPTION.length() );
-                if ( snippet.isEmpty() ) {
-                    out.println( "ERROR: no snippet provided to execute" );
-                    return StatelessRequest.DO_NOTHING;
-                } else {
-                    code = new StringJavaCode( snippet );
-                    args = new String[ 0 ];
-                }
+                return snippetRequest( input.substring( JGrabOptions.SNIPPET_OPTION.length() ), out );
             } else {
                 code = new StringJavaCode( input );
                 args = new String[ 0 ];
@@ -213,6 +494,44 @@ public final class JGrabDaemon {
                 "{}\n------------------------------------\n", source );
     }
 
+    private static final class ClientTask implements Runnable {
+        private final DaemonTransport.Connection connection;
+        private final String token;
+        private final RunArgs runArgs;
+        private final Runnable stopDaemon;
+
+        ClientTask( DaemonTransport.Connection connection, String token, RunArgs runArgs, Runnable stopDaemon ) {
+            this.connection = connection;
+            this.token = token;
+            this.runArgs = runArgs;
+            this.stopDaemon = stopDaemon;
+        }
+
+        @Override
+        public void run() {
+            var keepRunning = true;
+            try ( connection ) {
+                var in = new BufferedInputStream( connection.input() );
+                if ( ClientProtocol.isUsedBy( in ) ) {
+                    var data = new DataInputStream( in );
+                    var stdin = new Frames.FrameInputStream( data, ClientProtocol.STDIN,
+                            ClientProtocol.MAX_FRAME_LENGTH );
+                    keepRunning = handleFramedClient( data, stdin,
+                            ClientOutput.framed( connection.output() ), token, runArgs );
+                    discardInput( connection, stdin );
+                } else {
+                    keepRunning = handleTextClient( in,
+                            ClientOutput.text( connection.output() ), token, runArgs );
+                }
+            } catch ( IOException e ) {
+                logger.warn( "Problem handling client message", e );
+            }
+            if ( !keepRunning ) {
+                stopDaemon.run();
+            }
+        }
+    }
+
     @FunctionalInterface
     public interface RunArgs {
         void accept( JavaCode javaCode,
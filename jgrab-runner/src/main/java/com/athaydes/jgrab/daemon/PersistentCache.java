@@ -6,29 +6,54 @@ import com.athaydes.jgrab.JGrabHome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
- * A persistent cache for resolved dependencies
+ * A persistent cache for resolved dependencies.
+ * <p>
+ * Entries are only read from the cache file (see {@link DepsCacheFile}) when they are looked up, so that
+ * the cost of loading the cache does not grow with its size.
+ * <p>
+ * New entries are appended to a {@link CacheJournal} as soon as they are computed, and the journal is compacted
+ * into the cache file when the cache is saved, so that a crash does not lose entries computed since the last save.
+ * <p>
+ * This class is thread-safe. When several Threads need the same classpath at the same time, it is only computed
+ * once (by the first Thread to ask for it), while different classpaths can be computed in parallel.
  */
 final class PersistentCache {
 
     private static final Logger logger = LoggerFactory.getLogger( PersistentCache.class );
 
+    // number of journal records that triggers a compaction into the cache file
+    private static final int MAX_JOURNAL_SIZE = 64;
+
     private final File cacheFile;
+    private final CacheJournal journal;
     private final AtomicBoolean isCacheLoaded = new AtomicBoolean( false );
     private final AtomicBoolean hasChanged = new AtomicBoolean( false );
-    private final Map<String, Classpath> cache = new HashMap<>();
+
+    // contents of the cache file when it was opened
+    private volatile DepsCacheFile fileContents;
+
+    // entries looked up or computed since the cache file was opened
+    private final Map<String, Classpath> cache = new ConcurrentHashMap<>();
+    private final Map<String, Usage> usage = new ConcurrentHashMap<>();
+
+    // entries of the cache file that turned out to be invalid
+    private final Set<String> invalidEntries = ConcurrentHashMap.newKeySet();
+
+    // classpaths currently being computed, so that each one is only computed once
+    private final Map<String, CompletableFuture<Classpath>> inFlight = new ConcurrentHashMap<>();
 
     PersistentCache() {
         this( new File( JGrabHome.getDir(), "deps-cache" ) );
@@ -36,136 +61,374 @@ final class PersistentCache {
 
     PersistentCache( File cacheFile ) {
         this.cacheFile = cacheFile;
+        this.journal = new CacheJournal( new File( cacheFile.getPath() + ".journal" ) );
     }
 
-    void save() throws IOException {
+    synchronized void save() throws IOException {
         if ( !isCacheLoaded.get() ) {
             logger.debug( "The cache was not loaded, will not save the current cache" );
             return;
         }
-        if ( !hasChanged.get() ) {
+        // reset the flag before taking the snapshot so that concurrent changes are saved next time
+        if ( !hasChanged.getAndSet( false ) ) {
             logger.debug( "The cache will not be saved as it has not changed since last save" );
             return;
         }
+        try {
+            writeCacheFile();
+        } catch ( IOException | RuntimeException e ) {
+            hasChanged.set( true );
+            throw e;
+        }
+    }
+
+    private void writeCacheFile() throws IOException {
+
+        List<DepsCacheFile.Record> records = new ArrayList<>( fileContents.size() + cache.size() );
+
+        // entries that were not looked up are copied without being parsed
+        fileContents.forEach( record -> {
+            if ( !cache.containsKey( record.hash ) && !invalidEntries.contains( record.hash ) ) {
+                records.add( record );
+            }
+        } );
+
+        for ( var classpath : cache.values() ) {
+            records.add( recordOf( classpath ) );
+        }
 
-        if ( isCacheLoaded.get() && cache.isEmpty() ) {
+        if ( records.isEmpty() ) {
             logger.debug( "The cache is empty, will delete the cache file" );
             cacheFile.deleteOnExit();
+            journal.truncate();
             return;
         }
 
         logger.debug( "Saving cache to {}", cacheFile );
 
-        File dir = cacheFile.getParentFile();
-        if ( dir == null ) {
-            dir = new File( "." );
+        DepsCacheFile.write( cacheFile, records );
+
+        // all journal entries are now in the cache file
+        journal.truncate();
+
+        logger.info( "Dependencies cache saved at {}", cacheFile );
+    }
+
+    /**
+     * Get the classpath of the given dependencies, computing it only if it's not cached yet.
+     * <p>
+     * If another Thread is already computing the same classpath, this method waits for its result
+     * (including any error) instead of computing it again.
+     *
+     * @param dependencies to get the classpath for
+     * @param compute      function to resolve the dependencies' files if they are not cached
+     * @return the classpath
+     */
+    Classpath classpathOf( SortedSet<Dependency> dependencies,
+                           Supplier<List<File>> compute ) {
+        if ( dependencies.isEmpty() ) {
+            return Classpath.empty();
         }
 
-        dir.mkdirs();
+        ensureLoaded();
 
-        // write to this file, then move it to the actual cache file, so we don't lose the original in case of error
-        File tempCacheFile = new File( dir, "temp-cache" );
-        tempCacheFile.createNewFile();
+        var hash = Dependency.hashOf( dependencies );
+        var classpath = cache.get( hash );
 
-        try ( BufferedWriter writer = Files.newBufferedWriter( tempCacheFile.toPath(), StandardOpenOption.WRITE ) ) {
-            for ( var classpath : cache.values() ) {
-                String deps = classpath.dependencies.stream()
-                        .map( Dependency::canonicalNotation )
-                        .collect( Collectors.joining( "," ) );
-                String libs = classpath.resolvedArtifacts.stream()
-                        .map( File::getAbsolutePath )
-                        .collect( Collectors.joining( File.pathSeparator ) );
+        if ( classpath == null ) {
+            classpath = lookupOrCompute( hash, dependencies, compute );
+        } else {
+            recordUsage( hash );
+        }
+
+        hasChanged.set( true );
+
+        return classpath;
+    }
+
+    private Classpath lookupOrCompute( String hash,
+                                       SortedSet<Dependency> dependencies,
+                                       Supplier<List<File>> compute ) {
+        var future = new CompletableFuture<Classpath>();
+        var existing = inFlight.putIfAbsent( hash, future );
+
+        if ( existing != null ) {
+            logger.debug( "Waiting for classpath being computed by another request: {}", dependencies );
+            var classpath = await( existing );
+            recordUsage( hash );
+            return classpath;
+        }
 
-                writer.write( deps );
-                writer.write( ' ' );
-                writer.write( libs );
-                writer.newLine();
+        try {
+            // the classpath may have been computed since we last looked
+            var classpath = cache.get( hash );
+            if ( classpath == null ) {
+                classpath = classpathFromFile( hash );
+            }
+            if ( classpath == null ) {
+                classpath = new Classpath( dependencies, compute.get(), hash );
+                addComputed( classpath );
+            } else {
+                recordUsage( hash );
             }
+            future.complete( classpath );
+            return classpath;
+        } catch ( Throwable t ) {
+            future.completeExceptionally( t );
+            throw t;
+        } finally {
+            inFlight.remove( hash, future );
         }
+    }
 
-        boolean canMove = !cacheFile.exists() || cacheFile.delete();
+    private void recordUsage( String hash ) {
+        usage.compute( hash, ( h, current ) ->
+                ( current == null ? Usage.NEVER : current ).usedAt( System.currentTimeMillis() ) );
+    }
 
-        if ( canMove ) {
-            Files.move( tempCacheFile.toPath(), cacheFile.toPath() );
-            logger.info( "Dependencies cache saved at {}", cacheFile );
-            hasChanged.set( false );
-        } else {
-            logger.warn( "Unable to save cache to {}. The file could not be re-created. Cache was saved at {}",
-                    cacheFile, tempCacheFile );
+    // synchronized with save() so that the journal is never truncated before its entries are in the cache file
+    private synchronized void addComputed( Classpath classpath ) {
+        var classpathUsage = Usage.NEVER.usedAt( System.currentTimeMillis() );
+        cache.put( classpath.hash, classpath );
+        usage.put( classpath.hash, classpathUsage );
+        journal.append( recordOf( classpath, classpathUsage ) );
+    }
+
+    private static Classpath await( CompletableFuture<Classpath> future ) {
+        try {
+            return future.join();
+        } catch ( CompletionException e ) {
+            var cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw ( RuntimeException ) cause;
+            }
+            if ( cause instanceof Error ) {
+                throw ( Error ) cause;
+            }
+            throw e;
         }
     }
 
-    Classpath classpathOf( SortedSet<Dependency> dependencies,
-                           Supplier<List<File>> compute ) {
-        if ( dependencies.isEmpty() ) {
-            return Classpath.empty();
+    /**
+     * Update all entries that include the given dependency so that they use the replacement dependency instead.
+     * <p>
+     * The new entries are computed in the calling Thread, and take over the usage statistics of the entries they
+     * replace. The old entries are kept, they're only dropped once their jars disappear.
+     *
+     * @param current     dependency to replace
+     * @param replacement the new dependency
+     * @param compute     function to resolve the files of the updated entries
+     */
+    void replaceDependency( Dependency current,
+                            Dependency replacement,
+                            Function<SortedSet<Dependency>, List<File>> compute ) {
+        for ( var classpath : classpathsByPriority() ) {
+            if ( !classpath.dependencies.contains( current ) ) {
+                continue;
+            }
+            SortedSet<Dependency> dependencies = new TreeSet<>( classpath.dependencies );
+            dependencies.remove( current );
+            dependencies.add( replacement );
+            logger.debug( "Updating cache entry {} -> {}", classpath.dependencies, dependencies );
+            try {
+                var updated = classpathOf( dependencies, () -> compute.apply( dependencies ) );
+                usage.put( updated.hash, usage.getOrDefault( classpath.hash, Usage.NEVER ) );
+            } catch ( Exception e ) {
+                logger.warn( "Unable to update cache entry {}: {}", dependencies, e.toString() );
+            }
         }
+    }
 
-        if ( !isCacheLoaded.getAndSet( true ) ) {
-            cache.putAll( loadCache() );
+    /**
+     * Force the journaled entries to disk, compacting the journal into the cache file if it has grown too large.
+     * <p>
+     * This is meant to be called periodically, so that entries are synced in batches.
+     */
+    void flushJournal() {
+        journal.sync();
+        if ( journal.size() >= MAX_JOURNAL_SIZE ) {
+            logger.debug( "Compacting dependencies cache journal" );
+            try {
+                save();
+            } catch ( IOException e ) {
+                logger.warn( "Failed to compact dependencies cache journal", e );
+            }
         }
+    }
 
-        return cache.computeIfAbsent( Dependency.hashOf( dependencies ), ( hash ) -> {
-            hasChanged.set( true );
-            return new Classpath( dependencies, compute.get(), hash );
+    /**
+     * Get all cached classpaths, sorted so that the ones most likely to be used next come first.
+     *
+     * @return cached classpaths by priority
+     * @see #classpathsByPriority(int)
+     */
+    List<Classpath> classpathsByPriority() {
+        return classpathsByPriority( Integer.MAX_VALUE );
+    }
+
+    /**
+     * Get the cached classpaths most likely to be used next, the most likely first.
+     * <p>
+     * Each classpath's priority is the number of times it was used, decayed by half each week since
+     * it was last used, so that both frequently and recently used classpaths are favoured.
+     * <p>
+     * Entries are ranked on the usage statistics of the cache file, so only the returned classpaths are read.
+     *
+     * @param limit maximum number of classpaths to return
+     * @return cached classpaths by priority
+     */
+    List<Classpath> classpathsByPriority( int limit ) {
+        ensureLoaded();
+        Map<String, Usage> candidates = new HashMap<>( usage );
+        fileContents.forEachUsage( ( hash, lastUsed, useCount ) -> {
+            if ( !invalidEntries.contains( hash ) ) {
+                candidates.putIfAbsent( hash, new Usage( lastUsed, useCount ) );
+            }
         } );
+        var now = System.currentTimeMillis();
+        List<String> hashes = new ArrayList<>( candidates.keySet() );
+        hashes.sort( Comparator.comparingDouble( ( String hash ) ->
+                candidates.get( hash ).priorityAt( now ) ).reversed() );
+
+        List<Classpath> result = new ArrayList<>( Math.min( limit, hashes.size() ) );
+        for ( var hash : hashes ) {
+            if ( result.size() >= limit ) {
+                break;
+            }
+            var classpath = cache.get( hash );
+            if ( classpath == null ) {
+                classpath = classpathFromFile( hash );
+            }
+            if ( classpath != null ) {
+                result.add( classpath );
+            }
+        }
+        return result;
+    }
+
+    private void ensureLoaded() {
+        if ( !isCacheLoaded.get() ) {
+            synchronized ( this ) {
+                if ( !isCacheLoaded.get() ) {
+                    logger.debug( "Loading dependencies cache" );
+                    fileContents = DepsCacheFile.open( cacheFile );
+                    replayJournal();
+                    isCacheLoaded.set( true );
+                }
+            }
+        }
+    }
+
+    private void replayJournal() {
+        var records = journal.replay();
+        for ( var record : records ) {
+            var classpath = classpathOf( record );
+            if ( classpath != null ) {
+                cache.put( record.hash, classpath );
+                usage.put( record.hash, new Usage( record.lastUsed, record.useCount ) );
+            }
+        }
+        if ( !records.isEmpty() ) {
+            // the journal must be compacted into the cache file on the next save
+            hasChanged.set( true );
+        }
     }
 
+    /**
+     * Read the whole cache file without changing the state of this cache.
+     *
+     * @return the cached classpaths by hash
+     */
     Map<String, Classpath> loadCache() {
-        logger.debug( "Loading dependencies cache" );
-        var result = cacheFrom( loadCacheEntries() );
-        isCacheLoaded.set( true );
+        Map<String, Classpath> result = new HashMap<>();
+        DepsCacheFile.open( cacheFile ).forEach( record -> {
+            var classpath = classpathOf( record );
+            if ( classpath != null ) {
+                result.put( record.hash, classpath );
+            }
+        } );
         return result;
     }
 
-    private List<String> loadCacheEntries() {
-        List<String> cacheEntries = Collections.emptyList();
+    private Classpath classpathFromFile( String hash ) {
+        if ( invalidEntries.contains( hash ) ) {
+            return null;
+        }
+        var record = fileContents.find( hash );
+        if ( record == null ) {
+            return null;
+        }
+        var classpath = classpathOf( record );
+        if ( classpath == null ) {
+            invalidEntries.add( hash );
+            hasChanged.set( true );
+        } else {
+            cache.put( hash, classpath );
+            usage.putIfAbsent( hash, new Usage( record.lastUsed, record.useCount ) );
+        }
+        return classpath;
+    }
 
-        if ( cacheFile.isFile() ) {
-            try {
-                cacheEntries = Files.readAllLines( cacheFile.toPath(), StandardCharsets.UTF_8 );
-            } catch ( IOException e ) {
-                logger.warn( "Unable to read dependencies cache entries", e );
+    private static Classpath classpathOf( DepsCacheFile.Record record ) {
+        try {
+            var deps = Stream.of( record.dependencies.split( "," ) )
+                    .map( Dependency::of )
+                    .collect( Collectors.toCollection( TreeSet::new ) );
+
+            List<File> libs = Stream.of( record.libs.split( File.pathSeparator ) )
+                    .map( File::new )
+                    .collect( Collectors.toList() );
+
+            if ( libs.stream().allMatch( File::isFile ) ) {
+                logger.debug( "Loading dependency entry from cache: {} -> {}", deps, libs );
+                return new Classpath( deps, libs, record.hash );
+            } else {
+                logger.info( "Ignoring cache entry because not all lib files exist" );
             }
-        } else {
-            logger.debug( "The provided path is not a file: {}", cacheFile );
+        } catch ( Exception e ) {
+            logger.warn( "Invalid cache entry: {}", record.dependencies, e );
         }
+        return null;
+    }
 
-        logger.debug( "Loaded {} cache entries", cacheEntries.size() );
+    private DepsCacheFile.Record recordOf( Classpath classpath ) {
+        return recordOf( classpath, usage.getOrDefault( classpath.hash, Usage.NEVER ) );
+    }
 
-        return cacheEntries;
+    private static DepsCacheFile.Record recordOf( Classpath classpath, Usage classpathUsage ) {
+        String deps = classpath.dependencies.stream()
+                .map( Dependency::canonicalNotation )
+                .collect( Collectors.joining( "," ) );
+        String libs = classpath.resolvedArtifacts.stream()
+                .map( File::getAbsolutePath )
+                .collect( Collectors.joining( File.pathSeparator ) );
+        return new DepsCacheFile.Record( classpath.hash, deps, libs, classpathUsage.lastUsed, classpathUsage.count );
     }
 
-    private Map<String, Classpath> cacheFrom( List<String> cacheEntries ) {
-        Map<String, Classpath> cache = new HashMap<>();
+    /**
+     * Usage statistics of a cached classpath.
+     */
+    private static final class Usage {
+        static final Usage NEVER = new Usage( 0L, 0 );
 
-        for ( String entry : cacheEntries ) {
-            String[] parts = entry.split( " " );
-            if ( parts.length == 2 ) {
-                try {
-                    var deps = Stream.of( parts[ 0 ].split( "," ) )
-                            .map( Dependency::of )
-                            .collect( Collectors.toCollection( TreeSet::new ) );
+        private static final double WEEK_MILLIS = 7 * 24 * 60 * 60 * 1000.0;
 
-                    List<File> libs = Stream.of( parts[ 1 ].split( File.pathSeparator ) )
-                            .map( File::new )
-                            .collect( Collectors.toList() );
+        final long lastUsed;
+        final int count;
 
-                    if ( libs.stream().allMatch( File::isFile ) ) {
-                        logger.debug( "Loading dependency entry from cache: {} -> {}", deps, libs );
-                        cache.put( Dependency.hashOf( deps ), new Classpath( deps, libs ) );
-                    } else {
-                        logger.info( "Ignoring cache entry because not all lib files exist" );
-                    }
-                } catch ( Exception e ) {
-                    logger.warn( "Invalid cache entry: {}", entry, e );
-                }
-            } else if ( !entry.trim().isEmpty() ) {
-                logger.info( "Ignoring cache entry because it has an unexpected format: {}", entry );
-            }
+        Usage( long lastUsed, int count ) {
+            this.lastUsed = lastUsed;
+            this.count = count;
         }
 
-        return cache;
+        Usage usedAt( long time ) {
+            return new Usage( time, count + 1 );
+        }
+
+        double priorityAt( long now ) {
+            var ageInWeeks = Math.max( 0L, now - lastUsed ) / WEEK_MILLIS;
+            return count * Math.pow( 0.5, ageInWeeks );
+        }
     }
 
 }
@@ -0,0 +1,69 @@
+package com.athaydes.jgrab.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that reads from the input of the request being handled by the current Thread.
+ * <p>
+ * An instance of this class is installed as {@link System#in} once, when the daemon starts. As with
+ * {@link RoutingPrintStream}, the source of each Thread is inherited by the Threads it starts.
+ * Threads without a source read nothing.
+ */
+final class RoutingInputStream extends InputStream {
+
+    private static final InheritableThreadLocal<InputStream> currentSource = new InheritableThreadLocal<>();
+
+    private RoutingInputStream() {
+    }
+
+    /**
+     * Install a routing stream as {@link System#in}, if not installed yet.
+     */
+    static synchronized void install() {
+        if ( !( System.in instanceof RoutingInputStream ) ) {
+            System.setIn( new RoutingInputStream() );
+        }
+    }
+
+    /**
+     * Route the stdin of the current Thread, and of any Thread it starts, to the given source.
+     *
+     * @param source stdin of the current request
+     */
+    static void routeCurrentThreadTo( InputStream source ) {
+        currentSource.set( source );
+    }
+
+    /**
+     * Stop routing the input of the current Thread.
+     */
+    static void clearCurrentThread() {
+        currentSource.remove();
+    }
+
+    private static InputStream source() {
+        var source = currentSource.get();
+        return source == null ? InputStream.nullInputStream() : source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return source().read();
+    }
+
+    @Override
+    public int read( byte[] bytes, int offset, int length ) throws IOException {
+        return source().read( bytes, offset, length );
+    }
+
+    @Override
+    public int available() throws IOException {
+        return source().available();
+    }
+
+    @Override
+    public void close() {
+        // the routed streams are closed by their owners
+    }
+}
@@ -0,0 +1,241 @@
+package com.athaydes.jgrab.daemon;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * A {@link PrintStream} that writes to the output of the request being handled by the current Thread.
+ * <p>
+ * Instances of this class are installed as {@link System#out} and {@link System#err} once, when the daemon starts.
+ * The target of each Thread is inherited by the Threads it starts, so output from background Threads started by a
+ * program is also sent to the client that ran the program (or nowhere, once that client is gone), never to another
+ * client. Threads without a target write to the original stream.
+ * <p>
+ * No lock is taken by this class, the target streams are responsible for their own synchronization.
+ */
+final class RoutingPrintStream extends PrintStream {
+
+    private static final int OUT = 0;
+    private static final int ERR = 1;
+
+    // the targets of stdout and stderr, in this order
+    private static final InheritableThreadLocal<PrintStream[]> currentTargets = new InheritableThreadLocal<>();
+
+    private final PrintStream defaultTarget;
+    private final int stream;
+
+    private RoutingPrintStream( PrintStream defaultTarget, int stream ) {
+        super( defaultTarget, true );
+        this.defaultTarget = defaultTarget;
+        this.stream = stream;
+    }
+
+    /**
+     * Install routing streams as {@link System#out} and {@link System#err}, if not installed yet.
+     */
+    static synchronized void install() {
+        if ( !( System.out instanceof RoutingPrintStream ) ) {
+            System.setOut( new RoutingPrintStream( System.out, OUT ) );
+        }
+        if ( !( System.err instanceof RoutingPrintStream ) ) {
+            System.setErr( new RoutingPrintStream( System.err, ERR ) );
+        }
+    }
+
+    /**
+     * Route both stdout and stderr of the current Thread, and of any Thread it starts, to the given target.
+     *
+     * @param target output of the current request
+     */
+    static void routeCurrentThreadTo( PrintStream target ) {
+        routeCurrentThreadTo( target, target );
+    }
+
+    /**
+     * Route stdout and stderr of the current Thread, and of any Thread it starts, to the given targets.
+     *
+     * @param out stdout of the current request
+     * @param err stderr of the current request
+     */
+    static void routeCurrentThreadTo( PrintStream out, PrintStream err ) {
+        var targets = new PrintStream[ 2 ];
+        targets[ OUT ] = out;
+        targets[ ERR ] = err;
+        currentTargets.set( targets );
+    }
+
+    /**
+     * Stop routing the output of the current Thread.
+     */
+    static void clearCurrentThread() {
+        currentTargets.remove();
+    }
+
+    private PrintStream target() {
+        var targets = currentTargets.get();
+        return targets == null ? defaultTarget : targets[ stream ];
+    }
+
+    @Override
+    public void flush() {
+        target().flush();
+    }
+
+    @Override
+    public void close() {
+        // the routed streams are closed by their owners
+        flush();
+    }
+
+    @Override
+    public boolean checkError() {
+        return target().checkError();
+    }
+
+    @Override
+    public void write( int b ) {
+        target().write( b );
+    }
+
+    @Override
+    public void write( byte[] buf, int off, int len ) {
+        target().write( buf, off, len );
+    }
+
+    @Override
+    public void print( boolean b ) {
+        target().print( b );
+    }
+
+    @Override
+    public void print( char c ) {
+        target().print( c );
+    }
+
+    @Override
+    public void print( int i ) {
+        target().print( i );
+    }
+
+    @Override
+    public void print( long l ) {
+        target().print( l );
+    }
+
+    @Override
+    public void print( float f ) {
+        target().print( f );
+    }
+
+    @Override
+    public void print( double d ) {
+        target().print( d );
+    }
+
+    @Override
+    public void print( char[] s ) {
+        target().print( s );
+    }
+
+    @Override
+    public void print( String s ) {
+        target().print( s );
+    }
+
+    @Override
+    public void print( Object obj ) {
+        target().print( obj );
+    }
+
+    @Override
+    public void println() {
+        target().println();
+    }
+
+    @Override
+    public void println( boolean x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( char x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( int x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( long x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( float x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( double x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( char[] x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( String x ) {
+        target().println( x );
+    }
+
+    @Override
+    public void println( Object x ) {
+        target().println( x );
+    }
+
+    @Override
+    public PrintStream printf( String format, Object... args ) {
+        target().printf( format, args );
+        return this;
+    }
+
+    @Override
+    public PrintStream printf( Locale l, String format, Object... args ) {
+        target().printf( l, format, args );
+        return this;
+    }
+
+    @Override
+    public PrintStream format( String format, Object... args ) {
+        target().format( format, args );
+        return this;
+    }
+
+    @Override
+    public PrintStream format( Locale l, String format, Object... args ) {
+        target().format( l, format, args );
+        return this;
+    }
+
+    @Override
+    public PrintStream append( CharSequence csq ) {
+        target().append( csq );
+        return this;
+    }
+
+    @Override
+    public PrintStream append( CharSequence csq, int start, int end ) {
+        target().append( csq, start, end );
+        return this;
+    }
+
+    @Override
+    public PrintStream append( char c ) {
+        target().append( c );
+        return this;
+    }
+}
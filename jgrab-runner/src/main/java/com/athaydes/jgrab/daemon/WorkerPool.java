@@ -0,0 +1,83 @@
+package com.athaydes.jgrab.daemon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory of the thread pool used by the daemon to run client requests.
+ */
+final class WorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger( WorkerPool.class );
+
+    private WorkerPool() {
+    }
+
+    /**
+     * Create a pool that runs at most {@link DaemonConfig#maxConcurrentRequests} tasks concurrently, queueing up to
+     * {@link DaemonConfig#maxQueuedRequests} tasks. Further tasks are given to the rejection handler.
+     *
+     * @param config          daemon configuration
+     * @param rejectedHandler handler for tasks that cannot be accepted
+     * @return the pool
+     */
+    static ThreadPoolExecutor create( DaemonConfig config, RejectedExecutionHandler rejectedHandler ) {
+        BlockingQueue<Runnable> queue = config.maxQueuedRequests == 0
+                ? new SynchronousQueue<>()
+                : new ArrayBlockingQueue<>( config.maxQueuedRequests );
+
+        var pool = new ThreadPoolExecutor(
+                config.maxConcurrentRequests, config.maxConcurrentRequests,
+                30, TimeUnit.SECONDS, queue,
+                threadFactory( config.useVirtualThreads ),
+                rejectedHandler );
+
+        // let idle workers go away, it's common for the daemon to sit idle for a long time
+        pool.allowCoreThreadTimeOut( true );
+
+        logger.debug( "Created worker pool: {}", config );
+
+        return pool;
+    }
+
+    private static ThreadFactory threadFactory( boolean useVirtualThreads ) {
+        if ( useVirtualThreads ) {
+            var factory = virtualThreadFactory();
+            if ( factory != null ) {
+                return factory;
+            }
+        }
+
+        var count = new AtomicInteger( 0 );
+        return runnable -> new Thread( runnable, "jgrab-worker-" + count.incrementAndGet() );
+    }
+
+    /**
+     * Virtual Threads are only available from Java 21, so they must be created reflectively as JGrab
+     * still targets Java 11.
+     *
+     * @return factory of virtual threads, or null if they are not supported
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            var builderType = Class.forName( "java.lang.Thread$Builder" );
+            var builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            builder = builderType.getMethod( "name", String.class, long.class )
+                    .invoke( builder, "jgrab-worker-", 1L );
+            return ( ThreadFactory ) builderType.getMethod( "factory" ).invoke( builder );
+        } catch ( Exception e ) {
+            logger.warn( "Virtual Threads are not supported by this JVM ({}), using platform threads instead",
+                    System.getProperty( "java.version" ) );
+            return null;
+        }
+    }
+}
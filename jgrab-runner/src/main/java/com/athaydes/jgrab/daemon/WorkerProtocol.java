@@ -0,0 +1,119 @@
+package com.athaydes.jgrab.daemon;
+
+import com.athaydes.jgrab.Classpath;
+import com.athaydes.jgrab.Dependency;
+import com.athaydes.jgrab.code.JavaCode;
+import com.athaydes.jgrab.code.StringJavaCode;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Protocol used between the daemon and its isolated worker JVMs, over the worker's stdin and stdout.
+ * <p>
+ * The daemon sends requests:
+ * <pre>
+ * string code, int argCount, argCount x string, string classpathHash,
+ * int depCount, depCount x string, int jarCount, jarCount x string
+ * </pre>
+ * Each request is followed by the program's stdin, as {@link #STDIN} {@link Frames} ending with an empty frame.
+ * The daemon always ends the stdin of a request, at the latest when the worker is done with it.
+ * The worker sends {@link Frames}: a {@link #READY} frame once it is warmed up, then {@link #STDOUT} and
+ * {@link #STDERR} frames while running a request, and finally a {@link #DONE} frame whose payload is the int status
+ * of the run.
+ */
+final class WorkerProtocol {
+
+    static final byte READY = 0;
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte DONE = 3;
+    static final byte STDIN = 4;
+
+    private WorkerProtocol() {
+    }
+
+    static final class Request {
+        final JavaCode code;
+        final String[] args;
+        final Classpath classpath;
+
+        Request( JavaCode code, String[] args, Classpath classpath ) {
+            this.code = code;
+            this.args = args;
+            this.classpath = classpath;
+        }
+    }
+
+    static void writeRequest( DataOutputStream out,
+                              JavaCode code,
+                              String[] args,
+                              Classpath classpath ) throws IOException {
+        writeString( out, code.getCode() );
+        out.writeInt( args.length );
+        for ( String arg : args ) {
+            writeString( out, arg );
+        }
+        writeString( out, classpath.hash );
+        out.writeInt( classpath.dependencies.size() );
+        for ( Dependency dependency : classpath.dependencies ) {
+            writeString( out, dependency.canonicalNotation() );
+        }
+        out.writeInt( classpath.resolvedArtifacts.size() );
+        for ( File jar : classpath.resolvedArtifacts ) {
+            writeString( out, jar.getPath() );
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the next request.
+     *
+     * @param in to read from
+     * @return the request, or null if the daemon closed the channel
+     * @throws IOException on errors reading the request
+     */
+    static Request readRequest( DataInputStream in ) throws IOException {
+        String code;
+        try {
+            code = readString( in );
+        } catch ( EOFException e ) {
+            return null;
+        }
+        var args = new String[ in.readInt() ];
+        for ( int i = 0; i < args.length; i++ ) {
+            args[ i ] = readString( in );
+        }
+        var hash = readString( in );
+        var dependencies = new TreeSet<Dependency>();
+        for ( int i = in.readInt(); i > 0; i-- ) {
+            dependencies.add( Dependency.of( readString( in ) ) );
+        }
+        int jarCount = in.readInt();
+        List<File> jars = new ArrayList<>( jarCount );
+        for ( int i = 0; i < jarCount; i++ ) {
+            jars.add( new File( readString( in ) ) );
+        }
+        return new Request( new StringJavaCode( code ), args, new Classpath( dependencies, jars, hash ) );
+    }
+
+    private static void writeString( DataOutputStream out, String value ) throws IOException {
+        byte[] bytes = value.getBytes( UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException {
+        var bytes = new byte[ in.readInt() ];
+        in.readFully( bytes );
+        return new String( bytes, UTF_8 );
+    }
+}
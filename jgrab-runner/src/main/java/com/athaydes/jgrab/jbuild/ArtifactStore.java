@@ -0,0 +1,95 @@
+package com.athaydes.jgrab.jbuild;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed store of artifact files.
+ * <p>
+ * Each file is stored at {@code <dir>/<sha256 prefix>/<sha256 rest>/<file name>}, so an artifact is only stored
+ * once no matter how many classpaths include it, and artifacts with the same name but different contents
+ * (e.g. snapshots) never clash.
+ */
+final class ArtifactStore {
+
+    private static final Logger logger = LoggerFactory.getLogger( ArtifactStore.class );
+
+    private final File dir;
+
+    ArtifactStore( File dir ) {
+        this.dir = dir;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    /**
+     * Move the given file into the store.
+     * <p>
+     * If the store already contains a file with the same name and contents, the given file is deleted and
+     * the existing file is returned.
+     *
+     * @param file to add to the store
+     * @return the stored file
+     * @throws IOException if the file cannot be read or moved into the store
+     */
+    File add( File file ) throws IOException {
+        var checksum = sha256Of( file );
+        var entryDir = new File( new File( dir, checksum.substring( 0, 2 ) ), checksum.substring( 2 ) );
+        var stored = new File( entryDir, file.getName() );
+
+        if ( stored.isFile() ) {
+            logger.debug( "Artifact already in store: {}", stored );
+            Files.delete( file.toPath() );
+            return stored;
+        }
+
+        Files.createDirectories( entryDir.toPath() );
+
+        try {
+            Files.move( file.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        } catch ( AtomicMoveNotSupportedException e ) {
+            try {
+                Files.move( file.toPath(), stored.toPath() );
+            } catch ( FileAlreadyExistsException e2 ) {
+                // stored concurrently, contents are the same
+                Files.delete( file.toPath() );
+            }
+        }
+
+        logger.debug( "Added artifact to store: {}", stored );
+        return stored;
+    }
+
+    static String sha256Of( File file ) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "SHA-256 is not available", e );
+        }
+        var buffer = new byte[ 8192 ];
+        try ( InputStream in = Files.newInputStream( file.toPath() ) ) {
+            int count;
+            while ( ( count = in.read( buffer ) ) > 0 ) {
+                digest.update( buffer, 0, count );
+            }
+        }
+        var hex = new StringBuilder( 64 );
+        for ( byte b : digest.digest() ) {
+            hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return hex.toString();
+    }
+}
@@ -1,6 +1,7 @@
 package com.athaydes.jgrab.jbuild;
 
 import com.athaydes.jgrab.Dependency;
+import com.athaydes.jgrab.Env;
 import com.athaydes.jgrab.JGrabHome;
 import com.athaydes.jgrab.runner.Grabber;
 import com.athaydes.jgrab.runner.JGrabError;
@@ -10,56 +11,391 @@ import jbuild.artifact.file.FileArtifactRetriever;
 import jbuild.artifact.http.HttpArtifactRetriever;
 import jbuild.commands.FetchCommandExecutor;
 import jbuild.commands.InstallCommandExecutor;
+import jbuild.errors.ArtifactRetrievalError;
 import jbuild.log.JBuildLog;
-import jbuild.maven.MavenUtils;
 import jbuild.maven.Scope;
 import jbuild.util.Either;
 import jbuild.util.NonEmptyCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.toList;
-import static jbuild.artifact.file.ArtifactFileWriter.WriteMode.FLAT_DIR;
+import static jbuild.artifact.file.ArtifactFileWriter.WriteMode.MAVEN_REPOSITORY;
 
+/**
+ * {@link Grabber} based on JBuild.
+ * <p>
+ * Artifacts are fetched from the configured {@link Repositories}, in order.
+ * All grab operations share the same fetch pipeline: a single HTTP client (so connections are reused), a limit on
+ * the number of parallel downloads per repository (see {@link #DOWNLOAD_PARALLELISM_VAR}), de-duplication of
+ * artifacts being downloaded by concurrent operations, and a cache of the artifacts each repository does not have
+ * (see {@link #REPOSITORY_MISS_TTL_VAR}).
+ * <p>
+ * Grabbed jars are kept in a content-addressed {@link ArtifactStore}, shared by all dependency sets.
+ * Each dependency set is only recorded as a manifest listing the jars it needs from the store.
+ * <p>
+ * The {@link ResolvedGraph} of each individual dependency is also cached, so that a new combination of
+ * dependencies is normally computed by merging the graphs of its dependencies, only resolving the ones not seen
+ * before. If the graphs disagree on the version of an artifact, all dependencies are resolved together instead,
+ * so that the version conflict is resolved exactly as if no graphs had been cached.
+ * <p>
+ * The concrete version {@link Dependency#LATEST} resolves to is cached as well (see {@link #LATEST_VERSION_TTL_VAR}).
+ * Once the cached version expires, it is still used, but refreshed in the background.
+ * <p>
+ * In offline mode (see {@link #OFFLINE_VAR}), only the local Maven repository and the JGrab caches are used,
+ * so grabbing dependencies that are not available locally fails immediately.
+ */
 public class JBuildGrabber implements Grabber {
 
+    private static final Logger logger = LoggerFactory.getLogger( JBuildGrabber.class );
+
+    /**
+     * Environment variable that sets the maximum number of artifacts downloaded at the same time.
+     */
+    public static final String DOWNLOAD_PARALLELISM_VAR = "JGRAB_DOWNLOAD_PARALLELISM";
+
+    /**
+     * Environment variable that sets for how long, in minutes, a repository is not asked again for an artifact
+     * it did not have.
+     */
+    public static final String REPOSITORY_MISS_TTL_VAR = "JGRAB_REPOSITORY_MISS_TTL_MINUTES";
+
+    /**
+     * Environment variable that sets for how long, in minutes, the resolved latest version of a module is used
+     * before it is refreshed.
+     */
+    public static final String LATEST_VERSION_TTL_VAR = "JGRAB_LATEST_VERSION_TTL_MINUTES";
+
+    /**
+     * Environment variable that enables the offline mode if set to {@code true}.
+     */
+    public static final String OFFLINE_VAR = "JGRAB_OFFLINE";
+
     public static final JBuildGrabber INSTANCE = new JBuildGrabber(
             new File( JGrabHome.getDir(), "jbuild-cache" ) );
 
     private static final FilenameFilter JAR_FILTER = ( dir, name ) -> name.endsWith( ".jar" );
 
+    private static final String MANIFEST_EXTENSION = ".classpath";
+
     private final File cacheDir;
+    private final ArtifactStore store;
+    private final LatestVersions latestVersions;
+    private final Set<Dependency> refreshing = ConcurrentHashMap.newKeySet();
+    private final List<BiConsumer<Dependency, Dependency>> latestVersionListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor( runnable -> {
+        var thread = new Thread( runnable, "jgrab-latest-version-refresher" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        return thread;
+    } );
+    private final JBuildLog log;
+    private final FetchCommandExecutor<ArtifactRetrievalError> fetchCommand;
+    private final FetchCommandExecutor<ArtifactRetrievalError> offlineFetchCommand;
+    private volatile boolean offline = Boolean.parseBoolean( System.getenv( OFFLINE_VAR ) );
 
     public JBuildGrabber( File cacheDir ) {
+        this( cacheDir, Env.intValue( DOWNLOAD_PARALLELISM_VAR, 8, 1 ) );
+    }
+
+    public JBuildGrabber( File cacheDir, int downloadParallelism ) {
+        this( cacheDir, new JBuildLog( System.out, false ), downloadParallelism );
+    }
+
+    private JBuildGrabber( File cacheDir, JBuildLog log, int downloadParallelism ) {
+        this( cacheDir, log, retrieversOf( log, Repositories.load(), downloadParallelism ) );
+    }
+
+    /**
+     * Create a grabber that fetches artifacts from the given retrievers, in order.
+     *
+     * @param cacheDir   directory where grabbed dependencies are stored
+     * @param log        log for JBuild commands
+     * @param retrievers artifact retrievers, only the local ones are used in offline mode
+     */
+    JBuildGrabber( File cacheDir,
+                   JBuildLog log,
+                   List<RepositoryRetriever> retrievers ) {
         this.cacheDir = cacheDir;
+        this.store = new ArtifactStore( new File( cacheDir, "store" ) );
+        this.latestVersions = new LatestVersions( new File( cacheDir, "latest-versions" ),
+                Duration.ofMinutes( Env.intValue( LATEST_VERSION_TTL_VAR, 24 * 60, 1 ) ) );
+        this.log = log;
+        this.fetchCommand = new FetchCommandExecutor<>( log, NonEmptyCollection.of( retrievers ) );
+        var localRetrievers = retrievers.stream().filter( retriever -> retriever.isLocal ).collect( toList() );
+        this.offlineFetchCommand = localRetrievers.isEmpty()
+                ? null
+                : new FetchCommandExecutor<>( log, NonEmptyCollection.of( localRetrievers ) );
+    }
+
+    private static List<RepositoryRetriever> retrieversOf( JBuildLog log,
+                                                           List<Repositories.Repository> repositories,
+                                                           int downloadParallelism ) {
+        var missTtl = Duration.ofMinutes( Env.intValue( REPOSITORY_MISS_TTL_VAR, 30, 1 ) );
+        HttpClient httpClient = null;
+        List<RepositoryRetriever> result = new ArrayList<>( repositories.size() );
+        for ( var repository : repositories ) {
+            if ( repository.isLocal ) {
+                // local misses are cheap to check, and may be fixed by installing the artifact locally at any time
+                result.add( new RepositoryRetriever( new FileArtifactRetriever( Path.of( repository.location ) ),
+                        true, repository.timeout, Duration.ZERO ) );
+            } else {
+                if ( httpClient == null ) {
+                    httpClient = HttpClient.newBuilder()
+                            .followRedirects( HttpClient.Redirect.NORMAL )
+                            .connectTimeout( Duration.ofSeconds( 30 ) )
+                            .build();
+                }
+                result.add( new RepositoryRetriever( new SharedArtifactRetriever(
+                        new HttpArtifactRetriever( log, repository.location, httpClient ), downloadParallelism ),
+                        false, repository.timeout, missTtl ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Enable or disable the offline mode.
+     *
+     * @param offline whether to only grab dependencies available locally
+     */
+    public void setOffline( boolean offline ) {
+        if ( offline ) {
+            logger.info( "JGrab is running in offline mode, only local dependencies can be used" );
+        }
+        this.offline = offline;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Register a listener to be notified when the latest version of a module changes.
+     * <p>
+     * The listener is called on a background Thread with the dependency on the previous latest version,
+     * and the dependency on the new one.
+     *
+     * @param listener to notify
+     */
+    public void onLatestVersionChange( BiConsumer<Dependency, Dependency> listener ) {
+        latestVersionListeners.add( listener );
     }
 
     @Override
-    public List<File> grab( Collection<Dependency> toGrab ) {
-        var log = new JBuildLog( System.out, false );
+    public SortedSet<Dependency> pinVersions( SortedSet<Dependency> dependencies ) {
+        if ( dependencies.stream().noneMatch( Dependency::isLatest ) ) {
+            return dependencies;
+        }
+        SortedSet<Dependency> result = new TreeSet<>();
+        for ( Dependency dependency : dependencies ) {
+            result.add( dependency.isLatest() ? pinLatest( dependency ) : dependency );
+        }
+        return result;
+    }
+
+    private Dependency pinLatest( Dependency dependency ) {
+        var version = latestVersions.versionOf( dependency.group, dependency.module );
+        if ( version == null ) {
+            // never resolved, so there's no choice but to wait
+            version = resolveLatest( dependency );
+            if ( version == null ) {
+                return dependency;
+            }
+        } else if ( !offline && latestVersions.isStale( dependency.group, dependency.module ) ) {
+            refreshInBackground( dependency );
+        }
+        return dependency.withVersion( version );
+    }
+
+    private void refreshInBackground( Dependency dependency ) {
+        if ( !refreshing.add( dependency ) ) {
+            return;
+        }
+        refresher.execute( () -> {
+            try {
+                resolveLatest( dependency );
+            } catch ( Exception e ) {
+                logger.warn( "Unable to refresh the latest version of {}: {}", dependency.canonicalNotation(),
+                        e.toString() );
+            } finally {
+                refreshing.remove( dependency );
+            }
+        } );
+    }
+
+    private String resolveLatest( Dependency dependency ) {
+        logger.debug( "Resolving the latest version of {}", dependency.canonicalNotation() );
+        ResolvedGraph graph;
+        try ( var installation = new Installation( List.of( dependency ) ) ) {
+            graph = installation.complete();
+        } catch ( IOException e ) {
+            throw new JGrabError( "Unable to resolve the latest version of " + dependency.canonicalNotation() +
+                    ": " + e );
+        }
+
+        var node = graph.nodes.stream()
+                .filter( n -> n.group.equals( dependency.group ) && n.module.equals( dependency.module ) )
+                .findFirst();
+
+        if ( node.isEmpty() ) {
+            logger.warn( "Unable to find the version of {} in its own dependency graph", dependency.canonicalNotation() );
+            return null;
+        }
+
+        var version = node.get().version;
+        var pinned = dependency.withVersion( version );
 
-        var fetchCommand = new FetchCommandExecutor<>( log,
-                NonEmptyCollection.of( List.of(
-                        new FileArtifactRetriever( MavenUtils.mavenHome() ),
-                        new HttpArtifactRetriever( log, MavenUtils.MAVEN_CENTRAL_URL ) ) ) );
-        var outputDir = outputDirHashOf( new TreeSet<>( toGrab ) );
+        // the graph can be reused to grab the pinned dependency
+        try {
+            graph.write( graphFileOf( pinned ), store.getDir() );
+        } catch ( IOException e ) {
+            logger.warn( "Unable to cache dependency graph of {}: {}", pinned.canonicalNotation(), e.toString() );
+        }
+
+        var previous = latestVersions.record( dependency.group, dependency.module, version );
+        if ( previous != null && !previous.equals( version ) ) {
+            logger.info( "New version of {}: {} (was {})", dependency.canonicalNotation(), version, previous );
+            for ( var listener : latestVersionListeners ) {
+                listener.accept( dependency.withVersion( previous ), pinned );
+            }
+        }
+
+        return version;
+    }
+
+    @Override
+    public List<File> grab( Collection<Dependency> dependencies ) {
+        var toGrab = pinVersions( new TreeSet<>( dependencies ) );
+        var hash = hashOf( toGrab );
 
+        var outputDir = new File( cacheDir, hash );
         if ( outputDir.isDirectory() ) {
-            // the dir already exists, reuse that!
+            // written by an older version of JGrab, reuse that!
             return jarsIn( outputDir );
         }
 
-        var writer = new ArtifactFileWriter( outputDir, FLAT_DIR );
-        var result = new InstallCommandExecutor( log, fetchCommand, writer )
-                .installDependencyTree( artifacts( toGrab ), EnumSet.of( Scope.RUNTIME ), false, true, Set.of(), true )
-                .toCompletableFuture();
-        waitAndCheck( result );
-        return jarsIn( outputDir );
+        var manifest = new File( cacheDir, hash + MANIFEST_EXTENSION );
+        var graph = ResolvedGraph.read( manifest, store.getDir() );
+        if ( graph != null ) {
+            return graph.jars();
+        }
+
+        try {
+            graph = resolve( toGrab );
+            graph.write( manifest, store.getDir() );
+        } catch ( IOException e ) {
+            throw new JGrabError( "Unable to store grabbed dependencies: " + e );
+        }
+
+        return graph.jars();
+    }
+
+    private ResolvedGraph resolve( Collection<Dependency> toGrab ) throws IOException {
+        Map<Dependency, ResolvedGraph> graphs = new LinkedHashMap<>();
+        Map<Dependency, Installation> installations = new LinkedHashMap<>();
+
+        try {
+            for ( Dependency dependency : toGrab ) {
+                var graph = ResolvedGraph.read( graphFileOf( dependency ), store.getDir() );
+                if ( graph == null ) {
+                    // start all installations before waiting for any of them, so they run in parallel
+                    installations.put( dependency, new Installation( List.of( dependency ) ) );
+                } else {
+                    logger.debug( "Using cached dependency graph of {}", dependency );
+                    graphs.put( dependency, graph );
+                }
+            }
+            for ( var entry : installations.entrySet() ) {
+                var graph = entry.getValue().complete();
+                graph.write( graphFileOf( entry.getKey() ), store.getDir() );
+                graphs.put( entry.getKey(), graph );
+            }
+        } finally {
+            installations.values().forEach( Installation::close );
+        }
+
+        var merged = ResolvedGraph.merge( graphs.values() );
+        if ( merged != null ) {
+            return merged;
+        }
+
+        logger.debug( "Dependencies have conflicting versions, resolving them together: {}", toGrab );
+        try ( var installation = new Installation( toGrab ) ) {
+            return installation.complete();
+        }
+    }
+
+    private File graphFileOf( Dependency dependency ) {
+        return new File( new File( cacheDir, "graphs" ), Dependency.hashOf( new TreeSet<>( Set.of( dependency ) ) ) );
+    }
+
+    /**
+     * Installation of the dependency tree of some dependencies into a temporary directory.
+     */
+    private final class Installation implements AutoCloseable {
+
+        private final File stagingDir;
+        private final CompletableFuture<Either<Long, NonEmptyCollection<Throwable>>> result;
+
+        Installation( Collection<Dependency> toGrab ) throws IOException {
+            var fetch = offline ? offlineFetchCommand : fetchCommand;
+            if ( fetch == null ) {
+                throw new JGrabError( "JGrab is in offline mode, but no local repositories are configured" );
+            }
+            stagingDir = Files.createTempDirectory( cacheDir.toPath(), "staging-" ).toFile();
+            var writer = new ArtifactFileWriter( stagingDir, MAVEN_REPOSITORY );
+            result = new InstallCommandExecutor( log, fetch, writer )
+                    .installDependencyTree( artifacts( toGrab ), EnumSet.of( Scope.RUNTIME ), false, true, Set.of(), true )
+                    .toCompletableFuture();
+        }
+
+        ResolvedGraph complete() throws IOException {
+            try {
+                waitAndCheck( result );
+            } catch ( JGrabError e ) {
+                if ( offline ) {
+                    throw new JGrabError( e.getMessage() + "\nJGrab is in offline mode: only dependencies in the " +
+                            "local Maven repository or in the JGrab caches can be used." );
+                }
+                throw e;
+            }
+            return ResolvedGraph.fromRepository( stagingDir, store );
+        }
+
+        @Override
+        public void close() {
+            deleteRecursively( stagingDir );
+        }
+    }
+
+    private static void deleteRecursively( File file ) {
+        var children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                deleteRecursively( child );
+            }
+        }
+        if ( !file.delete() ) {
+            logger.debug( "Unable to delete {}", file );
+        }
     }
 
     private static void waitAndCheck( CompletableFuture<Either<Long, NonEmptyCollection<Throwable>>> result ) {
@@ -78,11 +414,11 @@ public class JBuildGrabber implements Grabber {
         throw new JGrabError( "Errors occurred while grabbing dependencies: " + errors );
     }
 
-    private File outputDirHashOf( SortedSet<Dependency> toGrab ) {
+    private String hashOf( SortedSet<Dependency> toGrab ) {
         //noinspection ResultOfMethodCallIgnored
         cacheDir.mkdirs();
 
-        return new File( cacheDir, Dependency.hashOf( toGrab ) );
+        return Dependency.hashOf( toGrab );
     }
 
     private static Set<? extends Artifact> artifacts( Collection<Dependency> toGrab ) {
@@ -0,0 +1,143 @@
+package com.athaydes.jgrab.jbuild;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Persistent cache of the concrete versions that {@code latest} resolved to, by {@code group:module}.
+ * <p>
+ * Each entry remembers when it was resolved, so that it can be refreshed once it is older than the TTL.
+ * Stale entries are still returned, so the caller never has to wait for a refresh.
+ */
+final class LatestVersions {
+
+    private static final Logger logger = LoggerFactory.getLogger( LatestVersions.class );
+
+    private static final class Entry {
+        final String version;
+        final long resolvedAt;
+
+        Entry( String version, long resolvedAt ) {
+            this.version = version;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    private final File file;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    // guarded by this, loaded lazily
+    private Map<String, Entry> entries;
+
+    LatestVersions( File file, Duration ttl ) {
+        this( file, ttl, System::currentTimeMillis );
+    }
+
+    LatestVersions( File file, Duration ttl, LongSupplier clock ) {
+        this.file = file;
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * @param group  of the module
+     * @param module name
+     * @return the version {@code latest} last resolved to, or null if it was never resolved
+     */
+    synchronized String versionOf( String group, String module ) {
+        var entry = entries().get( keyOf( group, module ) );
+        return entry == null ? null : entry.version;
+    }
+
+    /**
+     * @param group  of the module
+     * @param module name
+     * @return true if the module's latest version was never resolved, or was resolved longer than the TTL ago
+     */
+    synchronized boolean isStale( String group, String module ) {
+        var entry = entries().get( keyOf( group, module ) );
+        return entry == null || clock.getAsLong() - entry.resolvedAt >= ttlMillis;
+    }
+
+    /**
+     * Record the version {@code latest} currently resolves to.
+     *
+     * @param group   of the module
+     * @param module  name
+     * @param version the latest version
+     * @return the version previously recorded, or null if there was none
+     */
+    synchronized String record( String group, String module, String version ) {
+        var previous = entries().put( keyOf( group, module ), new Entry( version, clock.getAsLong() ) );
+        save();
+        return previous == null ? null : previous.version;
+    }
+
+    private Map<String, Entry> entries() {
+        if ( entries == null ) {
+            entries = load();
+        }
+        return entries;
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> result = new HashMap<>();
+        if ( !file.isFile() ) {
+            return result;
+        }
+        try {
+            for ( String line : Files.readAllLines( file.toPath(), UTF_8 ) ) {
+                var parts = line.split( " " );
+                if ( parts.length == 3 ) {
+                    try {
+                        result.put( parts[ 0 ], new Entry( parts[ 1 ], Long.parseLong( parts[ 2 ] ) ) );
+                    } catch ( NumberFormatException e ) {
+                        logger.info( "Ignoring invalid latest version entry: {}", line );
+                    }
+                } else if ( !line.isBlank() ) {
+                    logger.info( "Ignoring invalid latest version entry: {}", line );
+                }
+            }
+        } catch ( IOException e ) {
+            logger.warn( "Unable to read latest versions cache {}: {}", file, e.toString() );
+        }
+        return result;
+    }
+
+    private void save() {
+        var contents = entries.entrySet().stream()
+                .map( entry -> entry.getKey() + ' ' + entry.getValue().version + ' ' + entry.getValue().resolvedAt )
+                .collect( Collectors.joining( "\n" ) );
+        try {
+            var dir = file.getAbsoluteFile().getParentFile().toPath();
+            Files.createDirectories( dir );
+            var tempFile = Files.createTempFile( dir, file.getName(), ".tmp" );
+            Files.write( tempFile, contents.getBytes( UTF_8 ) );
+            try {
+                Files.move( tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+            } catch ( AtomicMoveNotSupportedException e ) {
+                Files.move( tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+        } catch ( IOException e ) {
+            logger.warn( "Unable to save latest versions cache {}: {}", file, e.toString() );
+        }
+    }
+
+    private static String keyOf( String group, String module ) {
+        return group + ':' + module;
+    }
+}
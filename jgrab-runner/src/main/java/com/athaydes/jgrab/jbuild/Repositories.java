@@ -0,0 +1,132 @@
+package com.athaydes.jgrab.jbuild;
+
+import com.athaydes.jgrab.JGrabHome;
+import com.athaydes.jgrab.runner.JGrabError;
+import jbuild.maven.MavenUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The ordered list of repositories used to grab dependencies.
+ * <p>
+ * The list is read from the {@link #REPOSITORIES_VAR} environment variable (entries separated by commas) or,
+ * if that's not set, from the {@code repositories} file in the JGrab home directory (one entry per line,
+ * {@code #} starts a comment). Each entry has the form:
+ * <pre>
+ * location [timeout=seconds]
+ * </pre>
+ * where location is a http(s) URL, a local directory in the Maven repository layout, or one of the aliases
+ * {@value #MAVEN_LOCAL} and {@value #MAVEN_CENTRAL}.
+ * <p>
+ * Without configuration, the local Maven repository and Maven Central are used, in this order.
+ */
+final class Repositories {
+
+    private static final Logger logger = LoggerFactory.getLogger( Repositories.class );
+
+    static final String REPOSITORIES_VAR = "JGRAB_REPOSITORIES";
+    static final String MAVEN_LOCAL = "maven-local";
+    static final String MAVEN_CENTRAL = "maven-central";
+
+    private static final Duration DEFAULT_HTTP_TIMEOUT = Duration.ofSeconds( 30 );
+
+    /**
+     * A repository entry.
+     */
+    static final class Repository {
+        final String location;
+        final boolean isLocal;
+
+        /**
+         * Maximum time to wait for an artifact, or null to wait for as long as it takes.
+         */
+        final Duration timeout;
+
+        Repository( String location, boolean isLocal, Duration timeout ) {
+            this.location = location;
+            this.isLocal = isLocal;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public String toString() {
+            return location + ( timeout == null ? "" : " timeout=" + timeout.getSeconds() );
+        }
+    }
+
+    static List<Repository> load() {
+        var envValue = System.getenv( REPOSITORIES_VAR );
+        if ( envValue != null && !envValue.isBlank() ) {
+            return parse( envValue.replace( ',', '\n' ), REPOSITORIES_VAR );
+        }
+        var file = new File( JGrabHome.getDir(), "repositories" );
+        if ( file.isFile() ) {
+            try {
+                return parse( Files.readString( file.toPath(), UTF_8 ), file.getPath() );
+            } catch ( IOException e ) {
+                throw new JGrabError( "Unable to read repositories file " + file + ": " + e );
+            }
+        }
+        return parse( MAVEN_LOCAL + '\n' + MAVEN_CENTRAL, "defaults" );
+    }
+
+    static List<Repository> parse( String spec, String source ) {
+        List<Repository> result = new ArrayList<>();
+        for ( String line : spec.split( "\n" ) ) {
+            var commentStart = line.indexOf( '#' );
+            var entry = ( commentStart < 0 ? line : line.substring( 0, commentStart ) ).trim();
+            if ( !entry.isEmpty() ) {
+                result.add( parseEntry( entry, source ) );
+            }
+        }
+        if ( result.isEmpty() ) {
+            throw new JGrabError( "No repositories configured in " + source );
+        }
+        logger.debug( "Using repositories from {}: {}", source, result );
+        return result;
+    }
+
+    private static Repository parseEntry( String entry, String source ) {
+        var parts = entry.split( "\\s+" );
+        Duration timeout = null;
+        for ( int i = 1; i < parts.length; i++ ) {
+            if ( parts[ i ].startsWith( "timeout=" ) ) {
+                try {
+                    timeout = Duration.ofSeconds( Long.parseLong( parts[ i ].substring( "timeout=".length() ) ) );
+                } catch ( NumberFormatException e ) {
+                    throw new JGrabError( "Invalid repository timeout in " + source + ": " + entry );
+                }
+            } else {
+                throw new JGrabError( "Invalid repository option in " + source + ": " + entry );
+            }
+        }
+
+        var location = parts[ 0 ];
+        if ( location.equals( MAVEN_LOCAL ) ) {
+            location = MavenUtils.mavenHome().toString();
+        } else if ( location.equals( MAVEN_CENTRAL ) ) {
+            location = MavenUtils.MAVEN_CENTRAL_URL;
+        }
+
+        if ( location.startsWith( "http://" ) || location.startsWith( "https://" ) ) {
+            return new Repository( location, false, timeout == null ? DEFAULT_HTTP_TIMEOUT : timeout );
+        }
+
+        if ( location.startsWith( "file:" ) ) {
+            location = location.substring( "file:".length() );
+        }
+        if ( location.startsWith( "~/" ) ) {
+            location = System.getProperty( "user.home" ) + location.substring( 1 );
+        }
+        return new Repository( new File( location ).getAbsolutePath(), true, timeout );
+    }
+}
@@ -0,0 +1,161 @@
+package com.athaydes.jgrab.jbuild;
+
+import jbuild.artifact.Artifact;
+import jbuild.artifact.ArtifactRetriever;
+import jbuild.artifact.ResolvedArtifact;
+import jbuild.errors.ArtifactRetrievalError;
+import jbuild.errors.HttpError;
+import jbuild.util.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * {@link ArtifactRetriever} for one of the configured {@link Repositories}.
+ * <p>
+ * It gives up on retrievals that take longer than the repository's timeout, cancelling them, and remembers which
+ * artifacts the repository did not have, so it's not asked for them again until the miss expires. Only definite
+ * answers from the repository count as misses, not network errors, server errors or timeouts.
+ */
+final class RepositoryRetriever implements ArtifactRetriever<ArtifactRetrievalError> {
+
+    private static final Logger logger = LoggerFactory.getLogger( RepositoryRetriever.class );
+
+    private static final class Miss {
+        final ArtifactRetrievalError error;
+        final long expiresAt;
+
+        Miss( ArtifactRetrievalError error, long expiresAt ) {
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ArtifactRetriever<? extends ArtifactRetrievalError> delegate;
+    final boolean isLocal;
+    private final Duration timeout;
+    private final long missTtlMillis;
+    private final LongSupplier clock;
+    private final Predicate<ArtifactRetrievalError> isNotFound;
+    private final Map<String, Miss> misses = new ConcurrentHashMap<>();
+
+    RepositoryRetriever( ArtifactRetriever<? extends ArtifactRetrievalError> delegate,
+                         boolean isLocal,
+                         Duration timeout,
+                         Duration missTtl ) {
+        this( delegate, isLocal, timeout, missTtl, System::currentTimeMillis, RepositoryRetriever::isNotFound );
+    }
+
+    RepositoryRetriever( ArtifactRetriever<? extends ArtifactRetrievalError> delegate,
+                         boolean isLocal,
+                         Duration timeout,
+                         Duration missTtl,
+                         LongSupplier clock,
+                         Predicate<ArtifactRetrievalError> isNotFound ) {
+        this.delegate = delegate;
+        this.isLocal = isLocal;
+        this.timeout = timeout;
+        this.missTtlMillis = missTtl.toMillis();
+        this.clock = clock;
+        this.isNotFound = isNotFound;
+    }
+
+    @Override
+    public CompletionStage<Either<ResolvedArtifact, ArtifactRetrievalError>> retrieve( Artifact artifact ) {
+        var key = SharedArtifactRetriever.keyOf( artifact );
+        var miss = misses.get( key );
+        if ( miss != null ) {
+            if ( clock.getAsLong() < miss.expiresAt ) {
+                logger.debug( "Not retrieving {} as it was recently missing", key );
+                return CompletableFuture.completedFuture( Either.right( miss.error ) );
+            }
+            misses.remove( key, miss );
+        }
+
+        var retrieval = delegate.retrieve( artifact ).toCompletableFuture();
+
+        CompletableFuture<Either<ResolvedArtifact, ArtifactRetrievalError>> result = retrieval
+                .thenApply( either -> either.map( Either::left, error -> {
+                    if ( missTtlMillis > 0 && isNotFound.test( error ) ) {
+                        misses.put( key, new Miss( error, clock.getAsLong() + missTtlMillis ) );
+                    }
+                    return Either.right( error );
+                } ) );
+
+        if ( timeout == null ) {
+            return result;
+        }
+
+        return result.completeOnTimeout( null, timeout.toMillis(), TimeUnit.MILLISECONDS )
+                .handle( ( either, error ) -> {
+                    if ( either != null ) {
+                        return either;
+                    }
+                    // the retrieval may also have been cancelled by a concurrent request for the same artifact
+                    if ( error == null || error.getCause() instanceof CancellationException ) {
+                        retrieval.cancel( true );
+                        return Either.right( new TimeoutError( artifact ) );
+                    }
+                    throw error instanceof CompletionException
+                            ? ( CompletionException ) error
+                            : new CompletionException( error );
+                } );
+    }
+
+    /**
+     * Check whether the error means that the repository does not have the artifact.
+     *
+     * @param error returned by the repository
+     * @return true if the artifact is definitely missing from the repository
+     */
+    static boolean isNotFound( ArtifactRetrievalError error ) {
+        if ( error instanceof HttpError ) {
+            int status = ( ( HttpError<?> ) error ).getHttpResponse().statusCode();
+            return status == 404 || status == 410;
+        }
+        return false;
+    }
+
+    @Override
+    public void describe( StringBuilder builder, boolean verbose ) {
+        delegate.describe( builder, verbose );
+    }
+
+    /**
+     * Error returned when a retrieval times out.
+     */
+    final class TimeoutError implements ArtifactRetrievalError {
+        private final Artifact artifact;
+
+        TimeoutError( Artifact artifact ) {
+            this.artifact = artifact;
+        }
+
+        @Override
+        public Artifact getArtifact() {
+            return artifact;
+        }
+
+        @Override
+        public ArtifactRetriever<?> getRetriever() {
+            return RepositoryRetriever.this;
+        }
+
+        @Override
+        public void describe( StringBuilder builder, boolean verbose ) {
+            builder.append( artifact.getCoordinates() ).append( " could not be retrieved from " );
+            delegate.describe( builder, verbose );
+            builder.append( " within " ).append( timeout.getSeconds() ).append( " seconds" );
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.athaydes.jgrab.jbuild;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * The resolved (runtime) dependency graph of one or more dependencies: the artifacts in the graph, each with the
+ * version chosen by the resolution, and their jars in the {@link ArtifactStore}.
+ * <p>
+ * Graphs of individual dependencies are cached so that the graph of a new combination of dependencies can be
+ * computed by merging graphs already resolved, as long as they agree on the version of every shared artifact.
+ */
+final class ResolvedGraph {
+
+    private static final Logger logger = LoggerFactory.getLogger( ResolvedGraph.class );
+
+    /**
+     * A resolved artifact.
+     */
+    static final class Node {
+        final String group;
+        final String module;
+        final String version;
+        final File jar;
+
+        Node( String group, String module, String version, File jar ) {
+            this.group = group;
+            this.module = module;
+            this.version = version;
+            this.jar = jar;
+        }
+
+        // the rest of the file name distinguishes artifacts with a classifier, e.g. module-version-tests.jar
+        String moduleKey() {
+            var prefix = module + '-' + version;
+            var name = jar.getName();
+            return group + ':' + module + ':' + ( name.startsWith( prefix ) ? name.substring( prefix.length() ) : name );
+        }
+
+        @Override
+        public String toString() {
+            return group + ':' + module + ':' + version;
+        }
+    }
+
+    final List<Node> nodes;
+
+    ResolvedGraph( List<Node> nodes ) {
+        this.nodes = List.copyOf( nodes );
+    }
+
+    List<File> jars() {
+        return nodes.stream().map( node -> node.jar ).collect( toList() );
+    }
+
+    /**
+     * Read the jars of a Maven repository directory layout (as written by JBuild), moving them into the store.
+     *
+     * @param repositoryDir the Maven repository directory
+     * @param store         to move the jars to
+     * @return the graph of the artifacts found in the repository
+     * @throws IOException if a jar cannot be moved into the store
+     */
+    static ResolvedGraph fromRepository( File repositoryDir, ArtifactStore store ) throws IOException {
+        var root = repositoryDir.toPath();
+        List<Path> jars;
+        try ( Stream<Path> files = Files.walk( root ) ) {
+            jars = files.filter( path -> path.getFileName().toString().endsWith( ".jar" ) )
+                    .sorted()
+                    .collect( toList() );
+        }
+        List<Node> nodes = new ArrayList<>( jars.size() );
+        for ( Path jar : jars ) {
+            // <group path>/<module>/<version>/<jar>
+            var relativePath = root.relativize( jar );
+            int count = relativePath.getNameCount();
+            if ( count < 4 ) {
+                throw new IOException( "Jar is not in the Maven repository layout: " + relativePath );
+            }
+            var group = relativePath.subpath( 0, count - 3 ).toString().replace( File.separatorChar, '.' );
+            var module = relativePath.getName( count - 3 ).toString();
+            var version = relativePath.getName( count - 2 ).toString();
+            nodes.add( new Node( group, module, version, store.add( jar.toFile() ) ) );
+        }
+        return new ResolvedGraph( nodes );
+    }
+
+    /**
+     * Merge the given graphs.
+     *
+     * @param graphs to merge
+     * @return the merged graph, or null if the graphs disagree on the version of an artifact, in which case the
+     * dependencies must be resolved together so that the conflict is resolved as usual
+     */
+    static ResolvedGraph merge( Collection<ResolvedGraph> graphs ) {
+        Map<String, Node> nodeByModule = new LinkedHashMap<>();
+        for ( ResolvedGraph graph : graphs ) {
+            for ( Node node : graph.nodes ) {
+                var existing = nodeByModule.putIfAbsent( node.moduleKey(), node );
+                if ( existing != null && !existing.version.equals( node.version ) ) {
+                    logger.debug( "Cannot merge dependency graphs, version conflict: {} vs {}", existing, node );
+                    return null;
+                }
+            }
+        }
+        return new ResolvedGraph( new ArrayList<>( nodeByModule.values() ) );
+    }
+
+    /**
+     * Write this graph to a file.
+     *
+     * @param file     to write
+     * @param storeDir directory of the store, jar paths are written relative to it
+     * @throws IOException on errors writing the file
+     */
+    void write( File file, File storeDir ) throws IOException {
+        var storePath = storeDir.toPath();
+        var contents = nodes.stream()
+                .map( node -> node + " " + storePath.relativize( node.jar.toPath() ) )
+                .collect( Collectors.joining( "\n" ) );
+        Files.createDirectories( file.getAbsoluteFile().getParentFile().toPath() );
+        var tempFile = Files.createTempFile( file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp" );
+        Files.write( tempFile, contents.getBytes( UTF_8 ) );
+        try {
+            Files.move( tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        } catch ( AtomicMoveNotSupportedException e ) {
+            Files.move( tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    /**
+     * Read a graph written with {@link #write(File, File)}.
+     *
+     * @param file     to read
+     * @param storeDir directory of the store
+     * @return the graph, or null if the file does not exist, is invalid, or any of its jars is missing
+     */
+    static ResolvedGraph read( File file, File storeDir ) {
+        if ( !file.isFile() ) {
+            return null;
+        }
+        try {
+            List<Node> nodes = new ArrayList<>();
+            for ( String line : Files.readAllLines( file.toPath(), UTF_8 ) ) {
+                if ( line.isBlank() ) continue;
+                var parts = line.split( " ", 2 );
+                var coordinates = parts[ 0 ].split( ":" );
+                if ( parts.length != 2 || coordinates.length != 3 ) {
+                    logger.info( "Ignoring dependency graph with invalid entry: {}", file );
+                    return null;
+                }
+                var jar = new File( storeDir, parts[ 1 ] );
+                if ( !jar.isFile() ) {
+                    logger.info( "Ignoring dependency graph because jar does not exist in the store: {}", jar );
+                    return null;
+                }
+                nodes.add( new Node( coordinates[ 0 ], coordinates[ 1 ], coordinates[ 2 ], jar ) );
+            }
+            return new ResolvedGraph( nodes );
+        } catch ( IOException e ) {
+            logger.warn( "Unable to read dependency graph {}: {}", file, e.toString() );
+            return null;
+        }
+    }
+}
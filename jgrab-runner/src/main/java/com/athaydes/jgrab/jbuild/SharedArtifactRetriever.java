@@ -0,0 +1,127 @@
+package com.athaydes.jgrab.jbuild;
+
+import jbuild.artifact.Artifact;
+import jbuild.artifact.ArtifactRetriever;
+import jbuild.artifact.ResolvedArtifact;
+import jbuild.errors.ArtifactRetrievalError;
+import jbuild.util.Either;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link ArtifactRetriever} meant to be shared by all dependency resolutions.
+ * <p>
+ * It limits how many artifacts may be retrieved at the same time, and retrieves each artifact only once even if it
+ * is requested again (e.g. by a concurrent resolution) before the first retrieval completes.
+ * <p>
+ * Cancelling a future returned by this retriever cancels the retrieval for everyone waiting for it.
+ */
+final class SharedArtifactRetriever implements ArtifactRetriever<ArtifactRetrievalError> {
+
+    private final ArtifactRetriever<? extends ArtifactRetrievalError> delegate;
+    private final int maxParallelRetrievals;
+
+    private final Map<String, CompletableFuture<Either<ResolvedArtifact, ArtifactRetrievalError>>> inFlight =
+            new ConcurrentHashMap<>();
+
+    // guarded by this
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int running;
+
+    SharedArtifactRetriever( ArtifactRetriever<? extends ArtifactRetrievalError> delegate,
+                             int maxParallelRetrievals ) {
+        this.delegate = delegate;
+        this.maxParallelRetrievals = Math.max( 1, maxParallelRetrievals );
+    }
+
+    @Override
+    public CompletionStage<Either<ResolvedArtifact, ArtifactRetrievalError>> retrieve( Artifact artifact ) {
+        var key = keyOf( artifact );
+        var future = new CompletableFuture<Either<ResolvedArtifact, ArtifactRetrievalError>>();
+        var existing = inFlight.putIfAbsent( key, future );
+        if ( existing != null ) {
+            return existing;
+        }
+        future.whenComplete( ( result, error ) -> inFlight.remove( key, future ) );
+        submit( () -> start( artifact, future ) );
+        return future;
+    }
+
+    @Override
+    public void describe( StringBuilder builder, boolean verbose ) {
+        delegate.describe( builder, verbose );
+    }
+
+    /**
+     * @return the number of retrievals currently running or waiting to run.
+     */
+    int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private void start( Artifact artifact,
+                        CompletableFuture<Either<ResolvedArtifact, ArtifactRetrievalError>> future ) {
+        // the permit is released as soon as the future completes, even if it is cancelled (e.g. on a timeout)
+        // while the retrieval is still running, so that slow retrievals cannot hold all permits
+        future.whenComplete( ( result, error ) -> release() );
+        if ( future.isDone() ) {
+            return;
+        }
+        CompletionStage<? extends Either<ResolvedArtifact, ? extends ArtifactRetrievalError>> retrieval;
+        try {
+            retrieval = delegate.retrieve( artifact );
+        } catch ( Throwable t ) {
+            future.completeExceptionally( t );
+            return;
+        }
+        retrieval.whenComplete( ( result, error ) -> {
+            if ( error == null ) {
+                future.complete( result.map( Either::left, Either::right ) );
+            } else {
+                future.completeExceptionally( error );
+            }
+        } );
+        if ( retrieval instanceof CompletableFuture ) {
+            // abort the retrieval if nobody is waiting for it anymore
+            future.whenComplete( ( result, error ) -> {
+                if ( future.isCancelled() ) {
+                    ( ( CompletableFuture<?> ) retrieval ).cancel( true );
+                }
+            } );
+        }
+    }
+
+    private void submit( Runnable task ) {
+        synchronized ( this ) {
+            if ( running >= maxParallelRetrievals ) {
+                waiting.add( task );
+                return;
+            }
+            running++;
+        }
+        task.run();
+    }
+
+    private void release() {
+        Runnable next;
+        synchronized ( this ) {
+            next = waiting.poll();
+            if ( next == null ) {
+                running--;
+                return;
+            }
+        }
+        // the permit is passed on to the next task
+        next.run();
+    }
+
+    static String keyOf( Artifact artifact ) {
+        return artifact.groupId + ':' + artifact.artifactId + ':' + artifact.version + ':' +
+                artifact.extension + ':' + artifact.classifier;
+    }
+}
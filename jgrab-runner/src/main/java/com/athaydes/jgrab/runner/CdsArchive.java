@@ -0,0 +1,164 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.jgrab.JGrabHome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Application class-data sharing (AppCDS) archive of the classes JGrab needs to compile and run a program.
+ * <p>
+ * A JVM started with {@link #jvmOptions()} maps the classes of JGrab, its dependencies and the Java compiler from
+ * the archive, already parsed and verified, instead of loading them one by one, which makes it start faster.
+ * <p>
+ * The archive is created by a training run in a child JVM, which compiles and runs a sample program.
+ * The JVM checks the archive before using it, and ignores it if it was created by another JVM or for another
+ * classpath, so a stale archive only loses the speed-up until it is created again.
+ */
+public final class CdsArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger( CdsArchive.class );
+
+    static final String TRAINING_CODE = "import java.util.*;\n" +
+            "import java.util.stream.*;\n" +
+            "\n" +
+            "public class JGrabTraining {\n" +
+            "    public static void main( String[] args ) {\n" +
+            "        var words = List.of( \"JGrab\", \"runs\", \"Java\", \"code\" );\n" +
+            "        var lengths = words.stream().collect( Collectors.toMap( w -> w, String::length ) );\n" +
+            "        System.out.println( String.format( \"%s\", new TreeMap<>( lengths ) ) );\n" +
+            "    }\n" +
+            "}\n";
+
+    private CdsArchive() {
+    }
+
+    public static File archiveFile() {
+        return new File( JGrabHome.getDir(), "jgrab.jsa" );
+    }
+
+    // describes the JVM and classpath the archive was created for
+    private static File stampFile() {
+        return new File( JGrabHome.getDir(), "jgrab.jsa.stamp" );
+    }
+
+    /**
+     * Creating an archive requires Java 13+ and a classpath made only of jars, as CDS does not archive classes
+     * loaded from directories.
+     *
+     * @return whether an archive can be created for the current JVM
+     */
+    public static boolean isSupported() {
+        if ( Runtime.version().feature() < 13 ) {
+            return false;
+        }
+        for ( String entry : classpath() ) {
+            if ( !entry.endsWith( ".jar" ) || !new File( entry ).isFile() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the archive exists and was created for the current JVM and classpath
+     */
+    public static boolean isUpToDate() {
+        if ( !archiveFile().isFile() ) {
+            return false;
+        }
+        try {
+            return currentStamp().equals( Files.readString( stampFile().toPath(), StandardCharsets.UTF_8 ) );
+        } catch ( IOException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the options a JVM running JGrab should be started with to use the archive, if it exists
+     */
+    public static List<String> jvmOptions() {
+        if ( !archiveFile().isFile() ) {
+            return List.of();
+        }
+        // do not let the JVM warn about an archive it cannot use, it simply starts without it
+        return List.of( "-XX:SharedArchiveFile=" + archiveFile().getPath(), "-Xlog:cds*=off" );
+    }
+
+    /**
+     * Create the archive, replacing the existing one.
+     *
+     * @return the archive file
+     * @throws JGrabError if the archive cannot be created
+     */
+    public static File create() {
+        if ( !isSupported() ) {
+            throw new JGrabError( "Unable to create a CDS archive: Java 13+ is required, " +
+                    "and JGrab must run from its jar (Java version: " + System.getProperty( "java.version" ) +
+                    ", classpath: " + String.join( File.pathSeparator, classpath() ) + ")" );
+        }
+        var archive = archiveFile();
+        var tempArchive = new File( archive.getPath() + ".tmp" );
+
+        List<String> command = new ArrayList<>();
+        command.add( Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString() );
+        command.add( "-XX:ArchiveClassesAtExit=" + tempArchive.getPath() );
+        command.add( "-Xlog:cds*=off" );
+        command.add( JGrabRunner.COMPILER_EXPORTS_OPTION );
+        command.add( "-cp" );
+        command.add( String.join( File.pathSeparator, classpath() ) );
+        command.add( JGrabRunner.class.getName() );
+        command.add( JGrabOptions.CDS_TRAINING_OPTION );
+
+        logger.debug( "Creating CDS archive: {}", command );
+
+        try {
+            Files.deleteIfExists( tempArchive.toPath() );
+            var process = new ProcessBuilder( command )
+                    .redirectOutput( ProcessBuilder.Redirect.DISCARD )
+                    .redirectError( ProcessBuilder.Redirect.INHERIT )
+                    .start();
+            int exitCode = process.waitFor();
+            if ( exitCode != 0 || !tempArchive.isFile() ) {
+                throw new JGrabError( "Unable to create a CDS archive, the training run exited with code " +
+                        exitCode );
+            }
+            // JVMs starting now must see either the old or the new archive, never a partially written one
+            Files.move( tempArchive.toPath(), archive.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            Files.writeString( stampFile().toPath(), currentStamp(), StandardCharsets.UTF_8 );
+        } catch ( IOException e ) {
+            throw new JGrabError( "Unable to create a CDS archive: " + e );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new JGrabError( "Interrupted while creating a CDS archive" );
+        }
+
+        return archive;
+    }
+
+    private static String currentStamp() {
+        var stamp = new StringBuilder();
+        stamp.append( "java.home=" ).append( System.getProperty( "java.home" ) ).append( '\n' );
+        stamp.append( "java.vm.version=" ).append( System.getProperty( "java.vm.version" ) ).append( '\n' );
+        for ( String entry : classpath() ) {
+            var file = new File( entry );
+            stamp.append( entry ).append( '=' )
+                    .append( file.length() ).append( ',' )
+                    .append( file.lastModified() ).append( '\n' );
+        }
+        return stamp.toString();
+    }
+
+    private static String[] classpath() {
+        return System.getProperty( "java.class.path" ).split( File.pathSeparator );
+    }
+}
@@ -0,0 +1,319 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.jgrab.Classpath;
+import com.athaydes.osgiaas.api.env.ClassLoaderContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded, least-recently-used cache of {@link ClassLoaderContext}s, by classpath hash.
+ * <p>
+ * Entries are evicted when the cache grows beyond its maximum size, or when they have not been used for longer
+ * than the idle TTL. Evicted contexts are closed, releasing their open jar files, as soon as no running program
+ * is using them.
+ */
+final class ClassLoaderCache {
+
+    private static final Logger logger = LoggerFactory.getLogger( ClassLoaderCache.class );
+
+    private final int maxEntries;
+    private final long idleTtlNanos;
+    private final LongSupplier nanoTime;
+    private final Function<Classpath, ClassLoaderContext> createContext;
+
+    // access-ordered, so the first entry is always the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+    // contexts currently being created, by classpath hash
+    private final Map<String, CompletableFuture<Void>> creating = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ClassLoaderCache( int maxEntries,
+                      Duration idleTtl,
+                      Function<Classpath, ClassLoaderContext> createContext ) {
+        this( maxEntries, idleTtl, createContext, System::nanoTime );
+    }
+
+    ClassLoaderCache( int maxEntries,
+                      Duration idleTtl,
+                      Function<Classpath, ClassLoaderContext> createContext,
+                      LongSupplier nanoTime ) {
+        this.maxEntries = maxEntries;
+        this.idleTtlNanos = idleTtl.toNanos();
+        this.createContext = createContext;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Get the context for the given classpath, creating it if necessary.
+     * <p>
+     * Contexts are created without holding the cache's lock, so that creating one does not block requests
+     * for other classpaths. If another Thread is already creating the same context, this method waits for it.
+     * <p>
+     * The returned lease must be closed once the context is no longer in use.
+     *
+     * @param classpath non-empty classpath
+     * @return a lease on the classpath's context
+     */
+    Lease acquire( Classpath classpath ) {
+        while ( true ) {
+            List<Entry> evicted = new ArrayList<>( 2 );
+            Lease lease = null;
+            CompletableFuture<Void> creation;
+            boolean isCreator = false;
+
+            synchronized ( this ) {
+                var entry = entries.get( classpath.hash );
+                if ( entry != null ) {
+                    hits++;
+                    lease = newLease( entry, evicted );
+                }
+                creation = creating.get( classpath.hash );
+                if ( lease == null && creation == null ) {
+                    misses++;
+                    creation = new CompletableFuture<>();
+                    creating.put( classpath.hash, creation );
+                    isCreator = true;
+                }
+            }
+
+            if ( lease != null ) {
+                closeAll( evicted );
+                return lease;
+            }
+            if ( isCreator ) {
+                return create( classpath, creation );
+            }
+
+            // another Thread is creating the same context, try again once it's in the cache
+            await( creation );
+        }
+    }
+
+    private Lease create( Classpath classpath, CompletableFuture<Void> creation ) {
+        ClassLoaderContext context;
+        try {
+            context = createContext.apply( classpath );
+        } catch ( RuntimeException | Error e ) {
+            synchronized ( this ) {
+                creating.remove( classpath.hash );
+            }
+            creation.completeExceptionally( e );
+            throw e;
+        }
+
+        List<Entry> evicted = new ArrayList<>( 2 );
+        Lease lease;
+        synchronized ( this ) {
+            creating.remove( classpath.hash );
+            var entry = new Entry( classpath.hash, context );
+            entries.put( classpath.hash, entry );
+            lease = newLease( entry, evicted );
+        }
+        creation.complete( null );
+        closeAll( evicted );
+        return lease;
+    }
+
+    // must be called while holding the lock, the evicted entries must be closed after releasing it
+    private Lease newLease( Entry entry, List<Entry> evicted ) {
+        var now = nanoTime.getAsLong();
+        entry.users++;
+        entry.lastUsed = now;
+        collectExpired( now, evicted );
+        collectExcess( evicted );
+        return new Lease( entry );
+    }
+
+    private static void await( CompletableFuture<Void> creation ) {
+        try {
+            creation.join();
+        } catch ( CompletionException e ) {
+            var cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw ( RuntimeException ) cause;
+            }
+            if ( cause instanceof Error ) {
+                throw ( Error ) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the maximum number of entries in the cache
+     */
+    int maxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Add the given classpath's context to the cache, unless the cache is already full.
+     *
+     * @param classpath non-empty classpath
+     * @return true if the context was added or already existed, false if the cache was full
+     */
+    boolean warmUp( Classpath classpath ) {
+        synchronized ( this ) {
+            if ( entries.containsKey( classpath.hash ) ) {
+                return true;
+            }
+            if ( entries.size() >= maxEntries ) {
+                return false;
+            }
+        }
+        acquire( classpath ).close();
+        return true;
+    }
+
+    /**
+     * Evict all entries that have been idle for longer than the TTL.
+     *
+     * @return the number of evicted entries
+     */
+    int evictExpired() {
+        List<Entry> evicted = new ArrayList<>( 2 );
+        synchronized ( this ) {
+            collectExpired( nanoTime.getAsLong(), evicted );
+        }
+        closeAll( evicted );
+        return evicted.size();
+    }
+
+    synchronized Stats stats() {
+        return new Stats( entries.size(), hits, misses, evictions );
+    }
+
+    private void collectExpired( long now, List<Entry> evicted ) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ( iterator.hasNext() ) {
+            var entry = iterator.next();
+            if ( entry.users == 0 && now - entry.lastUsed > idleTtlNanos ) {
+                iterator.remove();
+                evict( entry, evicted );
+            }
+        }
+    }
+
+    private void collectExcess( List<Entry> evicted ) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ( entries.size() > maxEntries && iterator.hasNext() ) {
+            var entry = iterator.next();
+            iterator.remove();
+            evict( entry, evicted );
+        }
+    }
+
+    private void evict( Entry entry, List<Entry> evicted ) {
+        evictions++;
+        entry.evicted = true;
+        logger.debug( "Evicting ClassLoader for classpath {}", entry.hash );
+        if ( entry.users == 0 ) {
+            evicted.add( entry );
+        }
+        // otherwise, the entry is closed when its last lease is closed
+    }
+
+    private synchronized void release( Entry entry ) {
+        entry.users--;
+        entry.lastUsed = nanoTime.getAsLong();
+        if ( entry.evicted && entry.users == 0 ) {
+            close( entry );
+        }
+    }
+
+    private static void closeAll( List<Entry> entries ) {
+        for ( Entry entry : entries ) {
+            close( entry );
+        }
+    }
+
+    private static void close( Entry entry ) {
+        if ( entry.context instanceof AutoCloseable ) {
+            try {
+                ( ( AutoCloseable ) entry.context ).close();
+            } catch ( Exception e ) {
+                logger.warn( "Problem closing ClassLoader for classpath {}: {}", entry.hash, e.toString() );
+            }
+        }
+    }
+
+    private static final class Entry {
+        final String hash;
+        final ClassLoaderContext context;
+        int users;
+        long lastUsed;
+        boolean evicted;
+
+        Entry( String hash, ClassLoaderContext context ) {
+            this.hash = hash;
+            this.context = context;
+        }
+    }
+
+    /**
+     * A lease on a cached {@link ClassLoaderContext}. The context is not closed while a lease on it is open.
+     */
+    final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease( Entry entry ) {
+            this.entry = entry;
+        }
+
+        ClassLoaderContext context() {
+            return entry.context;
+        }
+
+        @Override
+        public void close() {
+            if ( !closed ) {
+                closed = true;
+                release( entry );
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the cache statistics.
+     */
+    static final class Stats {
+        final int size;
+        final long hits;
+        final long misses;
+        final long evictions;
+
+        Stats( int size, long hits, long misses, long evictions ) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "ClassLoader cache{" +
+                    "size=" + size +
+                    ", hits=" + hits +
+                    ", misses=" + misses +
+                    ", evictions=" + evictions +
+                    '}';
+        }
+    }
+}
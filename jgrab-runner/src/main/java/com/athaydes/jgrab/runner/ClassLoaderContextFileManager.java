@@ -0,0 +1,152 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.osgiaas.api.env.ClassLoaderContext;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link JavaFileManager} that finds classes via a {@link ClassLoaderContext} (in addition to the ones found by
+ * the delegate file manager), and keeps all compiled classes in memory.
+ * <p>
+ * The delegate is reused by later compilations, so closing this file manager does not close it.
+ */
+final class ClassLoaderContextFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+    private final ClassLoaderContext classLoaderContext;
+    private final PlatformClassListings platformClassListings;
+    private final Map<String, ByteArrayOutputStream> compiledClasses = new LinkedHashMap<>();
+
+    ClassLoaderContextFileManager( JavaFileManager fileManager,
+                                   ClassLoaderContext classLoaderContext,
+                                   PlatformClassListings platformClassListings ) {
+        super( fileManager );
+        this.classLoaderContext = classLoaderContext;
+        this.platformClassListings = platformClassListings;
+    }
+
+    /**
+     * Forget the classes compiled so far, so that this file manager can be used by another compilation.
+     */
+    void clearCompiledClasses() {
+        compiledClasses.clear();
+    }
+
+    /**
+     * @return the bytecode of all classes compiled so far, by binary class name.
+     */
+    Map<String, byte[]> getCompiledClasses() {
+        Map<String, byte[]> result = new LinkedHashMap<>( compiledClasses.size() );
+        compiledClasses.forEach( ( name, bytes ) -> result.put( name, bytes.toByteArray() ) );
+        return result;
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list( Location location,
+                                          String packageName,
+                                          Set<JavaFileObject.Kind> kinds,
+                                          boolean recurse ) throws IOException {
+        var standardFiles = platformClassListings.list( fileManager, location, packageName, kinds, recurse );
+
+        if ( location != StandardLocation.CLASS_PATH || !kinds.contains( JavaFileObject.Kind.CLASS ) ) {
+            return standardFiles;
+        }
+
+        var classEntries = classLoaderContext.getClassesIn( packageName );
+
+        if ( classEntries.isEmpty() ) {
+            return standardFiles;
+        }
+
+        List<JavaFileObject> result = new ArrayList<>();
+        standardFiles.forEach( result::add );
+
+        for ( String classEntry : classEntries ) {
+            result.add( new ClassEntryFileObject( classEntry, classLoaderContext ) );
+        }
+
+        return result;
+    }
+
+    @Override
+    public String inferBinaryName( Location location, JavaFileObject file ) {
+        if ( file instanceof ClassEntryFileObject ) {
+            return ( ( ClassEntryFileObject ) file ).binaryName;
+        }
+        return super.inferBinaryName( location, file );
+    }
+
+    @Override
+    public void close() {
+        // the delegate is closed by its owner
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput( Location location,
+                                                String className,
+                                                JavaFileObject.Kind kind,
+                                                FileObject sibling ) {
+        return new SimpleJavaFileObject( URI.create( "mem:///" + className.replace( '.', '/' ) + kind.extension ),
+                kind ) {
+            @Override
+            public OutputStream openOutputStream() {
+                var output = new ByteArrayOutputStream( 1024 );
+                compiledClasses.put( className, output );
+                return output;
+            }
+        };
+    }
+
+    static final class SourceFileObject extends SimpleJavaFileObject {
+        private final String code;
+
+        SourceFileObject( String className, String code ) {
+            super( URI.create( "string:///" + className.replace( '.', '/' ) + Kind.SOURCE.extension ),
+                    Kind.SOURCE );
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent( boolean ignoreEncodingErrors ) {
+            return code;
+        }
+    }
+
+    private static final class ClassEntryFileObject extends SimpleJavaFileObject {
+        private final String classEntry;
+        private final String binaryName;
+        private final ClassLoaderContext classLoaderContext;
+
+        ClassEntryFileObject( String classEntry, ClassLoaderContext classLoaderContext ) {
+            super( URI.create( "classpath:///" + classEntry ), Kind.CLASS );
+            this.classEntry = classEntry;
+            this.binaryName = classEntry
+                    .substring( 0, classEntry.length() - Kind.CLASS.extension.length() )
+                    .replace( '/', '.' );
+            this.classLoaderContext = classLoaderContext;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            var stream = classLoaderContext.getClassLoader().getResourceAsStream( classEntry );
+            if ( stream == null ) {
+                throw new IOException( "Class entry not found: " + classEntry );
+            }
+            return stream;
+        }
+    }
+}
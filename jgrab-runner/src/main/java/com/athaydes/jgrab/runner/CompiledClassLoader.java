@@ -0,0 +1,37 @@
+package com.athaydes.jgrab.runner;
+
+import java.util.Map;
+
+/**
+ * ClassLoader that defines classes from previously compiled bytecode.
+ * <p>
+ * Calls to {@code System.exit} in the compiled classes are redirected to {@link ScriptExit}, which is always
+ * visible to them, whatever the parent ClassLoader is.
+ */
+final class CompiledClassLoader extends ClassLoader {
+
+    private final Map<String, byte[]> classes;
+
+    CompiledClassLoader( Map<String, byte[]> classes, ClassLoader parent ) {
+        super( parent );
+        this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> loadClass( String name, boolean resolve ) throws ClassNotFoundException {
+        if ( name.equals( ScriptExit.class.getName() ) ) {
+            return ScriptExit.class;
+        }
+        return super.loadClass( name, resolve );
+    }
+
+    @Override
+    protected Class<?> findClass( String name ) throws ClassNotFoundException {
+        byte[] bytes = classes.get( name );
+        if ( bytes == null ) {
+            throw new ClassNotFoundException( name );
+        }
+        bytes = ExitCallRewriter.rewrite( bytes );
+        return defineClass( name, bytes, 0, bytes.length );
+    }
+}
@@ -0,0 +1,217 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.jgrab.Classpath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Cache of compiled bytecode, kept both in memory and on disk.
+ * <p>
+ * Entries are keyed by a hash of the source code and of the jars of the {@link Classpath} it was compiled against,
+ * so that running unchanged code does not require compiling it again, while code is compiled again if its
+ * dependencies resolve to different jars (e.g. when a new latest version is released).
+ * <p>
+ * The disk cache is bounded by size: when it grows too large, the least recently used entries are deleted.
+ */
+final class CompiledCodeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger( CompiledCodeCache.class );
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File dir;
+    private final long maxDiskBytes;
+    private final Map<String, Map<String, byte[]>> memoryCache;
+
+    CompiledCodeCache( File dir, int maxMemoryEntries, long maxDiskBytes ) {
+        this.dir = dir;
+        this.maxDiskBytes = maxDiskBytes;
+        this.memoryCache = Collections.synchronizedMap( new LinkedHashMap<>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Map<String, byte[]>> eldest ) {
+                return size() > maxMemoryEntries;
+            }
+        } );
+    }
+
+    static String keyOf( String className, String code, Classpath classpath ) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( e );
+        }
+        // bytecode compiled by a newer compiler may not run on an older JVM
+        digest.update( Integer.toString( Runtime.version().feature() ).getBytes( UTF_8 ) );
+        digest.update( className.getBytes( UTF_8 ) );
+        digest.update( code.getBytes( UTF_8 ) );
+        // the same dependencies may resolve to different jars over time
+        for ( File jar : classpath.resolvedArtifacts ) {
+            digest.update( ( jar.getAbsolutePath() + '\0' + jar.length() + '\0' + jar.lastModified() + '\0' )
+                    .getBytes( UTF_8 ) );
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString( digest.digest() );
+    }
+
+    /**
+     * Get the compiled classes for the given key, compiling them only if they are not cached yet.
+     *
+     * @param key     cache key, see {@link #keyOf(String, String, Classpath)}
+     * @param compile compilation function
+     * @return compiled classes by binary name
+     */
+    Map<String, byte[]> classesFor( String key, Supplier<Map<String, byte[]>> compile ) {
+        var classes = memoryCache.get( key );
+        if ( classes != null ) {
+            logger.debug( "Compiled code found in memory cache" );
+            return classes;
+        }
+
+        var file = new File( dir, key );
+        classes = read( file );
+
+        if ( classes == null ) {
+            classes = compile.get();
+            write( file, classes );
+            evictOldEntries();
+        } else {
+            logger.debug( "Compiled code found in disk cache: {}", file );
+            markUsed( file );
+        }
+
+        memoryCache.put( key, classes );
+
+        return classes;
+    }
+
+    private static void markUsed( File file ) {
+        try {
+            Files.setLastModifiedTime( file.toPath(), FileTime.fromMillis( System.currentTimeMillis() ) );
+        } catch ( IOException e ) {
+            logger.debug( "Unable to update last modified time of {}: {}", file, e.toString() );
+        }
+    }
+
+    /**
+     * Delete the least recently used entries of the disk cache until it is no larger than its maximum size.
+     */
+    void evictOldEntries() {
+        var files = dir.listFiles( File::isFile );
+        if ( files == null ) {
+            return;
+        }
+        long totalSize = 0L;
+        for ( File file : files ) {
+            totalSize += file.length();
+        }
+        if ( totalSize <= maxDiskBytes ) {
+            return;
+        }
+        Arrays.sort( files, Comparator.comparingLong( File::lastModified ) );
+        int deleted = 0;
+        for ( File file : files ) {
+            if ( totalSize <= maxDiskBytes ) {
+                break;
+            }
+            long size = file.length();
+            if ( file.delete() ) {
+                totalSize -= size;
+                deleted++;
+            }
+        }
+        logger.debug( "Deleted {} entries from compiled code cache", deleted );
+    }
+
+    private static Map<String, byte[]> read( File file ) {
+        if ( !file.isFile() ) {
+            return null;
+        }
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes( file.toPath() );
+        } catch ( IOException e ) {
+            logger.warn( "Unable to read compiled code cache entry {}: {}", file, e.toString() );
+            return null;
+        }
+        // available() is exactly the number of bytes left, so lengths can be checked before being used
+        var in = new DataInputStream( new ByteArrayInputStream( contents ) );
+        try {
+            if ( in.readInt() != FORMAT_VERSION ) {
+                logger.debug( "Ignoring compiled code in unknown format: {}", file );
+                return null;
+            }
+            int count = in.readInt();
+            // each class takes at least the length of its name and of its bytecode
+            if ( count < 0 || count > in.available() / ( Short.BYTES + Integer.BYTES ) ) {
+                throw new IOException( "invalid number of classes: " + count );
+            }
+            Map<String, byte[]> classes = new LinkedHashMap<>( count );
+            for ( int i = 0; i < count; i++ ) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                if ( length < 0 || length > in.available() ) {
+                    throw new IOException( "invalid length of class " + name + ": " + length );
+                }
+                byte[] bytes = new byte[ length ];
+                in.readFully( bytes );
+                classes.put( name, bytes );
+            }
+            return classes;
+        } catch ( IOException | RuntimeException e ) {
+            logger.warn( "Deleting invalid compiled code cache entry {}: {}", file, e.toString() );
+            if ( !file.delete() ) {
+                logger.debug( "Unable to delete {}", file );
+            }
+            return null;
+        }
+    }
+
+    private void write( File file, Map<String, byte[]> classes ) {
+        try {
+            Files.createDirectories( dir.toPath() );
+
+            // write to a temp file, then move it, so readers never see an incomplete entry
+            var tempFile = Files.createTempFile( dir.toPath(), file.getName(), ".tmp" );
+
+            try ( var out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tempFile ) ) ) ) {
+                out.writeInt( FORMAT_VERSION );
+                out.writeInt( classes.size() );
+                for ( var entry : classes.entrySet() ) {
+                    out.writeUTF( entry.getKey() );
+                    out.writeInt( entry.getValue().length );
+                    out.write( entry.getValue() );
+                }
+            }
+
+            try {
+                Files.move( tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+            } catch ( AtomicMoveNotSupportedException e ) {
+                Files.move( tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+        } catch ( IOException e ) {
+            logger.warn( "Unable to write compiled code cache entry {}: {}", file, e.toString() );
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.athaydes.jgrab.runner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * Pool of javac contexts that are reused between compilations, so that the compiler's symbol tables, including
+ * the ones of all JDK modules, are only created once per context instead of once per compilation.
+ * <p>
+ * This uses the JDK's own {@code JavacTaskPool}, which JShell uses for the same purpose and which forgets the
+ * classes compiled by each task. It is internal to the {@code jdk.compiler} module, so it can only be used if the
+ * JVM is started with {@link JGrabRunner#COMPILER_EXPORTS_OPTION} (or from the JGrab jar, which exports it in
+ * its manifest).
+ * <p>
+ * A context keeps the file manager it was created with, so all compilations using a pool must use the same
+ * file manager.
+ */
+final class CompilerContextPool {
+
+    private static final Logger logger = LoggerFactory.getLogger( CompilerContextPool.class );
+
+    private static final String JAVAC_API_PACKAGE = "com.sun.tools.javac.api";
+
+    // all null if the JDK's pool cannot be used
+    private static final Constructor<?> newTaskPool;
+    private static final Method getTask;
+    private static final Object taskRunner;
+
+    static {
+        Constructor<?> constructor = null;
+        Method method = null;
+        Object runner = null;
+        try {
+            var poolType = Class.forName( JAVAC_API_PACKAGE + ".JavacTaskPool" );
+            if ( poolType.getModule().isExported( JAVAC_API_PACKAGE, CompilerContextPool.class.getModule() ) ) {
+                var workerType = Class.forName( JAVAC_API_PACKAGE + ".JavacTaskPool$Worker" );
+                method = poolType.getMethod( "getTask", Writer.class, JavaFileManager.class,
+                        DiagnosticListener.class, Iterable.class, Iterable.class, Iterable.class, workerType );
+                runner = newTaskRunner( workerType );
+                constructor = poolType.getConstructor( int.class );
+            } else {
+                logger.debug( "Not reusing javac contexts as {} is not exported to JGrab", JAVAC_API_PACKAGE );
+            }
+        } catch ( ReflectiveOperationException | RuntimeException e ) {
+            logger.debug( "Not reusing javac contexts as the JDK does not support it: {}", e.toString() );
+            constructor = null;
+        }
+        newTaskPool = constructor;
+        getTask = method;
+        taskRunner = runner;
+    }
+
+    private final Object taskPool;
+
+    private CompilerContextPool( Object taskPool ) {
+        this.taskPool = taskPool;
+    }
+
+    /**
+     * @return whether the JVM allows javac contexts to be reused
+     */
+    static boolean isSupported() {
+        return newTaskPool != null;
+    }
+
+    /**
+     * @param maxContexts maximum number of idle contexts to keep
+     * @return a new pool, or null if javac contexts cannot be reused
+     */
+    static CompilerContextPool create( int maxContexts ) {
+        if ( !isSupported() ) {
+            return null;
+        }
+        try {
+            return new CompilerContextPool( newTaskPool.newInstance( maxContexts ) );
+        } catch ( ReflectiveOperationException e ) {
+            logger.debug( "Unable to create javac context pool: {}", e.toString() );
+            return null;
+        }
+    }
+
+    /**
+     * Compile the sources in a reused context.
+     *
+     * @param writer      for compilation errors
+     * @param fileManager the file manager of all compilations using this pool
+     * @param sources     to compile
+     * @return true if the sources compiled successfully
+     */
+    boolean compile( PrintWriter writer, JavaFileManager fileManager, List<? extends JavaFileObject> sources ) {
+        // reused contexts require a listener, this prints diagnostics as javac does without one
+        DiagnosticListener<JavaFileObject> diagnostics = writer::println;
+        try {
+            return ( Boolean ) getTask.invoke( taskPool,
+                    writer, fileManager, diagnostics, List.of(), null, sources, taskRunner );
+        } catch ( InvocationTargetException e ) {
+            var cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw ( RuntimeException ) cause;
+            }
+            if ( cause instanceof Error ) {
+                throw ( Error ) cause;
+            }
+            throw new JGrabError( cause );
+        } catch ( IllegalAccessException e ) {
+            throw new JGrabError( e );
+        }
+    }
+
+    // a JavacTaskPool.Worker that runs the task it is given
+    private static Object newTaskRunner( Class<?> workerType ) {
+        return Proxy.newProxyInstance( CompilerContextPool.class.getClassLoader(),
+                new Class<?>[]{ workerType }, ( proxy, method, args ) -> {
+                    switch ( method.getName() ) {
+                        case "withTask":
+                            return ( ( JavaCompiler.CompilationTask ) args[ 0 ] ).call();
+                        case "equals":
+                            return proxy == args[ 0 ];
+                        case "hashCode":
+                            return System.identityHashCode( proxy );
+                        default:
+                            return "JGrabTaskRunner";
+                    }
+                } );
+    }
+}
@@ -0,0 +1,155 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.osgiaas.api.env.ClassLoaderContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Warms up the Java compiler by compiling and running representative programs, in rounds, until the time each
+ * round takes stabilises.
+ * <p>
+ * Loading the compiler's classes is not enough for the first programs to compile fast: the JIT must also compile
+ * the compiler's hot paths, which only happens after they have run many times.
+ * The programs are compiled directly, never through the compiled code cache, and must not print anything.
+ */
+final class CompilerWarmUp {
+
+    private static final Logger logger = LoggerFactory.getLogger( CompilerWarmUp.class );
+
+    static final String SNIPPET_CLASS_NAME = "JGrabWarmUpSnippet";
+    static final String PROGRAM_CLASS_NAME = "JGrabWarmUpProgram";
+
+    // a snippet as wrapped by JGrabRunner, and a Java file with nested types, generics, lambdas and streams
+    private static final Map<String, String> PROGRAMS = Map.of(
+            SNIPPET_CLASS_NAME, "public class " + SNIPPET_CLASS_NAME +
+                    " implements java.util.concurrent.Callable<Object> {\n" +
+                    "public Object call() throws Exception {\n" +
+                    "var words = java.util.List.of( \"JGrab\", \"runs\", \"Java\", \"code\" );\n" +
+                    "return words.stream().map( String::toUpperCase )" +
+                    ".collect( java.util.stream.Collectors.joining( \" \" ) );\n" +
+                    "}\n}",
+            PROGRAM_CLASS_NAME, "import java.util.*;\n" +
+                    "import java.util.stream.*;\n" +
+                    "\n" +
+                    "public class " + PROGRAM_CLASS_NAME + " {\n" +
+                    "    interface Shape {\n" +
+                    "        double area();\n" +
+                    "\n" +
+                    "        default String describe() {\n" +
+                    "            return String.format( \"%s(%.2f)\", getClass().getSimpleName(), area() );\n" +
+                    "        }\n" +
+                    "    }\n" +
+                    "\n" +
+                    "    static final class Circle implements Shape {\n" +
+                    "        private final double radius;\n" +
+                    "\n" +
+                    "        Circle( double radius ) {\n" +
+                    "            this.radius = radius;\n" +
+                    "        }\n" +
+                    "\n" +
+                    "        @Override\n" +
+                    "        public double area() {\n" +
+                    "            return Math.PI * radius * radius;\n" +
+                    "        }\n" +
+                    "    }\n" +
+                    "\n" +
+                    "    public static void main( String[] args ) {\n" +
+                    "        List<Shape> shapes = new ArrayList<>();\n" +
+                    "        for ( int i = 1; i <= 10; i++ ) {\n" +
+                    "            final int side = i;\n" +
+                    "            shapes.add( i % 2 == 0 ? new Circle( i ) : () -> side * side );\n" +
+                    "        }\n" +
+                    "        Map<Boolean, List<String>> byKind = shapes.stream()\n" +
+                    "                .collect( Collectors.partitioningBy( s -> s instanceof Circle,\n" +
+                    "                        Collectors.mapping( Shape::describe, Collectors.toList() ) ) );\n" +
+                    "        if ( byKind.get( true ).size() != 5 ) {\n" +
+                    "            throw new IllegalStateException( byKind.toString() );\n" +
+                    "        }\n" +
+                    "    }\n" +
+                    "}\n" );
+
+    // a round is stable if it took at most this much longer, or shorter, than the previous one
+    private static final double STABLE_RATIO = 0.1;
+    private static final int MIN_ROUNDS = 3;
+    private static final long BUSY_WAIT_MILLIS = 100;
+
+    private CompilerWarmUp() {
+    }
+
+    /**
+     * Compile and run the programs against each of the given contexts, in rounds, until the time to compile them
+     * stabilises or the maximum number of rounds is reached.
+     *
+     * @param maxRounds maximum number of rounds to run
+     * @param contexts  to compile the programs against
+     * @param isIdle    whether the compiler is not needed by anything else. Rounds only start when it returns true,
+     *                  so the warm-up does not compete with real programs for the CPU
+     * @return the number of rounds run
+     */
+    static int run( int maxRounds, List<ClassLoaderContext> contexts, BooleanSupplier isIdle ) {
+        long previousRoundNanos = 0;
+        for ( int round = 1; round <= maxRounds; round++ ) {
+            try {
+                while ( !isIdle.getAsBoolean() ) {
+                    Thread.sleep( BUSY_WAIT_MILLIS );
+                }
+            } catch ( InterruptedException e ) {
+                logger.debug( "Compiler warm-up interrupted after {} rounds", round - 1 );
+                return round - 1;
+            }
+
+            long roundNanos;
+            try {
+                roundNanos = runRound( contexts );
+            } catch ( JGrabError e ) {
+                logger.warn( "Unable to warm up the Java compiler: {}", e.getMessage() );
+                return round;
+            }
+
+            logger.debug( "Compiler warm-up round {} took {}ms", round, roundNanos / 1_000_000 );
+
+            if ( round >= MIN_ROUNDS &&
+                    Math.abs( roundNanos - previousRoundNanos ) <= previousRoundNanos * STABLE_RATIO ) {
+                logger.debug( "Compiler warm-up done, compile time is stable after {} rounds", round );
+                return round;
+            }
+            previousRoundNanos = roundNanos;
+        }
+        logger.debug( "Compiler warm-up done after the maximum of {} rounds", maxRounds );
+        return maxRounds;
+    }
+
+    /**
+     * @return how long it took to compile the programs, not counting the time to run them
+     */
+    private static long runRound( List<ClassLoaderContext> contexts ) {
+        long compileNanos = 0;
+        for ( ClassLoaderContext context : contexts ) {
+            for ( Map.Entry<String, String> program : PROGRAMS.entrySet() ) {
+                long startTime = System.nanoTime();
+                var classes = InMemoryCompiler.compile( program.getKey(), program.getValue(), context, System.err );
+                compileNanos += System.nanoTime() - startTime;
+                run( new CompiledClassLoader( classes, context.getClassLoader() ), program.getKey() );
+            }
+        }
+        return compileNanos;
+    }
+
+    private static void run( ClassLoader classLoader, String className ) {
+        try {
+            var compiledClass = classLoader.loadClass( className );
+            if ( Callable.class.isAssignableFrom( compiledClass ) ) {
+                ( ( Callable<?> ) compiledClass.getDeclaredConstructor().newInstance() ).call();
+            } else {
+                compiledClass.getMethod( "main", String[].class ).invoke( null, ( Object ) new String[ 0 ] );
+            }
+        } catch ( Exception e ) {
+            throw new JGrabError( e );
+        }
+    }
+}
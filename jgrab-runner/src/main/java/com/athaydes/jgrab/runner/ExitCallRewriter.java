@@ -0,0 +1,144 @@
+package com.athaydes.jgrab.runner;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Redirects the calls to {@link System#exit(int)} in compiled classes to {@link ScriptExit#exit(int)}.
+ * <p>
+ * Only the class' constant pool needs to change: a reference to {@code ScriptExit} is appended to it and
+ * the {@code System.exit} method reference is made to point to it, so the bytecode itself is left untouched.
+ */
+final class ExitCallRewriter {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int CONSTANT_POOL_START = 10;
+
+    private static final int UTF8 = 1;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private static final byte[] SYSTEM = "java/lang/System".getBytes( UTF_8 );
+    private static final byte[] EXIT = "exit".getBytes( UTF_8 );
+    private static final byte[] EXIT_DESCRIPTOR = "(I)V".getBytes( UTF_8 );
+    private static final byte[] SCRIPT_EXIT = ScriptExit.class.getName().replace( '.', '/' ).getBytes( UTF_8 );
+
+    private ExitCallRewriter() {
+    }
+
+    /**
+     * @param classBytes bytecode of a class
+     * @return the bytecode with calls to {@code System.exit} redirected, or the given bytecode if it does not
+     * call {@code System.exit}
+     */
+    static byte[] rewrite( byte[] classBytes ) {
+        var buffer = ByteBuffer.wrap( classBytes );
+        if ( classBytes.length < CONSTANT_POOL_START || buffer.getInt( 0 ) != MAGIC ) {
+            return classBytes;
+        }
+        int count = Short.toUnsignedInt( buffer.getShort( 8 ) );
+        int[] offsets = new int[ count ];
+        int position = CONSTANT_POOL_START;
+
+        for ( int i = 1; i < count; i++ ) {
+            offsets[ i ] = position;
+            int tag = buffer.get( position );
+            int size = entrySize( tag, buffer, position );
+            if ( size < 0 ) {
+                return classBytes;
+            }
+            position += size;
+            if ( tag == LONG || tag == DOUBLE ) {
+                i++; // these take two entries
+            }
+        }
+
+        List<Integer> exitCalls = new ArrayList<>( 1 );
+        for ( int i = 1; i < count; i++ ) {
+            if ( offsets[ i ] != 0 && buffer.get( offsets[ i ] ) == METHOD_REF &&
+                    isExitCall( buffer, offsets, offsets[ i ] ) ) {
+                exitCalls.add( offsets[ i ] );
+            }
+        }
+
+        if ( exitCalls.isEmpty() || count + 2 > 0xFFFF ) {
+            return classBytes;
+        }
+
+        // append the ScriptExit class to the end of the constant pool, so existing indexes are not affected
+        var result = ByteBuffer.allocate( classBytes.length + 3 + SCRIPT_EXIT.length + 3 );
+        result.put( classBytes, 0, position );
+        result.put( ( byte ) UTF8 ).putShort( ( short ) SCRIPT_EXIT.length ).put( SCRIPT_EXIT );
+        result.put( ( byte ) CLASS ).putShort( ( short ) count );
+        result.put( classBytes, position, classBytes.length - position );
+        result.putShort( 8, ( short ) ( count + 2 ) );
+        for ( int offset : exitCalls ) {
+            result.putShort( offset + 1, ( short ) ( count + 1 ) );
+        }
+        return result.array();
+    }
+
+    private static int entrySize( int tag, ByteBuffer buffer, int position ) {
+        switch ( tag ) {
+            case UTF8:
+                return 3 + Short.toUnsignedInt( buffer.getShort( position + 1 ) );
+            case CLASS:
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                return 3;
+            case 15: // MethodHandle
+                return 4;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case METHOD_REF:
+            case 11: // InterfaceMethodref
+            case NAME_AND_TYPE:
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                return 5;
+            case LONG:
+            case DOUBLE:
+                return 9;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean isExitCall( ByteBuffer buffer, int[] offsets, int methodRef ) {
+        int classEntry = offsetOf( offsets, buffer.getShort( methodRef + 1 ), CLASS, buffer );
+        int nameAndType = offsetOf( offsets, buffer.getShort( methodRef + 3 ), NAME_AND_TYPE, buffer );
+        if ( classEntry < 0 || nameAndType < 0 ) {
+            return false;
+        }
+        return utf8Equals( buffer, offsets, buffer.getShort( classEntry + 1 ), SYSTEM ) &&
+                utf8Equals( buffer, offsets, buffer.getShort( nameAndType + 1 ), EXIT ) &&
+                utf8Equals( buffer, offsets, buffer.getShort( nameAndType + 3 ), EXIT_DESCRIPTOR );
+    }
+
+    private static int offsetOf( int[] offsets, short index, int expectedTag, ByteBuffer buffer ) {
+        int i = Short.toUnsignedInt( index );
+        if ( i == 0 || i >= offsets.length || offsets[ i ] == 0 || buffer.get( offsets[ i ] ) != expectedTag ) {
+            return -1;
+        }
+        return offsets[ i ];
+    }
+
+    private static boolean utf8Equals( ByteBuffer buffer, int[] offsets, short index, byte[] expected ) {
+        int offset = offsetOf( offsets, index, UTF8, buffer );
+        if ( offset < 0 || Short.toUnsignedInt( buffer.getShort( offset + 1 ) ) != expected.length ) {
+            return false;
+        }
+        return Arrays.equals( buffer.array(), offset + 3, offset + 3 + expected.length,
+                expected, 0, expected.length );
+    }
+}
@@ -2,16 +2,16 @@ package com.athaydes.jgrab.runner;
 
 import com.athaydes.jgrab.Dependency;
 import com.athaydes.jgrab.code.JavaCode;
+import com.athaydes.jgrab.code.SourceScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
 import java.util.SortedSet;
-import java.util.regex.Matcher;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * A class that knows how to extract information from the source code of a Java file.
@@ -21,7 +21,8 @@ class FileJavaCode implements JavaCode {
     private static final Logger logger = LoggerFactory.getLogger( FileJavaCode.class );
 
     private final String className;
-    private final List<String> lines;
+    private final String code;
+    private final SourceScanner scanner;
 
     FileJavaCode( Path filePath ) throws IOException {
         if ( !filePath.toFile().exists() ) {
@@ -32,8 +33,11 @@ class FileJavaCode implements JavaCode {
                     "JGrab can only run a single Java file or a Java snippet with the -e option." );
         }
 
-        this.lines = Files.readAllLines( filePath );
-        this.className = extractClassName( lines, filePath );
+        try ( var stream = Files.newInputStream( filePath ) ) {
+            this.code = SourceScanner.read( stream, UTF_8 );
+        }
+        this.scanner = SourceScanner.scan( code );
+        this.className = extractClassName( scanner, filePath );
         logger.debug( "Class name: {}", className );
     }
 
@@ -44,7 +48,7 @@ class FileJavaCode implements JavaCode {
 
     @Override
     public SortedSet<Dependency> extractDependencies() {
-        return Dependency.parseDependencies( lines.stream() );
+        return scanner.getDependencies();
     }
 
     @Override
@@ -54,22 +58,16 @@ class FileJavaCode implements JavaCode {
 
     @Override
     public String getCode() {
-        return String.join( "\n", lines );
+        return code;
     }
 
-    private static String extractClassName( List<String> codeLines, Path filePath ) {
-        for (String line : codeLines) {
-            Matcher matcher = PACKAGE_PATTERN.matcher( line );
-
-            if ( matcher.matches() ) {
-                String packageName = matcher.group( 1 );
-                return packageName.replace( File.separator, "." ) +
-                        "." + withoutExtension( filePath.getFileName().toString() );
-            }
+    private static String extractClassName( SourceScanner scanner, Path filePath ) {
+        // the class named after the file is the one to run, even if the file starts with another class
+        String simpleName = withoutExtension( filePath.getFileName().toString() );
+        if ( scanner.getPackageName().isEmpty() ) {
+            return simpleName;
         }
-
-        // no package found
-        return withoutExtension( filePath.getFileName().toString() );
+        return scanner.getPackageName() + "." + simpleName;
     }
 
     private static String withoutExtension( String fileName ) {
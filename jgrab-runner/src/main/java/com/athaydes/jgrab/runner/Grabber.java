@@ -5,6 +5,7 @@ import com.athaydes.jgrab.Dependency;
 import java.io.File;
 import java.util.Collection;
 import java.util.List;
+import java.util.SortedSet;
 
 /**
  * A dependency grabber.
@@ -19,4 +20,16 @@ public interface Grabber {
      */
     List<File> grab( Collection<Dependency> toGrab );
 
+    /**
+     * Replace the {@link Dependency#LATEST} version of the given dependencies with concrete versions.
+     * <p>
+     * Implementations should not block on the network when a previously resolved version is known.
+     *
+     * @param dependencies to pin
+     * @return the dependencies with concrete versions where possible
+     */
+    default SortedSet<Dependency> pinVersions( SortedSet<Dependency> dependencies ) {
+        return dependencies;
+    }
+
 }
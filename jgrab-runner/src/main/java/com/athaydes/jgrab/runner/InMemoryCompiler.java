@@ -0,0 +1,133 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.osgiaas.api.env.ClassLoaderContext;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Compiles Java source code in memory, using the system's {@link JavaCompiler}.
+ * <p>
+ * The compiler's file managers are kept for the lifetime of the JVM, as creating one and filling its caches
+ * (opened jars, module tables) costs more than compiling a small program. File managers are not thread-safe,
+ * so each is only used by one compilation at a time, while the listings of the JDK classes are shared by all
+ * compilations (see {@link PlatformClassListings}).
+ * <p>
+ * Programs without dependencies are also compiled in reused javac contexts, if the JVM allows it
+ * (see {@link CompilerContextPool}). Programs with dependencies always get a new context, as a reused one could
+ * still know classes from the dependencies of a previous program.
+ */
+final class InMemoryCompiler {
+
+    private static final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+    // workspaces not in use by any compilation, the most recently used first
+    private static final Deque<Workspace> idleWorkspaces = new ConcurrentLinkedDeque<>();
+
+    private static final int MAX_IDLE_WORKSPACES = Runtime.getRuntime().availableProcessors();
+
+    private static final PlatformClassListings platformClassListings = new PlatformClassListings();
+
+    private InMemoryCompiler() {
+    }
+
+    /**
+     * Compile the given source code.
+     *
+     * @param className          name of the class contained in the code
+     * @param code               Java source code
+     * @param classLoaderContext context used to find the classes the code depends on
+     * @param errorWriter        writer for compilation errors
+     * @return the bytecode of all classes declared in the code, by binary class name
+     * @throws JGrabError if the code cannot be compiled
+     */
+    static Map<String, byte[]> compile( String className,
+                                        String code,
+                                        ClassLoaderContext classLoaderContext,
+                                        PrintStream errorWriter ) {
+        if ( compiler == null ) {
+            throw new JGrabError( "No Java compiler available. JGrab must run on a JDK, not a JRE." );
+        }
+
+        var writer = new PrintWriter( errorWriter, true );
+        var source = List.of( new ClassLoaderContextFileManager.SourceFileObject( className, code ) );
+        var workspace = acquireWorkspace();
+        var reusable = false;
+
+        try {
+            ClassLoaderContextFileManager fileManager;
+            boolean ok;
+            if ( workspace.contextPool != null && classLoaderContext == EmptyClassLoaderContext.INSTANCE ) {
+                fileManager = workspace.reusedContextsFileManager;
+                fileManager.clearCompiledClasses();
+                ok = workspace.contextPool.compile( writer, fileManager, source );
+            } else {
+                fileManager = new ClassLoaderContextFileManager(
+                        workspace.standardFileManager, classLoaderContext, platformClassListings );
+                ok = compiler.getTask( writer, fileManager, null, null, null, source ).call();
+            }
+            writer.flush();
+
+            // compilation errors leave the workspace as good as new, unlike errors in the compiler itself
+            reusable = true;
+
+            if ( !ok ) {
+                throw new JGrabError( "Java code compilation failed" );
+            }
+            return fileManager.getCompiledClasses();
+        } finally {
+            releaseWorkspace( workspace, reusable );
+        }
+    }
+
+    private static Workspace acquireWorkspace() {
+        var workspace = idleWorkspaces.pollFirst();
+        return workspace == null ? new Workspace() : workspace;
+    }
+
+    private static void releaseWorkspace( Workspace workspace, boolean reusable ) {
+        // only keep as many workspaces as compilations that may run in parallel
+        if ( reusable && idleWorkspaces.size() < MAX_IDLE_WORKSPACES ) {
+            idleWorkspaces.addFirst( workspace );
+        } else {
+            workspace.close();
+        }
+    }
+
+    /**
+     * @return the number of packages whose JDK classes have been listed and cached
+     */
+    static int cachedPlatformPackages() {
+        return platformClassListings.size();
+    }
+
+    /**
+     * A file manager, and the javac contexts reused with it, which may only be used by one compilation at a time.
+     */
+    private static final class Workspace {
+        final StandardJavaFileManager standardFileManager = compiler.getStandardFileManager( null, null, null );
+
+        // null if javac contexts cannot be reused
+        final CompilerContextPool contextPool = CompilerContextPool.create( 1 );
+
+        // the reused contexts keep the file manager they were created with, so they must always get this one
+        final ClassLoaderContextFileManager reusedContextsFileManager = new ClassLoaderContextFileManager(
+                standardFileManager, EmptyClassLoaderContext.INSTANCE, platformClassListings );
+
+        void close() {
+            try {
+                standardFileManager.close();
+            } catch ( IOException e ) {
+                // nothing else to do with it
+            }
+        }
+    }
+}
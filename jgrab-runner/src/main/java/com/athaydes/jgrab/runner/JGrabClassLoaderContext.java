@@ -5,34 +5,42 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * ClassLoaderContext for the JGrab application.
  */
-class JGrabClassLoaderContext implements ClassLoaderContext {
+class JGrabClassLoaderContext implements ClassLoaderContext, AutoCloseable {
 
     private final URLClassLoader dependenciesClassLoader;
-    private final List<JarFile> jars;
+    private final List<File> jars;
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger( JGrabClassLoaderContext.class );
 
+    // created lazily, on the first lookup
+    private volatile List<JarPackageIndex> jarIndexes;
+
+    // class entries by package, for the packages looked up so far
+    private final Map<String, List<String>> classEntriesByPackage = new ConcurrentHashMap<>();
+
     JGrabClassLoaderContext( List<File> dependencyJars ) {
         URL[] jarUrls = new URL[ dependencyJars.size() ];
-        this.jars = new ArrayList<>( dependencyJars.size() );
+        this.jars = List.copyOf( dependencyJars );
 
         for ( int i = 0; i < dependencyJars.size(); i++ ) {
             File jar = dependencyJars.get( i );
 
             try {
-                jars.add( new JarFile( jar ) );
                 jarUrls[ i ] = jar.toURI().toURL();
-            } catch ( IOException e ) {
+            } catch ( MalformedURLException e ) {
                 throw new RuntimeException( e );
             }
         }
@@ -54,42 +62,42 @@ class JGrabClassLoaderContext implements ClassLoaderContext {
             return Collections.emptyList();
         }
 
-        List<String> classes = jars.stream()
-                .flatMap( jar -> filterEntriesByPackage( jar, packageName ) )
-                .collect( Collectors.toList() );
+        List<String> classes = classEntriesByPackage.computeIfAbsent( packageName, this::findClassEntriesIn );
 
         logger.debug( "Total {} classes found in package {}", classes.size(), packageName );
 
         return classes;
     }
 
-    private static Stream<String> filterEntriesByPackage( JarFile jarFile, String packageName ) {
-        logger.debug( "Searching jar {} for package {}", jarFile.getName(), packageName );
-
-        Enumeration<JarEntry> entries = jarFile.entries();
-        List<String> result = new ArrayList<>( 4 );
-
-        while ( entries.hasMoreElements() ) {
-            JarEntry entry = entries.nextElement();
-            if ( entry.isDirectory() ) {
-                continue;
-            }
-
-            String entryName = entry.getName();
-
-            if ( entryName.endsWith( ".class" ) ) {
-                int lastPartIndex = entryName.lastIndexOf( '/' );
+    /**
+     * Close the ClassLoader of this context.
+     * <p>
+     * Classes already loaded remain usable, but no new classes can be loaded after this is called.
+     */
+    @Override
+    public void close() throws IOException {
+        dependenciesClassLoader.close();
+    }
 
-                String entryPackage = lastPartIndex > 0 ?
-                        entryName.substring( 0, lastPartIndex ).replace( "/", "." ) :
-                        "";
+    private List<String> findClassEntriesIn( String packageName ) {
+        List<String> result = new ArrayList<>();
+        for ( JarPackageIndex jarIndex : jarIndexes() ) {
+            result.addAll( jarIndex.classEntriesIn( packageName ) );
+        }
+        return Collections.unmodifiableList( result );
+    }
 
-                if ( entryPackage.equals( packageName ) ) {
-                    result.add( entryName );
+    private List<JarPackageIndex> jarIndexes() {
+        var result = jarIndexes;
+        if ( result == null ) {
+            synchronized ( this ) {
+                result = jarIndexes;
+                if ( result == null ) {
+                    result = jars.stream().map( JarPackageIndex::of ).collect( Collectors.toList() );
+                    jarIndexes = result;
                 }
             }
         }
-
-        return result.stream();
+        return result;
     }
 }
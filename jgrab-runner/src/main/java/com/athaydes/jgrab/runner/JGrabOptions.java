@@ -1,9 +1,20 @@
 package com.athaydes.jgrab.runner;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class JGrabOptions {
     public static final String SNIPPET_OPTION = "-e";
+    public static final String OFFLINE_OPTION = "--offline";
+    public static final String WORKER_OPTION = "--worker";
+    public static final String CREATE_CDS_ARCHIVE_OPTION = "--create-cds-archive";
+    public static final String CDS_TRAINING_OPTION = "--cds-training";
+
+    /**
+     * Whether dependencies may only be grabbed from local caches.
+     */
+    boolean offline;
 
     static class Snippet extends JGrabOptions {
         final String code;
@@ -32,7 +43,39 @@ public abstract class JGrabOptions {
     static class PrintVersion extends JGrabOptions {
     }
 
+    static class Worker extends JGrabOptions {
+    }
+
+    static class CreateCdsArchive extends JGrabOptions {
+    }
+
+    static class CdsTraining extends JGrabOptions {
+    }
+
     static JGrabOptions parseOptions( String[] args ) {
+        // flags may appear anywhere before the Java file or snippet
+        List<String> otherArgs = new ArrayList<>( args.length );
+        boolean offline = false;
+        boolean flagsAllowed = true;
+        for ( String arg : args ) {
+            if ( flagsAllowed && arg.equals( OFFLINE_OPTION ) ) {
+                offline = true;
+                continue;
+            }
+            if ( !arg.startsWith( "-" ) || arg.equals( SNIPPET_OPTION ) ) {
+                flagsAllowed = false;
+            }
+            otherArgs.add( arg );
+        }
+
+        var options = parseOptionsWithoutFlags( otherArgs.toArray( new String[ 0 ] ) );
+        if ( options != null ) {
+            options.offline = offline;
+        }
+        return options;
+    }
+
+    private static JGrabOptions parseOptionsWithoutFlags( String[] args ) {
         if ( args.length == 0 ) {
             return new StdIn();
         }
@@ -40,6 +83,15 @@ public abstract class JGrabOptions {
             if ( args[ 0 ].equals( "--daemon" ) || args[ 0 ].equals( "-d" ) ) {
                 return new Daemon();
             }
+            if ( args[ 0 ].equals( WORKER_OPTION ) ) {
+                return new Worker();
+            }
+            if ( args[ 0 ].equals( CREATE_CDS_ARCHIVE_OPTION ) ) {
+                return new CreateCdsArchive();
+            }
+            if ( args[ 0 ].equals( CDS_TRAINING_OPTION ) ) {
+                return new CdsTraining();
+            }
             if ( args[ 0 ].equals( "--help" ) || args[ 0 ].equals( "-h" ) ) {
                 return help();
             }
@@ -75,6 +127,14 @@ public abstract class JGrabOptions {
                 "Options:\n" +
                 "  --daemon -d\n" +
                 "    Starts up the JGrab daemon (used by the jgrab-client).\n" +
+                "  --worker\n" +
+                "    Starts up an isolated worker (used by the JGrab daemon).\n" +
+                "  --create-cds-archive\n" +
+                "    Creates a class-data sharing archive to speed up JGrab's startup (requires Java 13+).\n" +
+                "  --cds-training\n" +
+                "    Compiles and runs a sample program (used by --create-cds-archive).\n" +
+                "  --offline\n" +
+                "    Only use dependencies available locally (can be combined with other options).\n" +
                 "  --help -h\n" +
                 "    Shows usage.\n" +
                 "  --version -v\n" +
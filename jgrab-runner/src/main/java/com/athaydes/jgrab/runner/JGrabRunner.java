@@ -1,13 +1,15 @@
 package com.athaydes.jgrab.runner;
 
 import com.athaydes.jgrab.Classpath;
+import com.athaydes.jgrab.Env;
+import com.athaydes.jgrab.JGrabHome;
 import com.athaydes.jgrab.code.JavaCode;
 import com.athaydes.jgrab.code.StdinJavaCode;
 import com.athaydes.jgrab.code.StringJavaCode;
+import com.athaydes.jgrab.daemon.IsolatedWorker;
 import com.athaydes.jgrab.daemon.JGrabDaemon;
 import com.athaydes.jgrab.jbuild.JBuildGrabber;
 import com.athaydes.osgiaas.api.env.ClassLoaderContext;
-import com.athaydes.osgiaas.javac.internal.compiler.OsgiaasJavaCompilerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,10 +20,11 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Collection;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
 import java.util.jar.JarFile;
 
 /**
@@ -33,7 +36,23 @@ public class JGrabRunner {
 
     private static final Grabber grabber = JBuildGrabber.INSTANCE;
 
-    private static final Map<String, ClassLoaderContext> classLoaderCache = new ConcurrentHashMap<>();
+    private static final ClassLoaderCache classLoaderCache = new ClassLoaderCache(
+            Env.intValue( "JGRAB_CLASSLOADER_CACHE_SIZE", 32, 1 ),
+            Duration.ofMinutes( Env.intValue( "JGRAB_CLASSLOADER_CACHE_TTL_MINUTES", 60, 1 ) ),
+            classpath -> new JGrabClassLoaderContext( classpath.resolvedArtifacts ) );
+
+    private static final CompiledCodeCache compiledCodeCache = new CompiledCodeCache(
+            new File( JGrabHome.getDir(), "compiled-cache" ), 256,
+            Env.intValue( "JGRAB_COMPILED_CACHE_MAX_MB", 64, 1 ) * 1024L * 1024L );
+
+    private static final String SNIPPET_CLASS_NAME = "JGrabSnippet";
+
+    /**
+     * JVM option allowing JGrab to reuse the compiler's internal state between compilations, which makes
+     * compiling small programs several times faster. The JGrab jar's manifest has the same effect.
+     */
+    public static final String COMPILER_EXPORTS_OPTION =
+            "--add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED";
 
     static void error( String reason ) {
         throw new JGrabError( reason + "\n\nUsage: jgrab (-e <java_source>) | java_file" );
@@ -60,6 +79,9 @@ public class JGrabRunner {
     }
 
     private static void run( String currentDir, JGrabOptions options ) throws Exception {
+        if ( options.offline ) {
+            JBuildGrabber.INSTANCE.setOffline( true );
+        }
         if ( options instanceof JGrabOptions.JavaFile ) {
             JGrabOptions.JavaFile javaFile = ( JGrabOptions.JavaFile ) options;
             Path rawPath = javaFile.file.toPath();
@@ -71,6 +93,15 @@ public class JGrabRunner {
             run( new StringJavaCode( ( ( JGrabOptions.Snippet ) options ).code ), new String[ 0 ] );
         } else if ( options instanceof JGrabOptions.Daemon ) {
             JGrabDaemon.start( JGrabRunner::run );
+        } else if ( options instanceof JGrabOptions.Worker ) {
+            IsolatedWorker.serve( JGrabRunner::run );
+        } else if ( options instanceof JGrabOptions.CreateCdsArchive ) {
+            var archive = CdsArchive.create();
+            System.out.println( "Created CDS archive at " + archive );
+        } else if ( options instanceof JGrabOptions.CdsTraining ) {
+            // the compiled code cache may already hold the sample program, so make sure the compiler is used too
+            warmUpCompiler();
+            run( new StringJavaCode( CdsArchive.TRAINING_CODE ), new String[ 0 ] );
         } else if ( options instanceof JGrabOptions.PrintVersion ) {
             printVersion();
         } else {
@@ -100,31 +131,100 @@ public class JGrabRunner {
     private static void run( JavaCode javaCode,
                              String[] args,
                              Classpath classpath ) {
-        var classLoaderContext = classLoaderFor( classpath );
+        if ( classpath.isEmpty() ) {
+            run( javaCode, args, classpath, EmptyClassLoaderContext.INSTANCE );
+        } else {
+            try ( var lease = classLoaderCache.acquire( classpath ) ) {
+                run( javaCode, args, classpath, lease.context() );
+            } finally {
+                logger.debug( "{}", classLoaderCache.stats() );
+            }
+        }
+    }
 
+    private static void run( JavaCode javaCode,
+                             String[] args,
+                             Classpath classpath,
+                             ClassLoaderContext classLoaderContext ) {
         if ( javaCode.isSnippet() ) {
-            runJavaSnippet( javaCode.getCode(), classLoaderContext );
+            runJavaSnippet( javaCode.getCode(), classLoaderContext, classpath );
         } else {
-            runJavaClass( javaCode, classLoaderContext, args );
+            runJavaClass( javaCode, classLoaderContext, classpath, args );
         }
     }
 
-    public static void populateClassLoaderCache( Collection<Classpath> classpaths ) {
-        logger.debug( "Populating ClassLoader cache with {} entries", classpaths.size() );
+    /**
+     * Create the ClassLoaders for the given classpaths, in order, until the ClassLoader cache is full.
+     *
+     * @param classpaths to warm up, the most important first
+     */
+    public static void warmUpClassLoaderCache( Collection<Classpath> classpaths ) {
+        logger.debug( "Warming up ClassLoader cache with up to {} entries", classpaths.size() );
         for ( Classpath classpath : classpaths ) {
-            classLoaderFor( classpath );
+            if ( !classpath.isEmpty() && !classLoaderCache.warmUp( classpath ) ) {
+                logger.debug( "ClassLoader cache is full" );
+                break;
+            }
         }
     }
 
-    private static ClassLoaderContext classLoaderFor( Classpath classpath ) {
-        if ( classpath.isEmpty() ) {
-            return EmptyClassLoaderContext.INSTANCE;
+    /**
+     * @return the maximum number of ClassLoaders kept in the ClassLoader cache
+     */
+    public static int classLoaderCacheSize() {
+        return classLoaderCache.maxEntries();
+    }
+
+    /**
+     * Evict ClassLoaders that have been idle for too long, closing their jar files.
+     * <p>
+     * The statistics of the ClassLoader cache are only logged at info level if any ClassLoader was evicted.
+     */
+    public static void evictIdleClassLoaders() {
+        int evicted = classLoaderCache.evictExpired();
+        if ( evicted > 0 ) {
+            logger.info( "Evicted {} idle ClassLoaders, {}", evicted, classLoaderCache.stats() );
+        } else {
+            logger.debug( "{}", classLoaderCache.stats() );
         }
-        return classLoaderCache.computeIfAbsent( classpath.hash, ignore ->
-                new JGrabClassLoaderContext( classpath.resolvedArtifacts ) );
     }
 
-    private static void runJavaSnippet( String snippet, ClassLoaderContext classLoaderContext ) {
+    /**
+     * Compile a trivial class, bypassing all caches, so that the Java compiler's classes are loaded and initialized
+     * before the first program is compiled.
+     */
+    public static void warmUpCompiler() {
+        logger.debug( "Warming up the Java compiler" );
+        try {
+            InMemoryCompiler.compile( "JGrabWarmUp", "public class JGrabWarmUp {}",
+                    EmptyClassLoaderContext.INSTANCE, System.err );
+        } catch ( JGrabError e ) {
+            logger.warn( "Unable to warm up the Java compiler: {}", e.getMessage() );
+        }
+    }
+
+    /**
+     * Compile and run representative programs, bypassing all caches, until the time it takes to compile them
+     * stabilises, so that the Java compiler's hot paths are JIT-compiled before the first programs are compiled.
+     *
+     * @param maxRounds maximum number of times to compile the programs
+     * @param classpath the classpath most likely to be used by the next programs, or null if none is known.
+     *                  The programs are also compiled against it, so its ClassLoader is warmed up as well
+     * @param isIdle    whether no programs are running, the warm-up pauses while any are
+     */
+    public static void warmUpCompiler( int maxRounds, Classpath classpath, BooleanSupplier isIdle ) {
+        if ( classpath == null || classpath.isEmpty() ) {
+            CompilerWarmUp.run( maxRounds, List.of( EmptyClassLoaderContext.INSTANCE ), isIdle );
+            return;
+        }
+        try ( var lease = classLoaderCache.acquire( classpath ) ) {
+            CompilerWarmUp.run( maxRounds, List.of( EmptyClassLoaderContext.INSTANCE, lease.context() ), isIdle );
+        }
+    }
+
+    private static void runJavaSnippet( String snippet,
+                                        ClassLoaderContext classLoaderContext,
+                                        Classpath classpath ) {
         logger.debug( "Running Java snippet" );
 
         snippet = snippet.trim();
@@ -142,10 +242,14 @@ public class JGrabRunner {
             snippet = "return " + snippet + ";";
         }
 
-        Callable<?> callable = new OsgiaasJavaCompilerService().compileJavaSnippet( snippet, classLoaderContext )
-                .orElseThrow( () -> new JGrabError( "Java code compilation failed" ) );
+        String code = "public class " + SNIPPET_CLASS_NAME + " implements java.util.concurrent.Callable<Object> {\n" +
+                "public Object call() throws Exception {\n" +
+                snippet + "\n}\n}";
+
+        Class<?> compiledClass = compile( SNIPPET_CLASS_NAME, code, classLoaderContext, classpath );
 
         try {
+            Callable<?> callable = ( Callable<?> ) compiledClass.getDeclaredConstructor().newInstance();
             Object result = callable.call();
             if ( result != null ) {
                 System.out.println( result );
@@ -157,12 +261,11 @@ public class JGrabRunner {
 
     private static void runJavaClass( JavaCode javaCode,
                                       ClassLoaderContext classLoaderContext,
+                                      Classpath classpath,
                                       String[] args ) {
         logger.debug( "Running Java class" );
 
-        Class<Object> compiledClass = new OsgiaasJavaCompilerService()
-                .compileJavaClass( classLoaderContext, javaCode.getClassName(), javaCode.getCode(), System.err )
-                .orElseThrow( () -> new JGrabError( "Java code compilation failed" ) );
+        Class<?> compiledClass = compile( javaCode.getClassName(), javaCode.getCode(), classLoaderContext, classpath );
 
         if ( Runnable.class.isAssignableFrom( compiledClass ) ) {
             try {
@@ -181,6 +284,26 @@ public class JGrabRunner {
         }
     }
 
+    /**
+     * Compile the given code, or get its bytecode from the cache if it has been compiled before,
+     * then load the requested class in a new ClassLoader.
+     */
+    private static Class<?> compile( String className,
+                                     String code,
+                                     ClassLoaderContext classLoaderContext,
+                                     Classpath classpath ) {
+        var classes = compiledCodeCache.classesFor( CompiledCodeCache.keyOf( className, code, classpath ),
+                () -> InMemoryCompiler.compile( className, code, classLoaderContext, System.err ) );
+
+        var classLoader = new CompiledClassLoader( classes, classLoaderContext.getClassLoader() );
+
+        try {
+            return classLoader.loadClass( className );
+        } catch ( ClassNotFoundException e ) {
+            throw new JGrabError( "Compiled code does not contain class " + className );
+        }
+    }
+
     private static Path getTempDir() {
         try {
             return Files.createTempDirectory( "jgrab" );
@@ -0,0 +1,241 @@
+package com.athaydes.jgrab.runner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Index of the class entries of a jar file by package name.
+ * <p>
+ * The index is persisted in a compact binary file next to the jar (with the {@link #INDEX_EXTENSION} extension),
+ * so that the jar's entries only need to be enumerated once. The index file is memory-mapped, and only the
+ * package names are decoded when it is opened. Class names are decoded on lookup.
+ * <p>
+ * Indexes are shared by all classpaths containing the same jar, and are re-created if the jar changes.
+ */
+final class JarPackageIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger( JarPackageIndex.class );
+
+    static final String INDEX_EXTENSION = ".pkg-index";
+
+    private static final int MAGIC = 0x4A475049; // "JGPI"
+    private static final int FORMAT_VERSION = 1;
+
+    // soft references so that indexes of jars no longer in use can be garbage collected
+    private static final Map<String, SoftReference<JarPackageIndex>> sharedIndexes = new ConcurrentHashMap<>();
+
+    private final long size;
+    private final long lastModified;
+    private final ByteBuffer data;
+
+    // package name -> position in data of the package's class count
+    private final Map<String, Integer> packagePositions;
+
+    private JarPackageIndex( ByteBuffer data ) throws IOException {
+        this.data = data;
+        var buffer = data.duplicate();
+        if ( buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION ) {
+            throw new IOException( "Not a package index or unsupported version" );
+        }
+        this.size = buffer.getLong();
+        this.lastModified = buffer.getLong();
+        int packageCount = buffer.getInt();
+        this.packagePositions = new HashMap<>( packageCount * 2 );
+        for ( int i = 0; i < packageCount; i++ ) {
+            String packageName = readString( buffer );
+            packagePositions.put( packageName, buffer.position() );
+            int classCount = buffer.getInt();
+            for ( int j = 0; j < classCount; j++ ) {
+                skipString( buffer );
+            }
+        }
+    }
+
+    /**
+     * Get the index of the given jar, creating it only if no up-to-date index exists in memory or on disk.
+     *
+     * @param jar file
+     * @return the jar's index
+     */
+    static JarPackageIndex of( File jar ) {
+        var key = jar.getAbsolutePath();
+        var reference = sharedIndexes.get( key );
+        var index = reference == null ? null : reference.get();
+        if ( index == null || !index.isUpToDate( jar ) ) {
+            index = loadOrCreate( jar );
+            sharedIndexes.put( key, new SoftReference<>( index ) );
+        }
+        return index;
+    }
+
+    /**
+     * @param packageName name of the package
+     * @return the class entries in the given package (e.g. {@code com/example/MyClass.class})
+     */
+    List<String> classEntriesIn( String packageName ) {
+        Integer position = packagePositions.get( packageName );
+        if ( position == null ) {
+            return List.of();
+        }
+        var buffer = data.duplicate();
+        buffer.position( position );
+        int classCount = buffer.getInt();
+        var prefix = packageName.isEmpty() ? "" : packageName.replace( '.', '/' ) + '/';
+        List<String> result = new ArrayList<>( classCount );
+        for ( int i = 0; i < classCount; i++ ) {
+            result.add( prefix + readString( buffer ) );
+        }
+        return result;
+    }
+
+    boolean isUpToDate( File jar ) {
+        return size == jar.length() && lastModified == jar.lastModified();
+    }
+
+    static File indexFileOf( File jar ) {
+        return new File( jar.getAbsoluteFile().getParentFile(), jar.getName() + INDEX_EXTENSION );
+    }
+
+    static JarPackageIndex loadOrCreate( File jar ) {
+        var indexFile = indexFileOf( jar );
+
+        if ( indexFile.isFile() ) {
+            try ( var channel = FileChannel.open( indexFile.toPath(), StandardOpenOption.READ ) ) {
+                var index = new JarPackageIndex( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) );
+                if ( index.isUpToDate( jar ) ) {
+                    logger.debug( "Using package index {}", indexFile );
+                    return index;
+                }
+                logger.debug( "Package index is out-of-date: {}", indexFile );
+            } catch ( Exception e ) {
+                logger.debug( "Unable to read package index {}: {}", indexFile, e.toString() );
+            }
+        }
+
+        byte[] bytes = serialize( jar.length(), jar.lastModified(), scan( jar ) );
+        write( indexFile, bytes );
+
+        try {
+            return new JarPackageIndex( ByteBuffer.wrap( bytes ) );
+        } catch ( IOException e ) {
+            throw new IllegalStateException( "Created invalid package index", e );
+        }
+    }
+
+    private static Map<String, List<String>> scan( File jar ) {
+        logger.debug( "Indexing packages of jar {}", jar );
+
+        Map<String, List<String>> index = new LinkedHashMap<>();
+
+        try ( var jarFile = new JarFile( jar, false ) ) {
+            var entries = jarFile.entries();
+
+            // entries are normally grouped by directory, so remember the last one to avoid creating Strings
+            String lastDir = null;
+            List<String> lastPackageEntries = null;
+
+            while ( entries.hasMoreElements() ) {
+                ZipEntry entry = entries.nextElement();
+                if ( entry.isDirectory() ) {
+                    continue;
+                }
+
+                String entryName = entry.getName();
+
+                if ( entryName.endsWith( ".class" ) ) {
+                    int lastPartIndex = entryName.lastIndexOf( '/' );
+
+                    if ( lastDir == null || lastPartIndex != lastDir.length() ||
+                            !entryName.startsWith( lastDir ) ) {
+                        lastDir = lastPartIndex > 0 ? entryName.substring( 0, lastPartIndex ) : "";
+                        lastPackageEntries = index.computeIfAbsent( lastDir.replace( '/', '.' ),
+                                ignore -> new ArrayList<>() );
+                    }
+
+                    lastPackageEntries.add( entryName.substring( lastPartIndex + 1 ) );
+                }
+            }
+        } catch ( IOException e ) {
+            throw new JGrabError( "Unable to read jar " + jar + ": " + e );
+        }
+
+        return index;
+    }
+
+    private static byte[] serialize( long size, long lastModified, Map<String, List<String>> index ) {
+        var bytes = new ByteArrayOutputStream( 4096 );
+        try ( var out = new DataOutputStream( bytes ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( FORMAT_VERSION );
+            out.writeLong( size );
+            out.writeLong( lastModified );
+            out.writeInt( index.size() );
+            for ( var entry : index.entrySet() ) {
+                writeString( out, entry.getKey() );
+                out.writeInt( entry.getValue().size() );
+                for ( String className : entry.getValue() ) {
+                    writeString( out, className );
+                }
+            }
+        } catch ( IOException e ) {
+            // cannot happen, writing to memory
+            throw new RuntimeException( e );
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write( File indexFile, byte[] bytes ) {
+        try {
+            var tempFile = Files.createTempFile( indexFile.getParentFile().toPath(), indexFile.getName(), ".tmp" );
+            Files.write( tempFile, bytes );
+            try {
+                Files.move( tempFile, indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE );
+            } catch ( AtomicMoveNotSupportedException e ) {
+                Files.move( tempFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+        } catch ( IOException e ) {
+            // the jar may be in a read-only location, that's ok, we just can't persist the index
+            logger.debug( "Unable to write package index {}: {}", indexFile, e.toString() );
+        }
+    }
+
+    private static void writeString( DataOutputStream out, String value ) throws IOException {
+        byte[] bytes = value.getBytes( UTF_8 );
+        out.writeShort( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( ByteBuffer buffer ) {
+        int length = Short.toUnsignedInt( buffer.getShort() );
+        byte[] bytes = new byte[ length ];
+        buffer.get( bytes );
+        return new String( bytes, UTF_8 );
+    }
+
+    private static void skipString( ByteBuffer buffer ) {
+        int length = Short.toUnsignedInt( buffer.getShort() );
+        buffer.position( buffer.position() + length );
+    }
+}
@@ -0,0 +1,62 @@
+package com.athaydes.jgrab.runner;
+
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the JDK classes listed by the compiler, shared by all compilations.
+ * <p>
+ * The compiler lists the platform classes of every package a program uses, on every compilation. As they never
+ * change while the JVM runs, the listing of each package is only done once, by the first compilation needing it.
+ */
+final class PlatformClassListings {
+
+    private final Map<String, List<JavaFileObject>> listings = new ConcurrentHashMap<>();
+
+    /**
+     * List the files in the given location, using the cached listing if it's a platform location.
+     *
+     * @param fileManager to list files with if they are not cached
+     * @see JavaFileManager#list(JavaFileManager.Location, String, Set, boolean)
+     */
+    Iterable<JavaFileObject> list( JavaFileManager fileManager,
+                                   JavaFileManager.Location location,
+                                   String packageName,
+                                   Set<JavaFileObject.Kind> kinds,
+                                   boolean recurse ) throws IOException {
+        if ( !isPlatform( location ) ) {
+            return fileManager.list( location, packageName, kinds, recurse );
+        }
+
+        var key = location.getName() + '|' + packageName + '|' + kinds + '|' + recurse;
+        var listing = listings.get( key );
+        if ( listing == null ) {
+            // concurrent compilations may list the same package, but they get the same result
+            List<JavaFileObject> files = new ArrayList<>();
+            fileManager.list( location, packageName, kinds, recurse ).forEach( files::add );
+            listing = List.copyOf( files );
+            listings.putIfAbsent( key, listing );
+        }
+        return listing;
+    }
+
+    int size() {
+        return listings.size();
+    }
+
+    /**
+     * The JDK classes are in the platform class path up to Java 8, and in the system modules from Java 9, where
+     * each module has its own location, named after the module by the standard file manager.
+     */
+    private static boolean isPlatform( JavaFileManager.Location location ) {
+        return location == StandardLocation.PLATFORM_CLASS_PATH ||
+                location.getName().startsWith( StandardLocation.SYSTEM_MODULES.getName() + '[' );
+    }
+}
@@ -0,0 +1,117 @@
+package com.athaydes.jgrab.runner;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handles calls to {@link System#exit(int)} made by the programs run by JGrab.
+ * <p>
+ * When classes compiled by JGrab are loaded, their calls to {@code System.exit} are redirected to
+ * {@link #exit(int)} (see {@link ExitCallRewriter}). Normally, that just exits the JVM, but once
+ * {@link #interceptExits()} has been called, as the daemon does, it stops the program instead and its status is
+ * reported by {@link #run(Runnable, PrintStream)}, so that the JVM can keep running other programs.
+ * <p>
+ * Only {@code System.exit} is intercepted, programs may still exit the JVM via {@link Runtime#exit(int)} or
+ * {@link Runtime#halt(int)}.
+ */
+public final class ScriptExit {
+
+    private static volatile boolean intercepting;
+
+    // shared with the Threads started by a program, so any of them may set the program's exit status
+    private static final InheritableThreadLocal<AtomicReference<Integer>> requestedStatus =
+            new InheritableThreadLocal<>();
+
+    /**
+     * Thrown to stop a program that requested to exit.
+     */
+    public static final class ExitRequest extends Error {
+        public final int status;
+
+        public ExitRequest( int status ) {
+            super( "System.exit(" + status + ")", null, false, false );
+            this.status = status;
+        }
+    }
+
+    private ScriptExit() {
+    }
+
+    /**
+     * From now on, calls to {@code System.exit} made by programs stop the program instead of the JVM.
+     */
+    public static synchronized void interceptExits() {
+        if ( intercepting ) {
+            return;
+        }
+        intercepting = true;
+
+        // Threads started by programs die quietly when they request to exit
+        var defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler( ( thread, error ) -> {
+            if ( error instanceof ExitRequest ) {
+                return;
+            }
+            if ( defaultHandler != null ) {
+                defaultHandler.uncaughtException( thread, error );
+            } else {
+                System.err.print( "Exception in thread \"" + thread.getName() + "\" " );
+                error.printStackTrace( System.err );
+            }
+        } );
+    }
+
+    /**
+     * Replacement for {@link System#exit(int)} in the programs run by JGrab.
+     *
+     * @param status exit status
+     */
+    public static void exit( int status ) {
+        if ( !intercepting ) {
+            System.exit( status );
+        }
+        var holder = requestedStatus.get();
+        if ( holder != null ) {
+            holder.compareAndSet( null, status );
+        }
+        throw new ExitRequest( status );
+    }
+
+    /**
+     * Run a program on the current Thread.
+     *
+     * @param program to run
+     * @param err     stream to report errors thrown by the program
+     * @return the status the program exited with: the status given to {@code System.exit} if it was called,
+     * 1 if the program threw an error, 0 otherwise
+     */
+    public static int run( Runnable program, PrintStream err ) {
+        var holder = new AtomicReference<Integer>();
+        requestedStatus.set( holder );
+        int status = 0;
+        try {
+            program.run();
+        } catch ( Throwable t ) {
+            var exitRequest = exitRequestIn( t );
+            if ( exitRequest == null ) {
+                t.printStackTrace( err );
+                status = 1;
+            } else {
+                status = exitRequest.status;
+            }
+        } finally {
+            requestedStatus.remove();
+        }
+        var requested = holder.get();
+        return requested == null ? status : requested;
+    }
+
+    private static ExitRequest exitRequestIn( Throwable error ) {
+        for ( Throwable t = error; t != null; t = t.getCause() ) {
+            if ( t instanceof ExitRequest ) {
+                return ( ExitRequest ) t;
+            }
+        }
+        return null;
+    }
+}
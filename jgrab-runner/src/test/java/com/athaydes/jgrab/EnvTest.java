@@ -0,0 +1,22 @@
+package com.athaydes.jgrab;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class EnvTest {
+
+    @Test
+    public void canReadIntValues() {
+        var env = Map.of( "A", "10", "B", " 2 ", "C", "", "D", "not a number", "E", "-1" );
+
+        assertEquals( 10, Env.intValue( env, "A", 5, 0 ) );
+        assertEquals( 2, Env.intValue( env, "B", 5, 0 ) );
+        assertEquals( 5, Env.intValue( env, "C", 5, 0 ) );
+        assertEquals( 5, Env.intValue( env, "D", 5, 0 ) );
+        assertEquals( 0, Env.intValue( env, "E", 5, 0 ) );
+        assertEquals( 5, Env.intValue( env, "F", 5, 0 ) );
+    }
+}
@@ -0,0 +1,101 @@
+package com.athaydes.jgrab.code;
+
+import com.athaydes.jgrab.Dependency;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SourceScannerTest {
+
+    @Test
+    public void canScanClassWithPackageAndDependencies() {
+        var scanner = SourceScanner.scan( "package com.example;\n" +
+                "\n" +
+                "// #jgrab com.google.guava:guava:19.0\n" +
+                "//#jgrab org.slf4j:slf4j-api\n" +
+                "import com.google.common.collect.ImmutableMap;\n" +
+                "\n" +
+                "public final class Hello {\n" +
+                "    public static void main( String[] args ) {}\n" +
+                "}\n" );
+
+        assertEquals( "com.example", scanner.getPackageName() );
+        assertEquals( "com.example.Hello", scanner.getClassName() );
+        assertEquals( Set.of( Dependency.of( "com.google.guava:guava:19.0" ),
+                Dependency.of( "org.slf4j:slf4j-api" ) ), scanner.getDependencies() );
+    }
+
+    @Test
+    public void canScanClassWithoutPackage() {
+        var scanner = SourceScanner.scan( "// #jgrab a:b:1.0\nclass Hi {}" );
+
+        assertEquals( "", scanner.getPackageName() );
+        assertEquals( "Hi", scanner.getClassName() );
+        assertEquals( Set.of( Dependency.of( "a:b:1.0" ) ), scanner.getDependencies() );
+    }
+
+    @Test
+    public void dependenciesAfterTheClassDeclarationAreIgnored() {
+        var scanner = SourceScanner.scan( "// #jgrab a:b:1.0\n" +
+                "public class Hi {\n" +
+                "    // #jgrab c:d:2.0\n" +
+                "}\n" );
+
+        assertEquals( Set.of( Dependency.of( "a:b:1.0" ) ), scanner.getDependencies() );
+    }
+
+    @Test
+    public void snippetsAreScannedToTheEnd() {
+        var scanner = SourceScanner.scan( "var x = 1;\n" +
+                "// #jgrab a:b:1.0\n" +
+                "System.out.println( x );\n" +
+                "   // #jgrab c:d" );
+
+        assertNull( scanner.getClassName() );
+        assertEquals( Set.of( Dependency.of( "a:b:1.0" ), Dependency.of( "c:d" ) ), scanner.getDependencies() );
+    }
+
+    @Test
+    public void windowsLineEndingsAreSupported() {
+        var scanner = SourceScanner.scan( "package p;\r\n// #jgrab a:b:1.0\r\npublic class Hi {\r\n}\r\n" );
+
+        assertEquals( "p.Hi", scanner.getClassName() );
+        assertEquals( Set.of( Dependency.of( "a:b:1.0" ) ), scanner.getDependencies() );
+    }
+
+    @Test
+    public void commentsThatAreNotDeclarationsAreIgnored() {
+        var scanner = SourceScanner.scan( "// #jgrabbing\n// see #jgrab a:b\n/* #jgrab c:d */\n\"a\" + 1" );
+
+        assertTrue( scanner.getDependencies().isEmpty() );
+    }
+
+    @Test
+    @SuppressWarnings( "deprecation" )
+    public void lineBasedMethodsGiveTheSameResults() {
+        String[] lines = { "package p;", "// #jgrab a:b:1.0", "public class Hi {", "}" };
+
+        assertEquals( "p.Hi", JavaCode.extractClassNameFrom( lines ) );
+        assertEquals( Set.of( Dependency.of( "a:b:1.0" ) ), Dependency.parseDependencies( Stream.of( lines ) ) );
+    }
+
+    @Test
+    public void invalidDeclarationsAreOnlyReportedWhenDependenciesAreRequested() {
+        var scanner = SourceScanner.scan( "// #jgrab not-a-dependency\nclass Hi {}" );
+
+        assertEquals( "Hi", scanner.getClassName() );
+
+        try {
+            scanner.getDependencies();
+            fail( "Should have rejected the invalid declaration" );
+        } catch ( RuntimeException e ) {
+            assertTrue( e.getMessage(), e.getMessage().contains( "not-a-dependency" ) );
+        }
+    }
+}
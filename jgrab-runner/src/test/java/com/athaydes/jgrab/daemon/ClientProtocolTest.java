@@ -0,0 +1,184 @@
+package com.athaydes.jgrab.daemon;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientProtocolTest {
+
+    private static byte[] request( int version, Object... frames ) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream( bytes );
+        out.write( ClientProtocol.MAGIC );
+        out.writeByte( version );
+        for ( int i = 0; i < frames.length; i += 2 ) {
+            var data = ( ( String ) frames[ i + 1 ] ).getBytes( UTF_8 );
+            Frames.write( out, ( Byte ) frames[ i ], data, 0, data.length );
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ClientProtocol.ClientRequest read( byte[] bytes ) throws IOException {
+        return ClientProtocol.readRequest( new DataInputStream( new ByteArrayInputStream( bytes ) ), "abc" );
+    }
+
+    private static void assertRejected( byte[] bytes, String expectedMessage ) throws IOException {
+        try {
+            read( bytes );
+            fail( "Expected ProtocolException" );
+        } catch ( ClientProtocol.ProtocolException e ) {
+            assertTrue( e.getMessage(), e.getMessage().contains( expectedMessage ) );
+        }
+    }
+
+    @Test
+    public void canReadRequest() throws IOException {
+        var bytes = request( ClientProtocol.VERSION,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.COMMAND, ClientProtocol.RUN,
+                ClientProtocol.ARG, "first arg",
+                ClientProtocol.ARG, "",
+                ClientProtocol.SOURCE, "class A {}\n[not args]",
+                ClientProtocol.END, "" );
+
+        var request = read( bytes );
+
+        assertEquals( ClientProtocol.RUN, request.command );
+        assertArrayEquals( new String[]{ "first arg", "" }, request.args );
+        assertEquals( "class A {}\n[not args]", request.source );
+    }
+
+    @Test
+    public void stdinIsReadFromFramesAfterRequest() throws IOException {
+        var bytes = request( ClientProtocol.VERSION,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.COMMAND, ClientProtocol.RUN,
+                ClientProtocol.END, "",
+                ClientProtocol.STDIN, "hello ",
+                ClientProtocol.STDIN, "world",
+                ClientProtocol.STDIN, "",
+                ClientProtocol.STDIN, "ignored" );
+        var in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+
+        ClientProtocol.readRequest( in, "abc" );
+        var stdin = new Frames.FrameInputStream( in, ClientProtocol.STDIN );
+
+        assertEquals( "hello world", new String( stdin.readAllBytes(), UTF_8 ) );
+        assertEquals( -1, stdin.read() );
+    }
+
+    @Test
+    public void unsupportedVersionIsRejected() throws IOException {
+        var bytes = request( ClientProtocol.VERSION + 1,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.END, "" );
+        assertRejected( bytes, "version" );
+    }
+
+    @Test
+    public void requestWithoutCommandIsRejected() throws IOException {
+        var bytes = request( ClientProtocol.VERSION,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.END, "" );
+        assertRejected( bytes, "command" );
+    }
+
+    @Test
+    public void requestWithWrongTokenIsUnauthorized() throws IOException {
+        var bytes = request( ClientProtocol.VERSION,
+                ClientProtocol.TOKEN, "xyz",
+                ClientProtocol.COMMAND, ClientProtocol.RUN,
+                ClientProtocol.END, "" );
+        try {
+            read( bytes );
+            fail( "Expected UnauthorizedException" );
+        } catch ( ClientProtocol.UnauthorizedException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void tokenMustBeTheFirstFrame() throws IOException {
+        // nothing after the first frame is read, so the oversized frame does not matter
+        var bytes = request( ClientProtocol.VERSION,
+                ClientProtocol.COMMAND, ClientProtocol.RUN,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.ARG, "x".repeat( ClientProtocol.MAX_FRAME_LENGTH + 1 ),
+                ClientProtocol.END, "" );
+        try {
+            read( bytes );
+            fail( "Expected UnauthorizedException" );
+        } catch ( ClientProtocol.UnauthorizedException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void framesOtherThanSourceAreLimitedInLength() throws IOException {
+        var source = "x".repeat( ClientProtocol.MAX_FRAME_LENGTH + 1 );
+        var request = read( request( ClientProtocol.VERSION,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.COMMAND, ClientProtocol.RUN,
+                ClientProtocol.SOURCE, source,
+                ClientProtocol.END, "" ) );
+        assertEquals( source, request.source );
+
+        assertRejected( request( ClientProtocol.VERSION,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.COMMAND, ClientProtocol.RUN,
+                ClientProtocol.ARG, source,
+                ClientProtocol.END, "" ), "invalid length" );
+    }
+
+    @Test
+    public void numberOfArgsIsLimited() throws IOException {
+        var frames = new Object[ 2 * ( ClientProtocol.MAX_ARGS + 4 ) ];
+        frames[ 0 ] = ClientProtocol.TOKEN;
+        frames[ 1 ] = "abc";
+        frames[ 2 ] = ClientProtocol.COMMAND;
+        frames[ 3 ] = ClientProtocol.RUN;
+        for ( int i = 4; i < frames.length - 2; i += 2 ) {
+            frames[ i ] = ClientProtocol.ARG;
+            frames[ i + 1 ] = "a";
+        }
+        frames[ frames.length - 2 ] = ClientProtocol.END;
+        frames[ frames.length - 1 ] = "";
+
+        assertRejected( request( ClientProtocol.VERSION, frames ), "too many arguments" );
+    }
+
+    @Test
+    public void totalRequestLengthIsLimited() throws IOException {
+        var half = "x".repeat( ClientProtocol.MAX_REQUEST_LENGTH / 2 );
+        // each SOURCE frame fits in the limit, but the request does not
+        assertRejected( request( ClientProtocol.VERSION,
+                ClientProtocol.TOKEN, "abc",
+                ClientProtocol.COMMAND, ClientProtocol.RUN,
+                ClientProtocol.SOURCE, half,
+                ClientProtocol.SOURCE, half,
+                ClientProtocol.END, "" ), "invalid length" );
+    }
+
+    @Test
+    public void textClientsAreRecognizedWithoutConsumingInput() throws IOException {
+        var text = new BufferedInputStream( new ByteArrayInputStream( "token\n-e 1".getBytes( UTF_8 ) ) );
+        var framed = new BufferedInputStream( new ByteArrayInputStream( request( ClientProtocol.VERSION ) ) );
+
+        assertFalse( ClientProtocol.isUsedBy( text ) );
+        assertTrue( ClientProtocol.isUsedBy( framed ) );
+        assertEquals( 't', text.read() );
+        assertEquals( 'J', framed.read() );
+    }
+}
@@ -0,0 +1,178 @@
+package com.athaydes.jgrab.daemon;
+
+import com.athaydes.jgrab.Classpath;
+import com.athaydes.jgrab.code.StringJavaCode;
+import com.athaydes.jgrab.runner.JGrabError;
+import com.athaydes.jgrab.runner.ScriptExit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IsolatedWorkerPoolTest {
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private PrintStream originalOut;
+    private InputStream originalIn;
+    private IsolatedWorkerPool pool;
+
+    /**
+     * A fake worker that prints its PID and the code it receives, or exits if the code is "exit",
+     * or reports a failure if the code is "fail", or prints its PID and its stdin if the code is "cat".
+     */
+    public static void main( String[] args ) throws IOException {
+        var channel = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( FileDescriptor.out ) ) );
+        var requests = new DataInputStream( new BufferedInputStream( new FileInputStream( FileDescriptor.in ) ) );
+        Frames.writeInt( channel, WorkerProtocol.READY, 0 );
+        WorkerProtocol.Request request;
+        while ( ( request = WorkerProtocol.readRequest( requests ) ) != null ) {
+            var stdin = new Frames.FrameInputStream( requests, WorkerProtocol.STDIN );
+            var code = request.code.getCode();
+            if ( code.equals( "exit" ) ) {
+                System.exit( 3 );
+            }
+            if ( code.equals( "fail" ) ) {
+                Frames.writeInt( channel, WorkerProtocol.DONE, 2 );
+            } else {
+                var text = code.equals( "cat" ) ? new String( stdin.readAllBytes(), UTF_8 ) : code;
+                var message = ( ProcessHandle.current().pid() + " " + text + "\n" ).getBytes( UTF_8 );
+                Frames.write( channel, WorkerProtocol.STDOUT, message, 0, message.length );
+                Frames.writeInt( channel, WorkerProtocol.DONE, 0 );
+            }
+            stdin.skipToEnd();
+        }
+    }
+
+    @Before
+    public void setup() {
+        originalOut = System.out;
+        originalIn = System.in;
+        System.setOut( new PrintStream( output, true ) );
+        System.setIn( new ByteArrayInputStream( new byte[ 0 ] ) );
+    }
+
+    @After
+    public void cleanup() {
+        System.setOut( originalOut );
+        System.setIn( originalIn );
+        if ( pool != null ) {
+            pool.close();
+        }
+    }
+
+    private void createPool( int maxRunsPerWorker ) {
+        var java = Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString();
+        pool = new IsolatedWorkerPool( 1, maxRunsPerWorker, List.of(
+                java, "-cp", System.getProperty( "java.class.path" ), IsolatedWorkerPoolTest.class.getName() ) );
+    }
+
+    private String[] run( String code ) {
+        output.reset();
+        pool.accept( new StringJavaCode( code ), new String[ 0 ], Classpath.empty() );
+        return output.toString( UTF_8 ).trim().split( " " );
+    }
+
+    private int exitStatusOf( String code ) {
+        try {
+            run( code );
+        } catch ( ScriptExit.ExitRequest e ) {
+            return e.status;
+        }
+        throw new AssertionError( "Expected program to exit" );
+    }
+
+    @Test
+    public void programOutputIsForwardedAndWorkerIsReused() {
+        createPool( 10 );
+
+        var first = run( "a" );
+        var second = run( "b" );
+
+        assertEquals( "a", first[ 1 ] );
+        assertEquals( "b", second[ 1 ] );
+        assertEquals( first[ 0 ], second[ 0 ] );
+    }
+
+    @Test
+    public void stdinIsForwardedToWorker() {
+        createPool( 10 );
+
+        System.setIn( new ByteArrayInputStream( "hello".getBytes( UTF_8 ) ) );
+        var first = run( "cat" );
+        System.setIn( new ByteArrayInputStream( "unread input".getBytes( UTF_8 ) ) );
+        var second = run( "a" );
+        System.setIn( new ByteArrayInputStream( new byte[ 0 ] ) );
+        var third = run( "cat" );
+
+        assertEquals( "hello", first[ 1 ] );
+        assertEquals( "a", second[ 1 ] );
+        assertEquals( 1, third.length );
+        assertEquals( first[ 0 ], third[ 0 ] );
+    }
+
+    @Test
+    public void workerIsReplacedAfterMaxRuns() {
+        createPool( 2 );
+
+        var first = run( "a" );
+        var second = run( "b" );
+        var third = run( "c" );
+
+        assertEquals( first[ 0 ], second[ 0 ] );
+        assertNotEquals( second[ 0 ], third[ 0 ] );
+        assertEquals( "c", third[ 1 ] );
+    }
+
+    @Test
+    public void workerIsReplacedWhenItExits() {
+        createPool( 10 );
+
+        var first = run( "a" );
+        assertEquals( 3, exitStatusOf( "exit" ) );
+        var afterExit = run( "b" );
+
+        assertEquals( "b", afterExit[ 1 ] );
+        assertNotEquals( first[ 0 ], afterExit[ 0 ] );
+    }
+
+    @Test
+    public void programFailureIsReportedAndWorkerIsReused() {
+        createPool( 10 );
+
+        var first = run( "a" );
+        assertEquals( 2, exitStatusOf( "fail" ) );
+        var second = run( "b" );
+
+        assertEquals( first[ 0 ], second[ 0 ] );
+    }
+
+    @Test
+    public void workerThatCannotStartIsReported() {
+        pool = new IsolatedWorkerPool( 1, 10, List.of( "jgrab-command-that-does-not-exist" ) );
+        try {
+            pool.accept( new StringJavaCode( "a" ), new String[ 0 ], Classpath.empty() );
+            throw new AssertionError( "Expected JGrabError" );
+        } catch ( JGrabError e ) {
+            assertTrue( e.getMessage(), e.getMessage().contains( "unable to start worker JVM" ) );
+        }
+    }
+}
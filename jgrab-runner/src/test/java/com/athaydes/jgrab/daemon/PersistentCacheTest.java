@@ -2,14 +2,24 @@ package com.athaydes.jgrab.daemon;
 
 import com.athaydes.jgrab.Classpath;
 import com.athaydes.jgrab.Dependency;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -18,9 +28,12 @@ import static org.junit.Assert.*;
 
 public class PersistentCacheTest {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Test
     public void canLoadValidCache() throws IOException {
-        File tempDir = Files.createTempDirectory( "jgrab-persistent-cache-test" ).toFile();
+        File tempDir = tempFolder.getRoot();
 
         File dep1 = new File( tempDir, "1-valid-dep.jar" );
         File dep2 = new File( tempDir, "2-other-dep.jar" );
@@ -60,7 +73,7 @@ public class PersistentCacheTest {
 
     @Test
     public void newCacheCanBePopulatedThenSavedAsFile() throws IOException {
-        File tempDir = Files.createTempDirectory( "jgrab-persistent-cache-test" ).toFile();
+        File tempDir = tempFolder.getRoot();
 
         File dep1 = new File( tempDir, "valid-dep.jar" );
         File dep2 = new File( tempDir, "other-dep.jar" );
@@ -107,6 +120,490 @@ public class PersistentCacheTest {
         assertEquals( expectedCache, newCache );
     }
 
+    @Test
+    public void savingLoadedCacheKeepsPreviousEntries() throws IOException {
+        File tempDir = tempFolder.getRoot();
+
+        File dep1 = new File( tempDir, "dep1.jar" );
+        File dep2 = new File( tempDir, "dep2.jar" );
+
+        for ( File file1 : List.of( dep1, dep2 ) ) {
+            assertTrue( file1.createNewFile() );
+        }
+
+        File file = new File( tempDir, "cache" );
+
+        var firstDeps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var secondDeps = asDependencies( Stream.of( "other:dep:2.0" ) );
+
+        var cache = new PersistentCache( file );
+        cache.classpathOf( firstDeps, () -> List.of( dep1 ) );
+        cache.save();
+
+        var secondCache = new PersistentCache( file );
+        secondCache.classpathOf( secondDeps, () -> List.of( dep2 ) );
+        secondCache.save();
+
+        assertEquals( Set.of( Dependency.hashOf( firstDeps ), Dependency.hashOf( secondDeps ) ),
+                new PersistentCache( file ).loadCache().keySet() );
+    }
+
+    @Test
+    public void classpathsAreSortedByUsage() throws IOException {
+        File tempDir = tempFolder.getRoot();
+
+        File dep1 = new File( tempDir, "dep1.jar" );
+        File dep2 = new File( tempDir, "dep2.jar" );
+
+        for ( File file1 : List.of( dep1, dep2 ) ) {
+            assertTrue( file1.createNewFile() );
+        }
+
+        File file = new File( tempDir, "cache" );
+
+        var firstDeps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var secondDeps = asDependencies( Stream.of( "other:dep:2.0" ) );
+
+        var cache = new PersistentCache( file );
+        var first = cache.classpathOf( firstDeps, () -> List.of( dep1 ) );
+        var second = cache.classpathOf( secondDeps, () -> List.of( dep2 ) );
+        cache.classpathOf( secondDeps, () -> List.of( dep2 ) );
+
+        assertEquals( List.of( second, first ), cache.classpathsByPriority() );
+
+        // usage must be persisted
+        cache.save();
+
+        assertEquals( List.of( second, first ), new PersistentCache( file ).classpathsByPriority() );
+    }
+
+    @Test
+    public void onlyTheClasspathsWithHighestPriorityAreReturned() throws IOException {
+        File tempDir = tempFolder.getRoot();
+
+        File dep1 = new File( tempDir, "dep1.jar" );
+        File dep2 = new File( tempDir, "dep2.jar" );
+        File dep3 = new File( tempDir, "dep3.jar" );
+
+        for ( File dep : List.of( dep1, dep2, dep3 ) ) {
+            assertTrue( dep.createNewFile() );
+        }
+
+        File file = new File( tempDir, "cache" );
+
+        var firstDeps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var secondDeps = asDependencies( Stream.of( "other:dep:2.0" ) );
+        var thirdDeps = asDependencies( Stream.of( "third:dep:3.0" ) );
+
+        var cache = new PersistentCache( file );
+        for ( int i = 0; i < 3; i++ ) {
+            cache.classpathOf( firstDeps, () -> List.of( dep1 ) );
+        }
+        for ( int i = 0; i < 2; i++ ) {
+            cache.classpathOf( secondDeps, () -> List.of( dep2 ) );
+        }
+        cache.classpathOf( thirdDeps, () -> List.of( dep3 ) );
+        cache.save();
+
+        // the most used entry is no longer valid, so it's skipped
+        assertTrue( dep1.delete() );
+
+        var newCache = new PersistentCache( file );
+        assertEquals( List.of( dep2 ), newCache.classpathsByPriority( 1 ).get( 0 ).resolvedArtifacts );
+        assertEquals( List.of( List.of( dep2 ), List.of( dep3 ) ), newCache.classpathsByPriority( 5 ).stream()
+                .map( classpath -> classpath.resolvedArtifacts )
+                .collect( Collectors.toList() ) );
+    }
+
+    @Test
+    public void textCacheIsMigratedToBinaryFormat() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+
+        File file = new File( tempDir, "cache" );
+        Files.write( file.toPath(), ( "com.guava:guava:20.0 " + dep ).getBytes( StandardCharsets.UTF_8 ) );
+
+        var deps = asDependencies( Stream.of( "com.guava:guava:20.0" ) );
+        var newDeps = asDependencies( Stream.of( "other:dep:1.0" ) );
+
+        Supplier<List<File>> badSupplier = () -> {
+            throw new RuntimeException( "Should not be called" );
+        };
+
+        var cache = new PersistentCache( file );
+        assertEquals( List.of( dep ), cache.classpathOf( deps, badSupplier ).resolvedArtifacts );
+        cache.classpathOf( newDeps, () -> List.of( dep ) );
+        cache.save();
+
+        byte[] magic = Arrays.copyOf( Files.readAllBytes( file.toPath() ), 4 );
+        assertEquals( "JGDC", new String( magic, StandardCharsets.US_ASCII ) );
+
+        var newCache = new PersistentCache( file );
+        assertEquals( List.of( dep ), newCache.classpathOf( deps, badSupplier ).resolvedArtifacts );
+        assertEquals( List.of( dep ), newCache.classpathOf( newDeps, badSupplier ).resolvedArtifacts );
+    }
+
+    @Test
+    public void truncatedCacheFileResultsInCacheMisses() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+        File file = new File( tempDir, "cache" );
+
+        var deps = asDependencies( Stream.of( "com.guava:guava:20.0" ) );
+        var otherDeps = asDependencies( Stream.of( "other:dep:1.0" ) );
+        var cache = new PersistentCache( file );
+        cache.classpathOf( deps, () -> List.of( dep ) );
+        cache.classpathOf( otherDeps, () -> List.of( dep ) );
+        cache.save();
+
+        byte[] contents = Files.readAllBytes( file.toPath() );
+
+        // cut the file at every possible point, including inside the header and the index
+        for ( int length = 0; length < contents.length; length++ ) {
+            Files.write( file.toPath(), Arrays.copyOf( contents, length ) );
+            // entries computed by the previous iteration must not be found in the journal
+            Files.deleteIfExists( new File( file.getPath() + ".journal" ).toPath() );
+
+            var truncatedCache = new PersistentCache( file );
+            truncatedCache.classpathsByPriority( 10 );
+            assertEquals( List.of( dep ), truncatedCache.classpathOf( deps, () -> List.of( dep ) ).resolvedArtifacts );
+            assertEquals( List.of( dep ),
+                    truncatedCache.classpathOf( otherDeps, () -> List.of( dep ) ).resolvedArtifacts );
+        }
+    }
+
+    @Test
+    public void cacheFileWithInvalidOffsetsResultsInCacheMisses() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+        File file = new File( tempDir, "cache" );
+
+        var deps = asDependencies( Stream.of( "com.guava:guava:20.0" ) );
+        var cache = new PersistentCache( file );
+        cache.classpathOf( deps, () -> List.of( dep ) );
+        cache.save();
+
+        // header (3 ints), then the index: 32-byte hash and the entry offset, then the entry
+        int offsetPosition = 3 * Integer.BYTES + 32;
+        int entryPosition = offsetPosition + Integer.BYTES;
+        byte[] contents = Files.readAllBytes( file.toPath() );
+
+        for ( int[] corruption : new int[][]{
+                { 2 * Integer.BYTES, Integer.MAX_VALUE }, // entry count
+                { 2 * Integer.BYTES, -1 }, // entry count
+                { offsetPosition, Integer.MAX_VALUE }, // entry offset
+                { offsetPosition, -1 }, // entry offset
+                { offsetPosition, 0 }, // entry offset pointing into the header
+                { entryPosition, Integer.MAX_VALUE }, // length of the dependencies
+                { entryPosition, -1 }, // length of the dependencies
+        } ) {
+            byte[] corrupted = contents.clone();
+            ByteBuffer.wrap( corrupted ).putInt( corruption[ 0 ], corruption[ 1 ] );
+            Files.write( file.toPath(), corrupted );
+            Files.deleteIfExists( new File( file.getPath() + ".journal" ).toPath() );
+
+            var corruptedCache = new PersistentCache( file );
+            var computed = new AtomicInteger();
+            corruptedCache.classpathsByPriority( 10 );
+            assertEquals( List.of( dep ), corruptedCache.classpathOf( deps, () -> {
+                computed.incrementAndGet();
+                return List.of( dep );
+            } ).resolvedArtifacts );
+            assertEquals( "corruption at " + corruption[ 0 ], 1, computed.get() );
+        }
+    }
+
+    @Test
+    public void canFindAllEntriesOfLargeCache() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+        File file = new File( tempDir, "cache" );
+
+        var cache = new PersistentCache( file );
+        List<SortedSet<Dependency>> allDeps = new ArrayList<>();
+        for ( int i = 0; i < 100; i++ ) {
+            var deps = asDependencies( Stream.of( "group:module:" + i ) );
+            allDeps.add( deps );
+            cache.classpathOf( deps, () -> List.of( dep ) );
+        }
+        cache.save();
+
+        var newCache = new PersistentCache( file );
+        for ( var deps : allDeps ) {
+            var classpath = newCache.classpathOf( deps, () -> {
+                throw new RuntimeException( "Should not be called for " + deps );
+            } );
+            assertEquals( deps, classpath.dependencies );
+        }
+    }
+
+    @Test
+    public void computedEntriesAreJournaledBeforeSaving() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+        File file = new File( tempDir, "cache" );
+        File journal = new File( tempDir, "cache.journal" );
+
+        var deps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var otherDeps = asDependencies( Stream.of( "other:dep:2.0" ) );
+
+        Supplier<List<File>> badSupplier = () -> {
+            throw new RuntimeException( "Should not be called" );
+        };
+
+        var cache = new PersistentCache( file );
+        cache.classpathOf( deps, () -> List.of( dep ) );
+        cache.flushJournal();
+
+        // simulate a crash: the cache is never saved
+        assertFalse( file.exists() );
+        assertTrue( journal.isFile() );
+
+        var newCache = new PersistentCache( file );
+        assertEquals( List.of( dep ), newCache.classpathOf( deps, badSupplier ).resolvedArtifacts );
+        newCache.classpathOf( otherDeps, () -> List.of( dep ) );
+
+        // saving compacts the journal into the cache file
+        newCache.save();
+        assertTrue( file.isFile() );
+        assertFalse( journal.exists() );
+
+        var lastCache = new PersistentCache( file );
+        assertEquals( List.of( dep ), lastCache.classpathOf( deps, badSupplier ).resolvedArtifacts );
+        assertEquals( List.of( dep ), lastCache.classpathOf( otherDeps, badSupplier ).resolvedArtifacts );
+    }
+
+    @Test
+    public void incompleteJournalRecordIsIgnored() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+        File file = new File( tempDir, "cache" );
+        File journal = new File( tempDir, "cache.journal" );
+
+        var deps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var otherDeps = asDependencies( Stream.of( "other:dep:2.0" ) );
+
+        var cache = new PersistentCache( file );
+        cache.classpathOf( deps, () -> List.of( dep ) );
+        cache.flushJournal();
+        long firstRecordEnd = journal.length();
+        cache.classpathOf( otherDeps, () -> List.of( dep ) );
+        cache.flushJournal();
+
+        // simulate a crash while the second record was being written
+        try ( var channel = FileChannel.open( journal.toPath(), StandardOpenOption.WRITE ) ) {
+            channel.truncate( firstRecordEnd + 10 );
+        }
+
+        var newCache = new PersistentCache( file );
+        assertEquals( Set.of( Dependency.hashOf( deps ) ),
+                newCache.classpathsByPriority().stream().map( c -> c.hash ).collect( Collectors.toSet() ) );
+    }
+
+    @Test
+    public void recordsAppendedAfterIncompleteJournalRecordAreReplayed() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+        File file = new File( tempDir, "cache" );
+        File journal = new File( tempDir, "cache.journal" );
+
+        var deps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var otherDeps = asDependencies( Stream.of( "other:dep:2.0" ) );
+        var moreDeps = asDependencies( Stream.of( "more:dep:3.0" ) );
+
+        Supplier<List<File>> badSupplier = () -> {
+            throw new RuntimeException( "Should not be called" );
+        };
+
+        var cache = new PersistentCache( file );
+        cache.classpathOf( deps, () -> List.of( dep ) );
+        cache.flushJournal();
+        long firstRecordEnd = journal.length();
+        cache.classpathOf( otherDeps, () -> List.of( dep ) );
+        cache.flushJournal();
+
+        // simulate a crash while the second record was being written
+        try ( var channel = FileChannel.open( journal.toPath(), StandardOpenOption.WRITE ) ) {
+            channel.truncate( firstRecordEnd + 10 );
+        }
+
+        // the incomplete record is discarded, so the next record is appended right after the first one
+        var newCache = new PersistentCache( file );
+        assertEquals( List.of( dep ), newCache.classpathOf( deps, badSupplier ).resolvedArtifacts );
+        assertEquals( firstRecordEnd, journal.length() );
+        newCache.classpathOf( moreDeps, () -> List.of( dep ) );
+        newCache.flushJournal();
+
+        // crash again before saving
+        assertFalse( file.exists() );
+
+        var lastCache = new PersistentCache( file );
+        assertEquals( List.of( dep ), lastCache.classpathOf( deps, badSupplier ).resolvedArtifacts );
+        assertEquals( List.of( dep ), lastCache.classpathOf( moreDeps, badSupplier ).resolvedArtifacts );
+    }
+
+    @Test
+    public void sameClasspathIsOnlyComputedOnceByConcurrentRequests() throws Exception {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+
+        var cache = new PersistentCache( new File( tempDir, "cache" ) );
+        var deps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var computations = new AtomicInteger();
+        var canFinish = new CountDownLatch( 1 );
+
+        Supplier<List<File>> slowSupplier = () -> {
+            computations.incrementAndGet();
+            try {
+                assertTrue( canFinish.await( 5, TimeUnit.SECONDS ) );
+            } catch ( InterruptedException e ) {
+                throw new RuntimeException( e );
+            }
+            return List.of( dep );
+        };
+
+        var executor = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<Classpath>> results = new ArrayList<>();
+            for ( int i = 0; i < 8; i++ ) {
+                results.add( executor.submit( () -> cache.classpathOf( deps, slowSupplier ) ) );
+            }
+
+            // give all requests time to start waiting
+            Thread.sleep( 200 );
+            canFinish.countDown();
+
+            for ( var result : results ) {
+                assertEquals( List.of( dep ), result.get( 5, TimeUnit.SECONDS ).resolvedArtifacts );
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals( 1, computations.get() );
+    }
+
+    @Test
+    public void failureToComputeClasspathIsSeenByAllWaitingRequests() throws Exception {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+
+        var cache = new PersistentCache( new File( tempDir, "cache" ) );
+        var deps = asDependencies( Stream.of( "some:dep:1.0" ) );
+        var computing = new CountDownLatch( 1 );
+        var canFinish = new CountDownLatch( 1 );
+
+        var executor = Executors.newFixedThreadPool( 2 );
+        try {
+            var first = executor.submit( () -> cache.classpathOf( deps, () -> {
+                computing.countDown();
+                try {
+                    assertTrue( canFinish.await( 5, TimeUnit.SECONDS ) );
+                } catch ( InterruptedException e ) {
+                    throw new RuntimeException( e );
+                }
+                throw new IllegalStateException( "cannot resolve" );
+            } ) );
+
+            assertTrue( computing.await( 5, TimeUnit.SECONDS ) );
+
+            var second = executor.submit( () -> cache.classpathOf( deps, () -> {
+                throw new RuntimeException( "Should not be called" );
+            } ) );
+
+            Thread.sleep( 100 );
+            canFinish.countDown();
+
+            for ( var result : List.of( first, second ) ) {
+                try {
+                    result.get( 5, TimeUnit.SECONDS );
+                    fail( "Expected resolution to fail" );
+                } catch ( ExecutionException e ) {
+                    assertEquals( "cannot resolve", e.getCause().getMessage() );
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // a failure is not cached
+        assertEquals( List.of( dep ), cache.classpathOf( deps, () -> List.of( dep ) ).resolvedArtifacts );
+    }
+
+    @Test
+    public void differentClasspathsAreComputedInParallel() throws Exception {
+        File tempDir = tempFolder.getRoot();
+        File dep = new File( tempDir, "dep.jar" );
+        assertTrue( dep.createNewFile() );
+
+        var cache = new PersistentCache( new File( tempDir, "cache" ) );
+
+        // each computation can only finish once both are running at the same time
+        var bothRunning = new CountDownLatch( 2 );
+
+        Supplier<List<File>> supplier = () -> {
+            bothRunning.countDown();
+            try {
+                assertTrue( "computations did not run in parallel", bothRunning.await( 5, TimeUnit.SECONDS ) );
+            } catch ( InterruptedException e ) {
+                throw new RuntimeException( e );
+            }
+            return List.of( dep );
+        };
+
+        var executor = Executors.newFixedThreadPool( 2 );
+        try {
+            var first = executor.submit( () ->
+                    cache.classpathOf( asDependencies( Stream.of( "some:dep:1.0" ) ), supplier ) );
+            var second = executor.submit( () ->
+                    cache.classpathOf( asDependencies( Stream.of( "other:dep:1.0" ) ), supplier ) );
+
+            assertEquals( List.of( dep ), first.get( 10, TimeUnit.SECONDS ).resolvedArtifacts );
+            assertEquals( List.of( dep ), second.get( 10, TimeUnit.SECONDS ).resolvedArtifacts );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void entriesCanBeUpdatedToUseNewDependencyVersion() throws IOException {
+        File tempDir = tempFolder.getRoot();
+        File oldDep = new File( tempDir, "old.jar" );
+        File newDep = new File( tempDir, "new.jar" );
+        File otherDep = new File( tempDir, "other.jar" );
+
+        for ( File file1 : List.of( oldDep, newDep, otherDep ) ) {
+            assertTrue( file1.createNewFile() );
+        }
+
+        var cache = new PersistentCache( new File( tempDir, "cache" ) );
+        var deps = asDependencies( Stream.of( "some:dep:1.0", "other:dep:1.0" ) );
+        var unrelatedDeps = asDependencies( Stream.of( "other:dep:1.0" ) );
+        cache.classpathOf( deps, () -> List.of( oldDep, otherDep ) );
+        cache.classpathOf( unrelatedDeps, () -> List.of( otherDep ) );
+
+        List<SortedSet<Dependency>> computed = new ArrayList<>();
+        cache.replaceDependency( Dependency.of( "some:dep:1.0" ), Dependency.of( "some:dep:2.0" ), toCompute -> {
+            computed.add( toCompute );
+            return List.of( newDep, otherDep );
+        } );
+
+        var newDeps = asDependencies( Stream.of( "some:dep:2.0", "other:dep:1.0" ) );
+        assertEquals( List.of( newDeps ), computed );
+        assertEquals( List.of( newDep, otherDep ), cache.classpathOf( newDeps, () -> {
+            throw new RuntimeException( "Should not be called" );
+        } ).resolvedArtifacts );
+    }
+
     private SortedSet<Dependency> asDependencies( Stream<String> declarations ) {
         return declarations.map( Dependency::of ).collect( Collectors.toCollection( TreeSet::new ) );
     }
@@ -0,0 +1,117 @@
+package com.athaydes.jgrab.daemon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class RoutingPrintStreamTest {
+
+    private static final String NL = System.lineSeparator();
+
+    private PrintStream originalOut;
+    private PrintStream originalErr;
+
+    @Before
+    public void saveSystemStreams() {
+        originalOut = System.out;
+        originalErr = System.err;
+    }
+
+    @After
+    public void restoreSystemStreams() {
+        System.setOut( originalOut );
+        System.setErr( originalErr );
+    }
+
+    @Test
+    public void outputOfEachThreadGoesToItsOwnTarget() throws Exception {
+        RoutingPrintStream.install();
+
+        var firstOutput = new ByteArrayOutputStream();
+        var secondOutput = new ByteArrayOutputStream();
+        var bothStarted = new CountDownLatch( 2 );
+
+        Thread first = new Thread( () -> {
+            RoutingPrintStream.routeCurrentThreadTo( new PrintStream( firstOutput, true, UTF_8 ) );
+            awaitOther( bothStarted );
+            System.out.println( "first out" );
+            System.err.println( "first err" );
+        } );
+
+        Thread second = new Thread( () -> {
+            RoutingPrintStream.routeCurrentThreadTo( new PrintStream( secondOutput, true, UTF_8 ) );
+            awaitOther( bothStarted );
+            System.out.println( "second out" );
+        } );
+
+        first.start();
+        second.start();
+        first.join();
+        second.join();
+
+        assertEquals( "first out" + NL + "first err" + NL, firstOutput.toString( UTF_8 ) );
+        assertEquals( "second out" + NL, secondOutput.toString( UTF_8 ) );
+    }
+
+    @Test
+    public void stdoutAndStderrCanBeRoutedToDifferentTargets() throws Exception {
+        RoutingPrintStream.install();
+
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+
+        Thread thread = new Thread( () -> {
+            RoutingPrintStream.routeCurrentThreadTo(
+                    new PrintStream( out, true, UTF_8 ), new PrintStream( err, true, UTF_8 ) );
+            System.out.println( "to out" );
+            System.err.println( "to err" );
+        } );
+
+        thread.start();
+        thread.join();
+
+        assertEquals( "to out" + NL, out.toString( UTF_8 ) );
+        assertEquals( "to err" + NL, err.toString( UTF_8 ) );
+    }
+
+    @Test
+    public void threadsStartedByRoutedThreadInheritItsTarget() throws Exception {
+        RoutingPrintStream.install();
+
+        var output = new ByteArrayOutputStream();
+
+        Thread parent = new Thread( () -> {
+            RoutingPrintStream.routeCurrentThreadTo( new PrintStream( output, true, UTF_8 ) );
+            Thread child = new Thread( () -> System.out.println( "from child" ) );
+            child.start();
+            try {
+                child.join();
+            } catch ( InterruptedException e ) {
+                throw new RuntimeException( e );
+            }
+            RoutingPrintStream.clearCurrentThread();
+            System.out.println( "not routed" );
+        } );
+
+        parent.start();
+        parent.join();
+
+        assertEquals( "from child" + NL, output.toString( UTF_8 ) );
+    }
+
+    private static void awaitOther( CountDownLatch latch ) {
+        latch.countDown();
+        try {
+            latch.await();
+        } catch ( InterruptedException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+}
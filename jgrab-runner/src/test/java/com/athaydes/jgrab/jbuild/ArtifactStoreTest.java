@@ -0,0 +1,56 @@
+package com.athaydes.jgrab.jbuild;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class ArtifactStoreTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void sameArtifactIsOnlyStoredOnce() throws IOException {
+        var tempDir = tempFolder.getRoot();
+        var store = new ArtifactStore( new File( tempDir, "store" ) );
+
+        var first = write( new File( tempDir, "first" ), "lib-1.0.jar", "lib contents" );
+        var second = write( new File( tempDir, "second" ), "lib-1.0.jar", "lib contents" );
+
+        var stored = store.add( first );
+        assertTrue( stored.isFile() );
+        assertFalse( first.exists() );
+        assertEquals( "lib-1.0.jar", stored.getName() );
+        assertEquals( "lib contents", Files.readString( stored.toPath() ) );
+
+        assertEquals( stored, store.add( second ) );
+        assertFalse( second.exists() );
+    }
+
+    @Test
+    public void artifactsWithSameNameButDifferentContentsAreKeptApart() throws IOException {
+        var tempDir = tempFolder.getRoot();
+        var store = new ArtifactStore( new File( tempDir, "store" ) );
+
+        var first = store.add( write( new File( tempDir, "first" ), "lib-SNAPSHOT.jar", "v1" ) );
+        var second = store.add( write( new File( tempDir, "second" ), "lib-SNAPSHOT.jar", "v2" ) );
+
+        assertNotEquals( first, second );
+        assertEquals( "v1", Files.readString( first.toPath() ) );
+        assertEquals( "v2", Files.readString( second.toPath() ) );
+    }
+
+    private static File write( File dir, String name, String contents ) throws IOException {
+        Files.createDirectories( dir.toPath() );
+        var file = new File( dir, name );
+        Files.write( file.toPath(), contents.getBytes( UTF_8 ) );
+        return file;
+    }
+}
@@ -0,0 +1,58 @@
+package com.athaydes.jgrab.jbuild;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LatestVersionsTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void versionsAreStaleAfterTtl() throws IOException {
+        var file = new File( tempFolder.getRoot(), "latest" );
+        var time = new AtomicLong( 1000L );
+        var versions = new LatestVersions( file, Duration.ofMinutes( 1 ), time::get );
+
+        assertNull( versions.versionOf( "com.google.guava", "guava" ) );
+        assertTrue( versions.isStale( "com.google.guava", "guava" ) );
+
+        assertNull( versions.record( "com.google.guava", "guava", "20.0" ) );
+
+        assertEquals( "20.0", versions.versionOf( "com.google.guava", "guava" ) );
+        assertFalse( versions.isStale( "com.google.guava", "guava" ) );
+
+        time.addAndGet( Duration.ofMinutes( 1 ).toMillis() );
+
+        // stale versions can still be used
+        assertTrue( versions.isStale( "com.google.guava", "guava" ) );
+        assertEquals( "20.0", versions.versionOf( "com.google.guava", "guava" ) );
+
+        assertEquals( "20.0", versions.record( "com.google.guava", "guava", "21.0" ) );
+        assertFalse( versions.isStale( "com.google.guava", "guava" ) );
+        assertEquals( "21.0", versions.versionOf( "com.google.guava", "guava" ) );
+    }
+
+    @Test
+    public void versionsArePersisted() throws IOException {
+        var file = new File( tempFolder.getRoot(), "latest" );
+        var time = new AtomicLong( 1000L );
+
+        var versions = new LatestVersions( file, Duration.ofMinutes( 1 ), time::get );
+        versions.record( "com.google.guava", "guava", "20.0" );
+        versions.record( "org.slf4j", "slf4j-api", "1.7.36" );
+
+        var newVersions = new LatestVersions( file, Duration.ofMinutes( 1 ), time::get );
+        assertEquals( "20.0", newVersions.versionOf( "com.google.guava", "guava" ) );
+        assertEquals( "1.7.36", newVersions.versionOf( "org.slf4j", "slf4j-api" ) );
+        assertFalse( newVersions.isStale( "org.slf4j", "slf4j-api" ) );
+    }
+}
@@ -0,0 +1,52 @@
+package com.athaydes.jgrab.jbuild;
+
+import com.athaydes.jgrab.runner.JGrabError;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class RepositoriesTest {
+
+    @Test
+    public void canParseRepositories() {
+        var repositories = Repositories.parse( "# internal mirror first\n" +
+                "https://mirror.example.com/maven2 timeout=5\n" +
+                "\n" +
+                "file:/opt/repo # shared repository\n" +
+                "~/repo\n" +
+                "https://repo1.maven.org/maven2", "test" );
+
+        assertEquals( 4, repositories.size() );
+
+        assertEquals( "https://mirror.example.com/maven2", repositories.get( 0 ).location );
+        assertFalse( repositories.get( 0 ).isLocal );
+        assertEquals( Duration.ofSeconds( 5 ), repositories.get( 0 ).timeout );
+
+        assertEquals( new File( "/opt/repo" ).getAbsolutePath(), repositories.get( 1 ).location );
+        assertTrue( repositories.get( 1 ).isLocal );
+        assertNull( repositories.get( 1 ).timeout );
+
+        assertEquals( new File( System.getProperty( "user.home" ), "repo" ).getAbsolutePath(),
+                repositories.get( 2 ).location );
+        assertTrue( repositories.get( 2 ).isLocal );
+
+        assertEquals( "https://repo1.maven.org/maven2", repositories.get( 3 ).location );
+        assertFalse( repositories.get( 3 ).isLocal );
+        assertNotNull( "HTTP repositories have a default timeout", repositories.get( 3 ).timeout );
+    }
+
+    @Test
+    public void invalidRepositoriesAreRejected() {
+        for ( String spec : new String[]{ "", "# nothing", "https://repo.com timeout=abc", "https://repo.com foo" } ) {
+            try {
+                Repositories.parse( spec, "test" );
+                fail( "Expected invalid repositories to be rejected: " + spec );
+            } catch ( JGrabError e ) {
+                assertTrue( e.getMessage(), e.getMessage().contains( "test" ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.athaydes.jgrab.jbuild;
+
+import jbuild.artifact.Artifact;
+import jbuild.artifact.ArtifactRetriever;
+import jbuild.artifact.ResolvedArtifact;
+import jbuild.errors.ArtifactRetrievalError;
+import jbuild.util.Either;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RepositoryRetrieverTest {
+
+    private final Artifact artifact = new Artifact( "com.example", "lib", "1.0" );
+
+    @Test
+    public void missingArtifactsAreNotRequestedAgainUntilMissExpires() throws Exception {
+        var time = new AtomicLong( 0L );
+        var repository = new EmptyRepository();
+        var retriever = new RepositoryRetriever( repository, false, null, Duration.ofMinutes( 1 ), time::get,
+                error -> true );
+
+        assertTrue( isError( retriever.retrieve( artifact ) ) );
+        assertTrue( isError( retriever.retrieve( artifact ) ) );
+        assertEquals( 1, repository.requests.get() );
+
+        // other artifacts are still requested
+        assertTrue( isError( retriever.retrieve( new Artifact( "com.example", "other", "1.0" ) ) ) );
+        assertEquals( 2, repository.requests.get() );
+
+        time.addAndGet( Duration.ofMinutes( 1 ).toMillis() );
+
+        assertTrue( isError( retriever.retrieve( artifact ) ) );
+        assertEquals( 3, repository.requests.get() );
+    }
+
+    @Test
+    public void errorsOtherThanMissingArtifactsAreNotRemembered() throws Exception {
+        var repository = new EmptyRepository();
+        var retriever = new RepositoryRetriever( repository, false, null, Duration.ofMinutes( 1 ),
+                System::currentTimeMillis, error -> false );
+
+        assertTrue( isError( retriever.retrieve( artifact ) ) );
+        assertTrue( isError( retriever.retrieve( artifact ) ) );
+        assertEquals( 2, repository.requests.get() );
+    }
+
+    @Test
+    public void retrievalTimesOut() throws Exception {
+        var retrieval = new CompletableFuture<Either<ResolvedArtifact, ArtifactRetrievalError>>();
+        ArtifactRetriever<ArtifactRetrievalError> slowRepository = new ArtifactRetriever<>() {
+            @Override
+            public CompletionStage<Either<ResolvedArtifact, ArtifactRetrievalError>> retrieve( Artifact artifact ) {
+                return retrieval;
+            }
+
+            @Override
+            public void describe( StringBuilder builder, boolean verbose ) {
+                builder.append( "slow repository" );
+            }
+        };
+
+        var retriever = new RepositoryRetriever( slowRepository, false, Duration.ofMillis( 50 ), Duration.ZERO );
+
+        var error = retriever.retrieve( artifact ).toCompletableFuture().get( 5, TimeUnit.SECONDS )
+                .map( resolved -> null, e -> e );
+
+        assertTrue( error instanceof RepositoryRetriever.TimeoutError );
+        assertSame( artifact, error.getArtifact() );
+
+        // the retrieval must not keep running after the timeout
+        assertTrue( retrieval.isCancelled() );
+    }
+
+    private static boolean isError( CompletionStage<Either<ResolvedArtifact, ArtifactRetrievalError>> result )
+            throws Exception {
+        return result.toCompletableFuture().get( 5, TimeUnit.SECONDS ).map( resolved -> false, error -> true );
+    }
+
+    private static final class EmptyRepository implements ArtifactRetriever<ArtifactRetrievalError> {
+        final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public CompletionStage<Either<ResolvedArtifact, ArtifactRetrievalError>> retrieve( Artifact artifact ) {
+            requests.incrementAndGet();
+            ArtifactRetriever<?> retriever = this;
+            return CompletableFuture.completedFuture( Either.right( new ArtifactRetrievalError() {
+                @Override
+                public Artifact getArtifact() {
+                    return artifact;
+                }
+
+                @Override
+                public ArtifactRetriever<?> getRetriever() {
+                    return retriever;
+                }
+
+                @Override
+                public void describe( StringBuilder builder, boolean verbose ) {
+                    builder.append( "not found" );
+                }
+            } ) );
+        }
+
+        @Override
+        public void describe( StringBuilder builder, boolean verbose ) {
+            builder.append( "empty repository" );
+        }
+    }
+}
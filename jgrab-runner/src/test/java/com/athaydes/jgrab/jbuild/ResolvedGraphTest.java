@@ -0,0 +1,98 @@
+package com.athaydes.jgrab.jbuild;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class ResolvedGraphTest {
+
+    @Test
+    public void canReadGraphFromMavenRepositoryLayout() throws IOException {
+        var tempDir = Files.createTempDirectory( "jgrab-resolved-graph-test" ).toFile();
+        var store = new ArtifactStore( new File( tempDir, "store" ) );
+        var repository = new File( tempDir, "repo" );
+
+        writeJar( repository, "com/google/guava/guava/20.0/guava-20.0.jar" );
+        writeJar( repository, "org/slf4j/slf4j-api/1.7.36/slf4j-api-1.7.36.jar" );
+
+        var graph = ResolvedGraph.fromRepository( repository, store );
+
+        assertEquals( List.of( "com.google.guava:guava:20.0", "org.slf4j:slf4j-api:1.7.36" ), coordinatesOf( graph ) );
+        for ( File jar : graph.jars() ) {
+            assertTrue( jar.toPath().startsWith( store.getDir().toPath() ) );
+            assertTrue( jar.isFile() );
+        }
+    }
+
+    @Test
+    public void graphsWithoutConflictsAreMerged() throws IOException {
+        var tempDir = Files.createTempDirectory( "jgrab-resolved-graph-test" ).toFile();
+        var guava = node( tempDir, "com.google.guava", "guava", "20.0" );
+        var slf4j = node( tempDir, "org.slf4j", "slf4j-api", "1.7.36" );
+        var logback = node( tempDir, "ch.qos.logback", "logback-classic", "1.2.3" );
+
+        var merged = ResolvedGraph.merge( List.of(
+                new ResolvedGraph( List.of( guava, slf4j ) ),
+                new ResolvedGraph( List.of( logback, slf4j ) ) ) );
+
+        assertNotNull( merged );
+        assertEquals( List.of( "com.google.guava:guava:20.0", "org.slf4j:slf4j-api:1.7.36",
+                "ch.qos.logback:logback-classic:1.2.3" ), coordinatesOf( merged ) );
+    }
+
+    @Test
+    public void graphsWithConflictingVersionsAreNotMerged() throws IOException {
+        var tempDir = Files.createTempDirectory( "jgrab-resolved-graph-test" ).toFile();
+
+        var merged = ResolvedGraph.merge( List.of(
+                new ResolvedGraph( List.of( node( tempDir, "org.slf4j", "slf4j-api", "1.7.36" ) ) ),
+                new ResolvedGraph( List.of( node( tempDir, "org.slf4j", "slf4j-api", "2.0.0" ) ) ) ) );
+
+        assertNull( merged );
+    }
+
+    @Test
+    public void canWriteAndReadGraph() throws IOException {
+        var tempDir = Files.createTempDirectory( "jgrab-resolved-graph-test" ).toFile();
+        var storeDir = new File( tempDir, "store" );
+        var graph = new ResolvedGraph( List.of(
+                node( storeDir, "com.google.guava", "guava", "20.0" ),
+                node( storeDir, "org.slf4j", "slf4j-api", "1.7.36" ) ) );
+        var file = new File( tempDir, "graph" );
+
+        graph.write( file, storeDir );
+        var readGraph = ResolvedGraph.read( file, storeDir );
+
+        assertNotNull( readGraph );
+        assertEquals( coordinatesOf( graph ), coordinatesOf( readGraph ) );
+        assertEquals( graph.jars(), readGraph.jars() );
+
+        // graphs with missing jars cannot be used
+        assertTrue( graph.jars().get( 0 ).delete() );
+        assertNull( ResolvedGraph.read( file, storeDir ) );
+    }
+
+    private static ResolvedGraph.Node node( File dir, String group, String module, String version )
+            throws IOException {
+        var jar = writeJar( dir, group + "/" + module + "-" + version + ".jar" );
+        return new ResolvedGraph.Node( group, module, version, jar );
+    }
+
+    private static File writeJar( File dir, String path ) throws IOException {
+        var jar = new File( dir, path );
+        Files.createDirectories( jar.getParentFile().toPath() );
+        Files.write( jar.toPath(), path.getBytes( UTF_8 ) );
+        return jar;
+    }
+
+    private static List<String> coordinatesOf( ResolvedGraph graph ) {
+        return graph.nodes.stream().map( Object::toString ).collect( Collectors.toList() );
+    }
+}
@@ -0,0 +1,157 @@
+package com.athaydes.jgrab.jbuild;
+
+import jbuild.artifact.Artifact;
+import jbuild.artifact.ArtifactRetriever;
+import jbuild.artifact.ResolvedArtifact;
+import jbuild.errors.ArtifactRetrievalError;
+import jbuild.util.Either;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class SharedArtifactRetrieverTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void sameArtifactIsRetrievedOnlyOnceWhileInFlight() throws Exception {
+        var repository = new FileRepository( tempFolder.getRoot() );
+        var artifact = repository.add( "com.example", "lib", "1.0" );
+        var retriever = new SharedArtifactRetriever( repository, 4 );
+
+        var first = retriever.retrieve( artifact ).toCompletableFuture();
+        var second = retriever.retrieve( artifact ).toCompletableFuture();
+
+        assertEquals( 1, retriever.inFlightCount() );
+        repository.completeAll();
+
+        assertSame( first.get( 5, TimeUnit.SECONDS ), second.get( 5, TimeUnit.SECONDS ) );
+        assertEquals( "lib-1.0", contentsOf( first.get() ) );
+        assertEquals( 1, repository.retrievals.get() );
+        assertEquals( 0, retriever.inFlightCount() );
+
+        // once complete, the artifact may be retrieved again
+        var third = retriever.retrieve( artifact ).toCompletableFuture();
+        repository.completeAll();
+        assertEquals( "lib-1.0", contentsOf( third.get( 5, TimeUnit.SECONDS ) ) );
+        assertEquals( 2, repository.retrievals.get() );
+    }
+
+    @Test
+    public void numberOfParallelRetrievalsIsLimited() throws Exception {
+        var repository = new FileRepository( tempFolder.getRoot() );
+        var retriever = new SharedArtifactRetriever( repository, 2 );
+
+        List<CompletableFuture<Either<ResolvedArtifact, ArtifactRetrievalError>>> results = new ArrayList<>();
+        for ( int i = 0; i < 5; i++ ) {
+            results.add( retriever.retrieve( repository.add( "com.example", "lib" + i, "1.0" ) )
+                    .toCompletableFuture() );
+        }
+
+        assertEquals( 2, repository.retrievals.get() );
+
+        // each completion lets the next waiting retrieval start
+        while ( repository.completeAll() > 0 ) {
+            assertTrue( repository.running.get() <= 2 );
+        }
+
+        for ( int i = 0; i < 5; i++ ) {
+            assertEquals( "lib" + i + "-1.0", contentsOf( results.get( i ).get( 5, TimeUnit.SECONDS ) ) );
+        }
+        assertEquals( 5, repository.retrievals.get() );
+    }
+
+    @Test
+    public void cancelledRetrievalLetsTheNextOneStart() throws Exception {
+        var repository = new FileRepository( tempFolder.getRoot() );
+        var retriever = new SharedArtifactRetriever( repository, 1 );
+
+        var first = retriever.retrieve( repository.add( "com.example", "lib1", "1.0" ) ).toCompletableFuture();
+        var second = retriever.retrieve( repository.add( "com.example", "lib2", "1.0" ) ).toCompletableFuture();
+        assertEquals( 1, repository.retrievals.get() );
+
+        first.cancel( true );
+
+        assertEquals( 2, repository.retrievals.get() );
+        assertTrue( repository.started.get( 0 ).isCancelled() );
+        repository.completeAll();
+        assertEquals( "lib2-1.0", contentsOf( second.get( 5, TimeUnit.SECONDS ) ) );
+    }
+
+    private static String contentsOf( Either<ResolvedArtifact, ArtifactRetrievalError> result ) {
+        return result.map( resolved -> new String( resolved.contents, UTF_8 ), error -> "error" );
+    }
+
+    /**
+     * A stand-in for a remote repository that serves artifacts from a local directory, only completing
+     * retrievals when requested by the test.
+     */
+    private static final class FileRepository implements ArtifactRetriever<ArtifactRetrievalError> {
+
+        final File dir;
+        final AtomicInteger retrievals = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        final List<CompletableFuture<?>> started = new CopyOnWriteArrayList<>();
+
+        FileRepository( File dir ) {
+            this.dir = dir;
+        }
+
+        Artifact add( String group, String module, String version ) throws IOException {
+            var artifact = new Artifact( group, module, version );
+            Files.write( fileOf( artifact ).toPath(), ( module + "-" + version ).getBytes( UTF_8 ) );
+            return artifact;
+        }
+
+        int completeAll() {
+            List<Runnable> toComplete = new ArrayList<>( pending );
+            pending.clear();
+            toComplete.forEach( Runnable::run );
+            return toComplete.size();
+        }
+
+        @Override
+        public CompletionStage<Either<ResolvedArtifact, ArtifactRetrievalError>> retrieve( Artifact artifact ) {
+            retrievals.incrementAndGet();
+            running.incrementAndGet();
+            var future = new CompletableFuture<Either<ResolvedArtifact, ArtifactRetrievalError>>();
+            started.add( future );
+            pending.add( () -> {
+                running.decrementAndGet();
+                try {
+                    future.complete( Either.left( new ResolvedArtifact(
+                            Files.readAllBytes( fileOf( artifact ).toPath() ), artifact, this ) ) );
+                } catch ( IOException e ) {
+                    future.completeExceptionally( e );
+                }
+            } );
+            return future;
+        }
+
+        @Override
+        public void describe( StringBuilder builder, boolean verbose ) {
+            builder.append( "FileRepository(" ).append( dir ).append( ')' );
+        }
+
+        private File fileOf( Artifact artifact ) {
+            return new File( dir, artifact.toFileName() );
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.jgrab.Classpath;
+import com.athaydes.jgrab.Dependency;
+import com.athaydes.osgiaas.api.env.ClassLoaderContext;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClassLoaderCacheTest {
+
+    private final AtomicLong time = new AtomicLong();
+
+    private final ClassLoaderCache cache = new ClassLoaderCache( 2, Duration.ofNanos( 100 ),
+            classpath -> new FakeContext(), time::get );
+
+    @Test
+    public void reusesContextsAndCountsHitsAndMisses() {
+        var first = lease( "a:a:1" );
+        var again = lease( "a:a:1" );
+
+        assertSame( first.context(), again.context() );
+
+        var stats = cache.stats();
+        assertEquals( 1, stats.size );
+        assertEquals( 1, stats.hits );
+        assertEquals( 1, stats.misses );
+        assertEquals( 0, stats.evictions );
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntryAndClosesIt() {
+        var a = context( "a:a:1" );
+        var b = context( "b:b:1" );
+        // use 'a' so that 'b' becomes the least recently used
+        assertSame( a, context( "a:a:1" ) );
+        var c = context( "c:c:1" );
+
+        assertEquals( 2, cache.stats().size );
+        assertEquals( 1, cache.stats().evictions );
+        assertTrue( b.closed );
+        assertFalse( a.closed );
+        assertFalse( c.closed );
+    }
+
+    @Test
+    public void doesNotCloseContextInUseUntilReleased() {
+        var lease = lease( "a:a:1" );
+        var a = ( FakeContext ) lease.context();
+
+        context( "b:b:1" );
+        context( "c:c:1" );
+
+        assertEquals( 1, cache.stats().evictions );
+        assertFalse( a.closed );
+
+        lease.close();
+
+        assertTrue( a.closed );
+    }
+
+    @Test
+    public void evictsIdleEntries() {
+        var a = context( "a:a:1" );
+
+        time.set( 50 );
+        var b = context( "b:b:1" );
+
+        time.set( 120 );
+        assertEquals( 1, cache.evictExpired() );
+
+        assertTrue( a.closed );
+        assertFalse( b.closed );
+        assertEquals( 1, cache.stats().size );
+    }
+
+    @Test
+    public void warmUpDoesNotEvictEntries() {
+        assertTrue( cache.warmUp( classpath( "a:a:1" ) ) );
+        assertTrue( cache.warmUp( classpath( "b:b:1" ) ) );
+        assertFalse( cache.warmUp( classpath( "c:c:1" ) ) );
+
+        assertEquals( 2, cache.stats().size );
+        assertEquals( 0, cache.stats().evictions );
+    }
+
+    @Test
+    public void creatingContextDoesNotBlockOtherClasspaths() throws Exception {
+        var slowClasspath = classpath( "slow:slow:1" );
+        var creations = new AtomicInteger();
+        var creationStarted = new CountDownLatch( 1 );
+        var canFinish = new CountDownLatch( 1 );
+
+        var slowCache = new ClassLoaderCache( 4, Duration.ofMinutes( 1 ), classpath -> {
+            if ( classpath.equals( slowClasspath ) ) {
+                creations.incrementAndGet();
+                creationStarted.countDown();
+                try {
+                    assertTrue( canFinish.await( 5, TimeUnit.SECONDS ) );
+                } catch ( InterruptedException e ) {
+                    throw new RuntimeException( e );
+                }
+            }
+            return new FakeContext();
+        } );
+
+        var executor = Executors.newFixedThreadPool( 2 );
+        try {
+            var first = executor.submit( () -> context( slowCache, slowClasspath ) );
+            assertTrue( creationStarted.await( 5, TimeUnit.SECONDS ) );
+            var second = executor.submit( () -> context( slowCache, slowClasspath ) );
+
+            // other classpaths are served while the slow one is being created
+            context( slowCache, classpath( "a:a:1" ) );
+            assertFalse( first.isDone() );
+
+            canFinish.countDown();
+            assertSame( first.get( 5, TimeUnit.SECONDS ), second.get( 5, TimeUnit.SECONDS ) );
+            assertEquals( 1, creations.get() );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static FakeContext context( ClassLoaderCache cache, Classpath classpath ) {
+        try ( var lease = cache.acquire( classpath ) ) {
+            return ( FakeContext ) lease.context();
+        }
+    }
+
+    private ClassLoaderCache.Lease lease( String dependency ) {
+        return cache.acquire( classpath( dependency ) );
+    }
+
+    private FakeContext context( String dependency ) {
+        try ( var lease = lease( dependency ) ) {
+            return ( FakeContext ) lease.context();
+        }
+    }
+
+    private static Classpath classpath( String dependency ) {
+        var deps = new TreeSet<Dependency>();
+        deps.add( Dependency.of( dependency ) );
+        return new Classpath( deps, List.of( new File( dependency + ".jar" ) ) );
+    }
+
+    private static final class FakeContext implements ClassLoaderContext, AutoCloseable {
+        boolean closed;
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return ClassLoader.getPlatformClassLoader();
+        }
+
+        @Override
+        public Collection<String> getClassesIn( String packageName ) {
+            return List.of();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
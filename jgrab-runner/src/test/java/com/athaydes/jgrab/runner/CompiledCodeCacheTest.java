@@ -0,0 +1,159 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.jgrab.Classpath;
+import com.athaydes.jgrab.Dependency;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledCodeCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void compilesOnlyOnceThenUsesMemoryCache() {
+        var cache = new CompiledCodeCache( tempFolder.getRoot(), 10, Long.MAX_VALUE );
+        var compilations = new AtomicInteger();
+        Supplier<Map<String, byte[]>> compile = () -> {
+            compilations.incrementAndGet();
+            return Map.of( "A", new byte[]{ 1, 2, 3 } );
+        };
+
+        var key = CompiledCodeCache.keyOf( "A", "class A {}", Classpath.empty() );
+
+        cache.classesFor( key, compile );
+        var classes = cache.classesFor( key, compile );
+
+        assertEquals( 1, compilations.get() );
+        assertArrayEquals( new byte[]{ 1, 2, 3 }, classes.get( "A" ) );
+    }
+
+    @Test
+    public void compiledCodeIsLoadedFromDiskByNewCache() {
+        File dir = tempFolder.getRoot();
+        var key = CompiledCodeCache.keyOf( "A", "class A {}", Classpath.empty() );
+
+        new CompiledCodeCache( dir, 10, Long.MAX_VALUE ).classesFor( key,
+                () -> Map.of( "A", new byte[]{ 1, 2 }, "A$B", new byte[]{ 3 } ) );
+
+        var classes = new CompiledCodeCache( dir, 10, Long.MAX_VALUE ).classesFor( key, () -> {
+            throw new RuntimeException( "should not compile again" );
+        } );
+
+        assertEquals( 2, classes.size() );
+        assertArrayEquals( new byte[]{ 1, 2 }, classes.get( "A" ) );
+        assertArrayEquals( new byte[]{ 3 }, classes.get( "A$B" ) );
+    }
+
+    @Test
+    public void invalidDiskEntriesAreDeletedAndCompiledAgain() throws IOException {
+        File dir = tempFolder.getRoot();
+        var key = CompiledCodeCache.keyOf( "A", "class A {}", Classpath.empty() );
+        File file = new File( dir, key );
+
+        new CompiledCodeCache( dir, 10, Long.MAX_VALUE ).classesFor( key, () -> Map.of( "A", new byte[]{ 1, 2 } ) );
+        byte[] contents = Files.readAllBytes( file.toPath() );
+
+        // format version, class count, name length, name "A", bytecode length, bytecode
+        int countPosition = Integer.BYTES;
+        int lengthPosition = countPosition + Integer.BYTES + Short.BYTES + 1;
+
+        List<byte[]> invalidEntries = new ArrayList<>();
+        invalidEntries.add( Arrays.copyOf( contents, contents.length - 1 ) );
+        for ( int[] corruption : new int[][]{
+                { countPosition, Integer.MAX_VALUE },
+                { countPosition, -1 },
+                { lengthPosition, Integer.MAX_VALUE },
+                { lengthPosition, -1 },
+        } ) {
+            byte[] corrupted = contents.clone();
+            ByteBuffer.wrap( corrupted ).putInt( corruption[ 0 ], corruption[ 1 ] );
+            invalidEntries.add( corrupted );
+        }
+
+        for ( byte[] invalidEntry : invalidEntries ) {
+            Files.write( file.toPath(), invalidEntry );
+            var compilations = new AtomicInteger();
+
+            var classes = new CompiledCodeCache( dir, 10, Long.MAX_VALUE ).classesFor( key, () -> {
+                // the invalid entry must be gone before compiling again
+                assertFalse( file.exists() );
+                compilations.incrementAndGet();
+                return Map.of( "A", new byte[]{ 3 } );
+            } );
+
+            assertEquals( 1, compilations.get() );
+            assertArrayEquals( new byte[]{ 3 }, classes.get( "A" ) );
+        }
+    }
+
+    @Test
+    public void keyDependsOnCodeAndClassName() {
+        var key = CompiledCodeCache.keyOf( "A", "class A {}", Classpath.empty() );
+
+        assertEquals( key, CompiledCodeCache.keyOf( "A", "class A {}", Classpath.empty() ) );
+        assertNotEquals( key, CompiledCodeCache.keyOf( "A", "class A { }", Classpath.empty() ) );
+        assertNotEquals( key, CompiledCodeCache.keyOf( "B", "class A {}", Classpath.empty() ) );
+    }
+
+    @Test
+    public void keyDependsOnResolvedJars() throws IOException {
+        File dir = tempFolder.getRoot();
+        File jar = new File( dir, "lib-1.0.jar" );
+        File newJar = new File( dir, "lib-1.1.jar" );
+        Files.write( jar.toPath(), new byte[]{ 1 } );
+        Files.write( newJar.toPath(), new byte[]{ 1, 2 } );
+        var dependencies = new TreeSet<>( Set.of( Dependency.of( "com.example:lib" ) ) );
+
+        var key = CompiledCodeCache.keyOf( "A", "class A {}", new Classpath( dependencies, List.of( jar ) ) );
+
+        assertEquals( key, CompiledCodeCache.keyOf( "A", "class A {}",
+                new Classpath( dependencies, List.of( jar ) ) ) );
+
+        // same declared dependencies, but the latest version has changed
+        assertNotEquals( key, CompiledCodeCache.keyOf( "A", "class A {}",
+                new Classpath( dependencies, List.of( newJar ) ) ) );
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreDeletedFromDisk() {
+        File dir = tempFolder.getRoot();
+        var cache = new CompiledCodeCache( dir, 10, 250 );
+        Supplier<Map<String, byte[]>> compile = () -> Map.of( "A", new byte[ 100 ] );
+
+        var first = CompiledCodeCache.keyOf( "A", "class A {}", Classpath.empty() );
+        var second = CompiledCodeCache.keyOf( "A", "class A { }", Classpath.empty() );
+        var third = CompiledCodeCache.keyOf( "A", "class A {  }", Classpath.empty() );
+
+        cache.classesFor( first, compile );
+        cache.classesFor( second, compile );
+        assertTrue( new File( dir, first ).setLastModified( 1000L ) );
+        assertTrue( new File( dir, second ).setLastModified( 2000L ) );
+
+        cache.classesFor( third, compile );
+
+        assertFalse( new File( dir, first ).exists() );
+        assertTrue( new File( dir, second ).isFile() );
+        assertTrue( new File( dir, third ).isFile() );
+    }
+}
@@ -0,0 +1,41 @@
+package com.athaydes.jgrab.runner;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompilerWarmUpTest {
+
+    @Test
+    public void compilesProgramsUntilTheMaximumNumberOfRounds() {
+        int rounds = CompilerWarmUp.run( 2, List.of( EmptyClassLoaderContext.INSTANCE ), () -> true );
+
+        assertEquals( 2, rounds );
+    }
+
+    @Test
+    public void waitsUntilIdleBeforeEachRound() {
+        var idleChecks = new AtomicInteger();
+
+        int rounds = CompilerWarmUp.run( 1, List.of( EmptyClassLoaderContext.INSTANCE ),
+                () -> idleChecks.incrementAndGet() > 2 );
+
+        assertEquals( 1, rounds );
+        assertEquals( 3, idleChecks.get() );
+    }
+
+    @Test
+    public void stopsIfInterruptedWhileWaiting() {
+        Thread.currentThread().interrupt();
+        try {
+            int rounds = CompilerWarmUp.run( 5, List.of( EmptyClassLoaderContext.INSTANCE ), () -> false );
+
+            assertEquals( 0, rounds );
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
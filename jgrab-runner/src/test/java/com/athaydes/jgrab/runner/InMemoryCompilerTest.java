@@ -0,0 +1,152 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.osgiaas.api.env.ClassLoaderContext;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InMemoryCompilerTest {
+
+    @Test
+    public void canCompileClassWithNestedClasses() {
+        var classes = InMemoryCompiler.compile( "example.Hello",
+                "package example;\n" +
+                        "public class Hello implements java.util.function.Supplier<String> {\n" +
+                        "  static class Inner {}\n" +
+                        "  public String get() { return \"hello\"; }\n" +
+                        "}",
+                EmptyClassLoaderContext.INSTANCE, System.err );
+
+        assertEquals( List.of( "example.Hello", "example.Hello$Inner" ),
+                classes.keySet().stream().sorted().collect( Collectors.toList() ) );
+    }
+
+    @Test
+    public void canCompileCodeUsingClassesFromClassLoaderContext() throws Exception {
+        var libClasses = InMemoryCompiler.compile( "lib.Greeter",
+                "package lib; public class Greeter { public static String greet() { return \"hi\"; } }",
+                EmptyClassLoaderContext.INSTANCE, System.err );
+
+        File jar = createJar( libClasses );
+        var context = new JGrabClassLoaderContext( List.of( jar ) );
+
+        var classes = InMemoryCompiler.compile( "Main",
+                "import lib.Greeter;\n" +
+                        "public class Main implements java.util.function.Supplier<String> {\n" +
+                        "  public String get() { return Greeter.greet(); }\n" +
+                        "}",
+                context, System.err );
+
+        var loader = new CompiledClassLoader( classes, context.getClassLoader() );
+
+        @SuppressWarnings( "unchecked" )
+        var supplier = ( Supplier<String> ) loader.loadClass( "Main" ).getDeclaredConstructor().newInstance();
+
+        assertEquals( "hi", supplier.get() );
+    }
+
+    @Test
+    public void compilationErrorsAreReported() {
+        var errors = new ByteArrayOutputStream();
+
+        try {
+            InMemoryCompiler.compile( "Bad", "public class Bad { int x = ; }",
+                    EmptyClassLoaderContext.INSTANCE, new PrintStream( errors, true, UTF_8 ) );
+            fail( "Should not compile" );
+        } catch ( JGrabError e ) {
+            assertEquals( "Java code compilation failed", e.getMessage() );
+        }
+
+        assertTrue( errors.toString( UTF_8 ).contains( "illegal start of expression" ) );
+    }
+
+    @Test
+    public void classesCompiledBeforeAreNotVisible() {
+        InMemoryCompiler.compile( "First", "public class First { static int one() { return 1; } }",
+                EmptyClassLoaderContext.INSTANCE, System.err );
+
+        assertDoesNotCompile( "Second", "public class Second { int x = First.one(); }",
+                EmptyClassLoaderContext.INSTANCE );
+
+        // a class compiled again with the same name must not keep its old members
+        assertDoesNotCompile( "First", "public class First { int x = one(); }",
+                EmptyClassLoaderContext.INSTANCE );
+    }
+
+    @Test
+    public void dependenciesOfCodeCompiledBeforeAreNotVisible() throws Exception {
+        var libClasses = InMemoryCompiler.compile( "lib2.Counter",
+                "package lib2; public class Counter { public static int count() { return 2; } }",
+                EmptyClassLoaderContext.INSTANCE, System.err );
+        var context = new JGrabClassLoaderContext( List.of( createJar( libClasses ) ) );
+        var code = "public class UsesCounter { int x = lib2.Counter.count(); }";
+
+        InMemoryCompiler.compile( "UsesCounter", code, context, System.err );
+
+        assertDoesNotCompile( "UsesCounter", code, EmptyClassLoaderContext.INSTANCE );
+    }
+
+    @Test
+    public void canCompileConcurrently() throws Exception {
+        var executor = Executors.newFixedThreadPool( 4 );
+        try {
+            List<Future<Map<String, byte[]>>> results = new ArrayList<>();
+            for ( int i = 0; i < 16; i++ ) {
+                var className = "Concurrent" + i;
+                results.add( executor.submit( () -> InMemoryCompiler.compile( className,
+                        "public class " + className + " { java.util.List<String> list = java.util.List.of(); }",
+                        EmptyClassLoaderContext.INSTANCE, System.err ) ) );
+            }
+            for ( int i = 0; i < results.size(); i++ ) {
+                assertEquals( Set.of( "Concurrent" + i ), results.get( i ).get().keySet() );
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue( InMemoryCompiler.cachedPlatformPackages() > 0 );
+    }
+
+    private static void assertDoesNotCompile( String className, String code, ClassLoaderContext context ) {
+        var errors = new ByteArrayOutputStream();
+        try {
+            InMemoryCompiler.compile( className, code, context, new PrintStream( errors, true, UTF_8 ) );
+            fail( "Should not compile: " + code );
+        } catch ( JGrabError e ) {
+            assertTrue( errors.toString( UTF_8 ), errors.toString( UTF_8 ).contains( "error:" ) );
+        }
+    }
+
+    static File createJar( Map<String, byte[]> classes ) throws IOException {
+        File jar = Files.createTempFile( "jgrab-compiler-test", ".jar" ).toFile();
+        jar.deleteOnExit();
+        JarPackageIndex.indexFileOf( jar ).deleteOnExit();
+        try ( var out = new JarOutputStream( Files.newOutputStream( jar.toPath() ) ) ) {
+            for ( var entry : classes.entrySet() ) {
+                out.putNextEntry( new JarEntry( entry.getKey().replace( '.', '/' ) + ".class" ) );
+                out.write( entry.getValue() );
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+}
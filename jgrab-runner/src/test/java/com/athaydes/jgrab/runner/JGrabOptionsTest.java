@@ -0,0 +1,36 @@
+package com.athaydes.jgrab.runner;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class JGrabOptionsTest {
+
+    @Test
+    public void offlineFlagCanBeUsedWithAnyOption() {
+        var daemon = JGrabOptions.parseOptions( new String[]{ "--daemon", "--offline" } );
+        assertTrue( daemon instanceof JGrabOptions.Daemon );
+        assertTrue( daemon.offline );
+
+        var snippet = JGrabOptions.parseOptions( new String[]{ "--offline", "-e", "return", "1;" } );
+        assertTrue( snippet instanceof JGrabOptions.Snippet );
+        assertEquals( "return 1;", ( ( JGrabOptions.Snippet ) snippet ).code );
+        assertTrue( snippet.offline );
+
+        var stdin = JGrabOptions.parseOptions( new String[]{ "--offline" } );
+        assertTrue( stdin instanceof JGrabOptions.StdIn );
+        assertTrue( stdin.offline );
+    }
+
+    @Test
+    public void offlineFlagAfterJavaFileIsPassedToTheProgram() {
+        var options = JGrabOptions.parseOptions( new String[]{ "Main.java", "--offline" } );
+        assertTrue( options instanceof JGrabOptions.JavaFile );
+        var javaFile = ( JGrabOptions.JavaFile ) options;
+        assertEquals( new File( "Main.java" ), javaFile.file );
+        assertArrayEquals( new String[]{ "--offline" }, javaFile.args );
+        assertFalse( options.offline );
+    }
+}
@@ -0,0 +1,84 @@
+package com.athaydes.jgrab.runner;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.athaydes.jgrab.runner.InMemoryCompilerTest.createJar;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JarPackageIndexTest {
+
+    private static final byte[] NO_BYTES = new byte[ 0 ];
+
+    @Test
+    public void indexesClassEntriesByPackage() throws Exception {
+        File jar = createJar( Map.of(
+                "a.b.C", NO_BYTES,
+                "a.b.D", NO_BYTES,
+                "a.bc.E", NO_BYTES,
+                "a.F", NO_BYTES,
+                "G", NO_BYTES ) );
+
+        var index = JarPackageIndex.of( jar );
+
+        assertEquals( List.of( "a/b/C.class", "a/b/D.class" ), sorted( index.classEntriesIn( "a.b" ) ) );
+        assertEquals( List.of( "a/bc/E.class" ), index.classEntriesIn( "a.bc" ) );
+        assertEquals( List.of( "a/F.class" ), index.classEntriesIn( "a" ) );
+        assertEquals( List.of( "G.class" ), index.classEntriesIn( "" ) );
+        assertEquals( List.of(), index.classEntriesIn( "x" ) );
+    }
+
+    @Test
+    public void indexIsSharedUntilJarChanges() throws Exception {
+        File jar = createJar( Map.of( "a.B", NO_BYTES ) );
+
+        var index = JarPackageIndex.of( jar );
+        assertSame( index, JarPackageIndex.of( jar ) );
+
+        assertTrue( jar.setLastModified( jar.lastModified() - 10_000 ) );
+
+        assertNotSame( index, JarPackageIndex.of( jar ) );
+    }
+
+    @Test
+    public void indexIsPersistedNextToJar() throws Exception {
+        File jar = createJar( Map.of( "a.B", NO_BYTES, "a.C", NO_BYTES ) );
+        JarPackageIndex.of( jar );
+
+        assertTrue( JarPackageIndex.indexFileOf( jar ).isFile() );
+
+        // make the jar unreadable without changing its size and modification time
+        long lastModified = jar.lastModified();
+        Files.write( jar.toPath(), new byte[ ( int ) jar.length() ] );
+        assertTrue( jar.setLastModified( lastModified ) );
+
+        var index = JarPackageIndex.loadOrCreate( jar );
+
+        assertEquals( List.of( "a/B.class", "a/C.class" ), sorted( index.classEntriesIn( "a" ) ) );
+    }
+
+    @Test
+    public void classLoaderContextMergesPackagesOfAllJars() throws Exception {
+        File jar1 = createJar( Map.of( "a.B", NO_BYTES, "c.D", NO_BYTES ) );
+        File jar2 = createJar( Map.of( "a.E", NO_BYTES ) );
+
+        try ( var context = new JGrabClassLoaderContext( List.of( jar1, jar2 ) ) ) {
+            assertEquals( List.of( "a/B.class", "a/E.class" ), sorted( context.getClassesIn( "a" ) ) );
+            assertEquals( List.of( "c/D.class" ), sorted( context.getClassesIn( "c" ) ) );
+            assertEquals( List.of(), sorted( context.getClassesIn( "java.util" ) ) );
+        }
+    }
+
+    private static List<String> sorted( Collection<String> list ) {
+        return list.stream().sorted().collect( Collectors.toList() );
+    }
+}
@@ -0,0 +1,77 @@
+package com.athaydes.jgrab.runner;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptExitTest {
+
+    @BeforeClass
+    public static void setup() {
+        ScriptExit.interceptExits();
+    }
+
+    private static Runnable compile( String className, String code ) throws Exception {
+        var classes = InMemoryCompiler.compile( className, code, EmptyClassLoaderContext.INSTANCE, System.err );
+        var loader = new CompiledClassLoader( classes, EmptyClassLoaderContext.INSTANCE.getClassLoader() );
+        return ( Runnable ) loader.loadClass( className ).getDeclaredConstructor().newInstance();
+    }
+
+    @Test
+    public void exitStatusIsReportedWithoutExitingTheJvm() throws Exception {
+        var program = compile( "Exits", "public class Exits implements Runnable {\n" +
+                "  public void run() { System.exit( 3 ); }\n" +
+                "}" );
+
+        assertEquals( 3, ScriptExit.run( program, System.err ) );
+    }
+
+    @Test
+    public void exitViaMethodReferenceIsIntercepted() throws Exception {
+        var program = compile( "ExitsViaReference", "public class ExitsViaReference implements Runnable {\n" +
+                "  public void run() { java.util.function.IntConsumer exit = System::exit; exit.accept( 5 ); }\n" +
+                "}" );
+
+        assertEquals( 5, ScriptExit.run( program, System.err ) );
+    }
+
+    @Test
+    public void exitFromThreadStartedByProgramIsReported() throws Exception {
+        var program = compile( "ExitsFromThread", "public class ExitsFromThread implements Runnable {\n" +
+                "  public void run() {\n" +
+                "    Thread t = new Thread( () -> System.exit( 4 ) );\n" +
+                "    t.start();\n" +
+                "    try { t.join(); } catch ( InterruptedException e ) { throw new RuntimeException( e ); }\n" +
+                "  }\n" +
+                "}" );
+
+        assertEquals( 4, ScriptExit.run( program, System.err ) );
+    }
+
+    @Test
+    public void programsThatDoNotExitHaveStatusZero() throws Exception {
+        var program = compile( "DoesNotExit", "public class DoesNotExit implements Runnable {\n" +
+                "  public void run() { System.getProperty( \"user.dir\" ); }\n" +
+                "}" );
+
+        assertEquals( 0, ScriptExit.run( program, System.err ) );
+    }
+
+    @Test
+    public void programsThatThrowHaveStatusOne() {
+        var err = new ByteArrayOutputStream();
+
+        int status = ScriptExit.run( () -> {
+            throw new IllegalStateException( "broken" );
+        }, new PrintStream( err, true ) );
+
+        assertEquals( 1, status );
+        assertTrue( err.toString( UTF_8 ).contains( "broken" ) );
+    }
+}
@@ -0,0 +1,192 @@
+package com.athaydes.jgrab.runner;
+
+import com.athaydes.jgrab.Dependency;
+import com.athaydes.jgrab.code.JavaCode;
+import com.athaydes.jgrab.code.SourceScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+
+/**
+ * Compares the time taken to read and scan large generated Java sources using the {@link SourceScanner} with the
+ * time taken by the line-based approach JGrab used before it.
+ * <p>
+ * Two cases are measured:
+ * <ul>
+ *     <li>Java files: reading a file, finding its class name, dependencies and code, as {@link FileJavaCode} does.
+ *     The scanner stops at the class declaration, but both approaches must still read the whole file.</li>
+ *     <li>snippets: finding the dependencies of code already in memory that has no class declaration,
+ *     so both approaches must scan all of it.</li>
+ * </ul>
+ * Run it with the {@code sourceScannerBenchmark} Gradle task.
+ */
+public class SourceScannerBenchmark {
+
+    private static final int[] LINE_COUNTS = { 1_000, 10_000, 100_000 };
+
+    private static final long WARM_UP_NANOS = 3_000_000_000L;
+    private static final long MEASUREMENT_NANOS = 1_000_000_000L;
+
+    // results are accumulated here so that the JIT cannot drop the work done to compute them
+    private static long sink;
+
+    public static void main( String[] args ) throws Exception {
+        var dir = Files.createTempDirectory( "jgrab-source-scanner-benchmark" );
+        List<Path> files = new ArrayList<>( LINE_COUNTS.length );
+        List<String> snippets = new ArrayList<>( LINE_COUNTS.length );
+        for ( int lines : LINE_COUNTS ) {
+            var file = dir.resolve( "Generated" + lines + ".java" );
+            Files.writeString( file, generateClass( lines ) );
+            files.add( file );
+            snippets.add( generateSnippet( lines ) );
+        }
+
+        try {
+            // warm up all code paths with all inputs before measuring anything
+            long warmUpEnd = System.nanoTime() + WARM_UP_NANOS;
+            while ( System.nanoTime() < warmUpEnd ) {
+                for ( int i = 0; i < LINE_COUNTS.length; i++ ) {
+                    sink += scanFileLineByLine( files.get( i ) );
+                    sink += scanFile( files.get( i ) );
+                    sink += parseLineByLine( snippets.get( i ) ).size();
+                    sink += SourceScanner.scan( snippets.get( i ) ).getDependencies().size();
+                }
+            }
+
+            System.out.println( "Java files (read, find class name, dependencies and code):" );
+            for ( int i = 0; i < LINE_COUNTS.length; i++ ) {
+                var file = files.get( i );
+                report( LINE_COUNTS[ i ], measure( () -> scanFileLineByLine( file ) ),
+                        measure( () -> scanFile( file ) ) );
+            }
+
+            System.out.println( "Snippets (find dependencies in code without a class declaration):" );
+            for ( int i = 0; i < LINE_COUNTS.length; i++ ) {
+                var snippet = snippets.get( i );
+                report( LINE_COUNTS[ i ], measure( () -> parseLineByLine( snippet ).size() ),
+                        measure( () -> SourceScanner.scan( snippet ).getDependencies().size() ) );
+            }
+        } finally {
+            for ( var file : files ) {
+                Files.deleteIfExists( file );
+            }
+            Files.deleteIfExists( dir );
+        }
+
+        if ( sink == 42 ) {
+            System.out.println();
+        }
+    }
+
+    private static void report( int lines, double lineByLineMicros, double scannerMicros ) {
+        System.out.printf( "  %,8d lines: line by line %,10.1fus, SourceScanner %,10.1fus (%.1fx)%n",
+                lines, lineByLineMicros, scannerMicros, lineByLineMicros / scannerMicros );
+    }
+
+    // average time of the given action in microseconds
+    private static double measure( Callable<Integer> action ) throws Exception {
+        long runs = 0;
+        long startTime = System.nanoTime();
+        long elapsed;
+        do {
+            sink += action.call();
+            runs++;
+            elapsed = System.nanoTime() - startTime;
+        } while ( elapsed < MEASUREMENT_NANOS );
+        return elapsed / ( runs * 1_000.0 );
+    }
+
+    private static int scanFile( Path file ) throws IOException {
+        var code = new FileJavaCode( file );
+        return code.getClassName().length() + code.extractDependencies().size() + code.getCode().length();
+    }
+
+    /**
+     * What {@link FileJavaCode} did before using the {@link SourceScanner}: read all lines, look for the package
+     * declaration, match every line against the dependency pattern and join the lines to get the code.
+     */
+    private static int scanFileLineByLine( Path file ) throws IOException {
+        List<String> lines = Files.readAllLines( file );
+
+        String className = withoutExtension( file.getFileName().toString() );
+        for ( String line : lines ) {
+            Matcher matcher = JavaCode.PACKAGE_PATTERN.matcher( line );
+            if ( matcher.matches() ) {
+                className = matcher.group( 1 ).replace( File.separator, "." ) + "." + className;
+                break;
+            }
+        }
+
+        var dependencies = parseLines( lines );
+        var code = String.join( "\n", lines );
+        return className.length() + dependencies.size() + code.length();
+    }
+
+    private static SortedSet<Dependency> parseLineByLine( String code ) {
+        return parseLines( List.of( code.split( "\n" ) ) );
+    }
+
+    // what Dependency.parseDependencies did before using the SourceScanner
+    private static SortedSet<Dependency> parseLines( List<String> lines ) {
+        SortedSet<Dependency> dependencies = new TreeSet<>();
+        for ( String line : lines ) {
+            Matcher matcher = Dependency.JGRAB_PATTERN.matcher( line );
+            if ( matcher.matches() ) {
+                dependencies.add( Dependency.of( matcher.group( 1 ) ) );
+            }
+        }
+        return dependencies;
+    }
+
+    private static String withoutExtension( String fileName ) {
+        return fileName.substring( 0, fileName.lastIndexOf( '.' ) );
+    }
+
+    private static String generateClass( int lineCount ) {
+        var code = new StringBuilder( "package com.example.generated;\n\n" );
+        appendDependencies( code );
+        code.append( "import java.util.*;\n\n" )
+                .append( "public class Generated" ).append( lineCount ).append( " implements Runnable {\n" );
+        appendMethods( code, lineCount );
+        return code.append( "    public void run() {}\n}\n" ).toString();
+    }
+
+    private static String generateSnippet( int lineCount ) {
+        var code = new StringBuilder();
+        appendDependencies( code );
+        // 5 lines per statement group
+        for ( int i = 0; i < lineCount / 5; i++ ) {
+            code.append( "// computes the value number " ).append( i ).append( '\n' )
+                    .append( "var list" ).append( i ).append( " = new java.util.ArrayList<Integer>();\n" )
+                    .append( "for ( int i = 0; i < 10; i++ ) list" ).append( i ).append( ".add( i );\n" )
+                    .append( "System.out.println( list" ).append( i ).append( " );\n\n" );
+        }
+        return code.toString();
+    }
+
+    private static void appendDependencies( StringBuilder code ) {
+        for ( int i = 0; i < 5; i++ ) {
+            code.append( "// #jgrab com.example:module-" ).append( i ).append( ":1.0." ).append( i ).append( '\n' );
+        }
+    }
+
+    // 6 lines per method
+    private static void appendMethods( StringBuilder code, int lineCount ) {
+        for ( int i = 0; i < lineCount / 6; i++ ) {
+            code.append( "    // computes the value number " ).append( i ).append( '\n' )
+                    .append( "    private static int value" ).append( i ).append( "( int x ) {\n" )
+                    .append( "        List<Integer> list = new ArrayList<>();\n" )
+                    .append( "        for ( int i = 0; i < x; i++ ) list.add( i * " ).append( i ).append( " );\n" )
+                    .append( "        return list.stream().mapToInt( Integer::intValue ).sum();\n" )
+                    .append( "    }\n" );
+        }
+    }
+}